@@ -0,0 +1,257 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Feeds typical full-screen program output through the character handling of
+ * TerminalEmulatorField.  That class is a BlackBerry UI Field and can't be loaded on a
+ * desktop JVM, so Screen below is a copy of its write(char) logic with the drawing
+ * left out.  Keep the two in step when changing the terminal's parser.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AnsiParseBenchmark
+{
+	/** Plain text, colored "ls" output, or a "top"-style redraw full of cursor moves */
+	@Param({"plain", "colors", "redraw"})
+	public String workload;
+
+	private Screen screen_;
+	private byte[] input_;
+
+	@Setup
+	public void setup()
+	{
+		screen_ = new Screen(24, 80);
+		StringBuffer sb = new StringBuffer();
+		for(int line = 0; line < 100; line++)
+		{
+			if(workload.equals("plain"))
+				sb.append("drwxr-xr-x  2 user user  4096 Oct 17 12:00 directory-number-" + line + "\r\n");
+			else if(workload.equals("colors"))
+				sb.append("\u001b[0m\u001b[01;34mdir" + line + "\u001b[0m  \u001b[01;32mscript.sh\u001b[0m  \u001b[00mnotes.txt\u001b[0m\r\n");
+			else
+				sb.append("\u001b[" + (line % 24 + 1) + ";1H\u001b[K\u001b[7m  " + (1000 + line) + " user  20   0  \u001b[27m"
+						+ "\u001b[1;31m99.0\u001b[0m  0.1   0:0" + (line % 10) + ".00 sshd");
+		}
+		input_ = sb.toString().getBytes();
+	}
+
+	@Benchmark
+	public Screen write()
+	{
+		screen_.write(input_, 0, input_.length);
+		return screen_;
+	}
+
+	/**
+	 * The parts of TerminalEmulatorField that turn received bytes into screen contents.
+	 */
+	public static class Screen
+	{
+		private static final char ANSI_ESCAPE_CHAR = 0x1b;
+		private static final int
+			ANSI_MODE_NORMAL = 0,
+			ANSI_MODE_RECEIVED_ESCAPE = 1,
+			ANSI_MODE_CAPTURING_ESCAPE_SEQUENCE = 2;
+
+		private int cursorRow_, cursorCol_, numRows_, numCols_;
+		private int ansiMode_ = ANSI_MODE_NORMAL;
+		private char[] charBuffer_;
+		private byte[] colorBuffer_;
+		private byte currentForegroundColor_ = 7, currentBackgroundColor_ = 0;
+		private StringBuffer ansiEscapeSequence_;
+
+		public Screen(int numRows, int numCols)
+		{
+			numRows_ = numRows;
+			numCols_ = numCols;
+			charBuffer_ = new char[numRows_ * numCols_];
+			colorBuffer_ = new byte[numRows_ * numCols_];
+			erasePartOfScreen(0, numRows_ * numCols_);
+		}
+
+		public void write(byte[] buf, int offset, int length)
+		{
+			int max_i = length + offset;
+			for(int i = offset; i < max_i; i++)
+				write((char) buf[i]);
+		}
+
+		private void erasePartOfScreen(int startOffset, int length)
+		{
+			for(int i = startOffset; i < (startOffset + length); i++)
+			{
+				charBuffer_[i] = ' ';
+				colorBuffer_[i] = 7;
+			}
+		}
+
+		private void scrollUpOneLine()
+		{
+			for(int i = numCols_; i < (numRows_ * numCols_); i++)
+			{
+				charBuffer_[i - numCols_] = charBuffer_[i];
+				colorBuffer_[i - numCols_] = colorBuffer_[i];
+			}
+			erasePartOfScreen(numCols_ * (numRows_ - 1), numCols_);
+		}
+
+		private void lineFeed()
+		{
+			if(cursorRow_ == (numRows_ - 1))
+				scrollUpOneLine();
+			else
+				cursorRow_++;
+		}
+
+		private void boundsCheckCursorPosition()
+		{
+			if(cursorRow_ < 0)
+				cursorRow_ = 0;
+			else if(cursorRow_ >= numRows_)
+				cursorRow_ = numRows_ - 1;
+			if(cursorCol_ < 0)
+				cursorCol_ = 0;
+			else if(cursorCol_ >= numCols_)
+				cursorCol_ = numCols_ - 1;
+		}
+
+		private static int getIntListFromAnsiEscapeSequence(int[] out, final String s)
+		{
+			int out_i = 0, numStart = 0;
+
+			for(int i = 0; i < s.length(); i++)
+			{
+				char c = s.charAt(i);
+				if(c == ';' || i == (s.length() - 1))
+				{
+					int numEnd = i;
+					if(c != ';' && i == s.length() - 1)
+						numEnd = i + 1;
+					if(numEnd - numStart > 0)
+					{
+						try { out[out_i++] = Integer.parseInt(s.substring(numStart, numEnd)); }
+						catch(NumberFormatException e) {}
+					}
+					numStart = i + 1;
+
+					if(out_i >= out.length)
+						return out_i;
+				}
+			}
+			return out_i;
+		}
+
+		private void write(char c)
+		{
+			if(ansiMode_ == ANSI_MODE_RECEIVED_ESCAPE)
+			{
+				if(c == '[')
+				{
+					ansiMode_ = ANSI_MODE_CAPTURING_ESCAPE_SEQUENCE;
+					return;
+				}
+				ansiMode_ = ANSI_MODE_NORMAL;
+				return;
+			}
+			else if(ansiMode_ == ANSI_MODE_CAPTURING_ESCAPE_SEQUENCE)
+			{
+				if(Character.isDigit(c) || c == ';')
+					ansiEscapeSequence_.append(c);
+				else
+				{
+					int offset;
+					int[] numList = new int[5];
+					int length = getIntListFromAnsiEscapeSequence(numList, ansiEscapeSequence_.toString());
+					switch(c)
+					{
+					case 'm':
+						for(int i = 0; i < length; i++)
+						{
+							if(numList[i] >= 30 && numList[i] <= 37)
+								currentForegroundColor_ = (byte) (numList[i] - 30);
+							else if(numList[i] >= 40 && numList[i] <= 47)
+								currentBackgroundColor_ = (byte) (numList[i] - 40);
+							else if(numList[i] == 0)
+							{
+								currentForegroundColor_ = 7;
+								currentBackgroundColor_ = 0;
+							}
+						}
+						break;
+
+					case 'H':
+					case 'f':
+						if(length != 2)
+						{
+							if(length == 0)
+								cursorRow_ = cursorCol_ = 0;
+							break;
+						}
+						cursorRow_ = numList[0];
+						cursorCol_ = numList[1];
+						boundsCheckCursorPosition();
+						break;
+
+					case 'K':
+						if(length == 0)
+						{
+							offset = numCols_ * cursorRow_ + cursorCol_;
+							for(int i = cursorCol_; i < numCols_; i++)
+							{
+								charBuffer_[offset] = ' ';
+								colorBuffer_[offset] = 7;
+								offset++;
+							}
+						}
+						break;
+
+					case 'J':
+						if(length == 0)
+						{
+							offset = numCols_ * cursorRow_;
+							erasePartOfScreen(offset, numCols_ * numRows_ - offset);
+						}
+						break;
+					}
+
+					ansiEscapeSequence_ = new StringBuffer();
+					ansiMode_ = ANSI_MODE_NORMAL;
+				}
+				return;
+			}
+
+			if(c == '\n')
+			{
+				cursorCol_ = 0;
+				lineFeed();
+			}
+			else if(c == '\r')
+				cursorCol_ = 0;
+			else if(c == ANSI_ESCAPE_CHAR)
+			{
+				ansiMode_ = ANSI_MODE_RECEIVED_ESCAPE;
+				ansiEscapeSequence_ = new StringBuffer();
+			}
+			else
+			{
+				int offset = cursorRow_ * numCols_ + cursorCol_;
+				charBuffer_[offset] = c;
+				colorBuffer_[offset] = currentForegroundColor_;
+				colorBuffer_[offset] |= currentBackgroundColor_ << 4;
+
+				cursorCol_++;
+				cursorCol_ = cursorCol_ % numCols_;
+				if(cursorCol_ == 0)
+					lineFeed();
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.AESLightEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The three AES engines through CBC mode, the way SSH2.Packet uses them.
+ * Compares one processBlock() call per block with a single processBlocks() call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark
+{
+	@Param({"AESEngine", "AESFastEngine", "AESLightEngine"})
+	public String engine;
+
+	@Param({"true", "false"})
+	public boolean encrypt;
+
+	/** Bytes per call; 4096 is our largest channel data packet */
+	@Param({"16", "256", "4096"})
+	public int size;
+
+	private CBCBlockCipher cipher_;
+	private byte[] in_, out_;
+
+	@Setup
+	public void setup()
+	{
+		BlockCipher e;
+		if(engine.equals("AESEngine"))
+			e = new AESEngine();
+		else if(engine.equals("AESFastEngine"))
+			e = new AESFastEngine();
+		else
+			e = new AESLightEngine();
+
+		Random random = new Random(42);
+		byte[] key = new byte[16], iv = new byte[16];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		cipher_ = new CBCBlockCipher(e);
+		cipher_.init(encrypt, new ParametersWithIV(new KeyParameter(key), iv));
+
+		in_ = new byte[size];
+		out_ = new byte[size];
+		random.nextBytes(in_);
+	}
+
+	@Benchmark
+	public byte[] processBlock()
+	{
+		for(int off = 0; off < size; off += 16)
+			cipher_.processBlock(in_, off, out_, off);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] processBlocks()
+	{
+		cipher_.processBlocks(in_, 0, out_, 0, size / 16);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] processBlocksInPlace()
+	{
+		cipher_.processBlocks(out_, 0, out_, 0, size / 16);
+		return out_;
+	}
+}
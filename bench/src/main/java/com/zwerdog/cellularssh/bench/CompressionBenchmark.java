@@ -0,0 +1,78 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.zwerdog.cellularssh.ZlibDeflater;
+import com.zwerdog.cellularssh.ZlibInflater;
+
+/**
+ * What zlib compression costs per packet of terminal output: a directory listing's
+ * worth of text with colour escapes, which is what a cellular link spends most of its
+ * time carrying.  Each operation compresses, or inflates, the next packet of one long
+ * stream, as an SSH connection would.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark
+{
+	/** Bytes per packet; 4096 is as much as SSH2Connection lets the server send at once */
+	@Param({"256", "4096"})
+	public int size;
+
+	private static final String[] WORDS = { "drwxr-xr-x ", "-rw-r--r-- ", "1 ", "2 ", "tom ", "staff ",
+		"4096 ", "Oct 18 12:", "\033[01;34m", "\033[0m", "src", "build.xml", ".java", "\r\n" };
+	/** How many different packets to cycle through, so it isn't the same one every time */
+	private static final int PACKETS = 64;
+
+	private byte[][] packets_ = new byte[PACKETS][];
+	private byte[][] compressed_ = new byte[PACKETS][];
+	private int next_ = 0;
+	private ZlibDeflater deflater_;
+	private ZlibInflater inflater_;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		Random random = new Random(42);
+		ZlibDeflater deflater = new ZlibDeflater();
+		for(int i = 0; i < PACKETS; i++)
+		{
+			StringBuffer text = new StringBuffer();
+			while(text.length() < size)
+				text.append(WORDS[random.nextInt(WORDS.length)]);
+			packets_[i] = text.toString().substring(0, size).getBytes("ISO-8859-1");
+
+			int n = deflater.compress(packets_[i], 0, size);
+			compressed_[i] = new byte[n];
+			System.arraycopy(deflater.getOutput(), 0, compressed_[i], 0, n);
+		}
+		deflater_ = new ZlibDeflater();
+		inflater_ = new ZlibInflater();
+	}
+
+	@Benchmark
+	public int compress()
+	{
+		byte[] packet = packets_[next_++ % PACKETS];
+		return deflater_.compress(packet, 0, packet.length);
+	}
+
+	/** The packets were compressed as one stream, so they have to be inflated in order */
+	@Benchmark
+	public int inflate() throws IOException
+	{
+		int i = next_++ % PACKETS;
+		if(i == 0)
+			inflater_ = new ZlibInflater();
+		byte[] packet = compressed_[i];
+		return inflater_.decompress(packet, 0, packet.length);
+	}
+}
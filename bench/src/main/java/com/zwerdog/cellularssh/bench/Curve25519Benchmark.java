@@ -0,0 +1,49 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.zwerdog.cellularssh.Curve25519;
+
+/**
+ * The curve25519-sha256 work, for comparing with ModPowBenchmark: making a public key,
+ * and working out the shared secret from the server's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Curve25519Benchmark
+{
+	private byte[] privateKey_ = new byte[Curve25519.KEY_SIZE];
+	private byte[] serverPublicKey_ = new byte[Curve25519.KEY_SIZE];
+	private byte[] out_ = new byte[Curve25519.KEY_SIZE];
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		random.nextBytes(privateKey_);
+		byte[] serverPrivateKey = new byte[Curve25519.KEY_SIZE];
+		random.nextBytes(serverPrivateKey);
+		Curve25519.publicKey(serverPublicKey_, serverPrivateKey);
+	}
+
+	@Benchmark
+	public byte[] publicKey()
+	{
+		Curve25519.publicKey(out_, privateKey_);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] sharedSecret()
+	{
+		Curve25519.scalarMult(out_, privateKey_, serverPublicKey_);
+		return out_;
+	}
+}
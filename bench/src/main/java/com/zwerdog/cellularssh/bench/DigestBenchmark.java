@@ -0,0 +1,112 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.macs.UMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The hashes, HMACs and UMACs we can use for packet MACs, over inputs from a keystroke-sized
+ * packet up to a full one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DigestBenchmark
+{
+	@Param({"20", "64", "1024", "4096", "32768"})
+	public int size;
+
+	private SHA1Digest sha1_;
+	private SHA256Digest sha256_;
+	private SHA512Digest sha512_;
+	private HMac hmac_, hmacSha256_;
+	private UMac umac64_;
+	private byte[] nonce_ = new byte[8];
+	private byte[] in_, out_;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		in_ = new byte[size];
+		random.nextBytes(in_);
+		out_ = new byte[64];
+
+		sha1_ = new SHA1Digest();
+		sha256_ = new SHA256Digest();
+		sha512_ = new SHA512Digest();
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		hmac_ = new HMac(new SHA1Digest());
+		hmac_.init(new KeyParameter(key, 0, 20));
+		hmacSha256_ = new HMac(new SHA256Digest());
+		hmacSha256_.init(new KeyParameter(key));
+		umac64_ = new UMac(64);
+		umac64_.init(new ParametersWithIV(new KeyParameter(key, 0, 16), nonce_));
+	}
+
+	@Benchmark
+	public byte[] sha1()
+	{
+		sha1_.update(in_, 0, size);
+		sha1_.doFinal(out_, 0);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] sha256()
+	{
+		sha256_.update(in_, 0, size);
+		sha256_.doFinal(out_, 0);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] sha512()
+	{
+		sha512_.update(in_, 0, size);
+		sha512_.doFinal(out_, 0);
+		return out_;
+	}
+
+	/** Same shape as a packet MAC: sequence number, then the packet */
+	@Benchmark
+	public byte[] hmacSha1()
+	{
+		hmac_.update(in_, 0, 4);
+		hmac_.update(in_, 0, size);
+		hmac_.doFinal(out_, 0);
+		return out_;
+	}
+
+	@Benchmark
+	public byte[] hmacSha256()
+	{
+		hmacSha256_.update(in_, 0, 4);
+		hmacSha256_.update(in_, 0, size);
+		hmacSha256_.doFinal(out_, 0);
+		return out_;
+	}
+
+	/** The sequence number is the nonce rather than part of the message */
+	@Benchmark
+	public byte[] umac64()
+	{
+		nonce_[7]++;
+		umac64_.setNonce(nonce_);
+		umac64_.update(in_, 0, size);
+		umac64_.doFinal(out_, 0);
+		return out_;
+	}
+}
@@ -0,0 +1,65 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.BigInteger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The Diffie-Hellman work: g^x mod p with a full-length exponent, at the group sizes
+ * a server is likely to pick for group exchange.  The short exponent cases are what
+ * key generation actually does, with and without a precomputed comb table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ModPowBenchmark
+{
+	@Param({"1024", "2048", "4096"})
+	public int bits;
+
+	private BigInteger base_, exponent_, modulus_, shortExponent_;
+	private BigInteger.FixedBase fixedBase_;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		// An odd modulus with the top bit set, like a real safe prime
+		modulus_ = new BigInteger(bits, random).setBit(bits - 1).setBit(0);
+		base_ = BigInteger.valueOf(2);
+		exponent_ = new BigInteger(bits - 1, random);
+		shortExponent_ = new BigInteger(256, random).setBit(255);
+		fixedBase_ = new BigInteger.FixedBase(base_, modulus_, 256);
+	}
+
+	@Benchmark
+	public BigInteger modPowGenerator()
+	{
+		return base_.modPow(exponent_, modulus_);
+	}
+
+	/** The shared secret: the base is the other side's public value, not 2 */
+	@Benchmark
+	public BigInteger modPowLargeBase()
+	{
+		return exponent_.modPow(exponent_, modulus_);
+	}
+
+	/** A 256-bit private key, as SSH2Groups and group exchange use */
+	@Benchmark
+	public BigInteger modPowShortExponent()
+	{
+		return base_.modPow(shortExponent_, modulus_);
+	}
+
+	@Benchmark
+	public BigInteger fixedBaseShortExponent()
+	{
+		return fixedBase_.modPow(shortExponent_);
+	}
+}
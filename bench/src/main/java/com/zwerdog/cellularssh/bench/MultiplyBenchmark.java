@@ -0,0 +1,45 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.BigInteger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Multiplying and squaring at key exchange sizes, for choosing
+ * BigInteger.KARATSUBA_THRESHOLD.  ModPowBenchmark shows what the squaring buys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MultiplyBenchmark
+{
+	@Param({"1024", "2048", "4096"})
+	public int bits;
+
+	private BigInteger x_, y_;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		x_ = new BigInteger(bits, random).setBit(bits - 1);
+		y_ = new BigInteger(bits, random).setBit(bits - 1);
+	}
+
+	@Benchmark
+	public BigInteger multiply()
+	{
+		return x_.multiply(y_);
+	}
+
+	@Benchmark
+	public BigInteger square()
+	{
+		return x_.multiply(x_);
+	}
+}
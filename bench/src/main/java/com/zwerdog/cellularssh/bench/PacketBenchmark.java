@@ -0,0 +1,159 @@
+package com.zwerdog.cellularssh.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.*;
+
+import com.zwerdog.cellularssh.SSH2;
+import com.zwerdog.cellularssh.SSH2Algorithms;
+
+/**
+ * A CHANNEL_DATA packet going out through SSH2.Packet.bless()/send() and coming
+ * back in through fromNetwork() or an SSH2.PacketDecoder, with the same keys on
+ * both ends so the MAC checks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark
+{
+	@Param({"aes128-gcm@openssh.com", "aes128-ctr", "aes128-cbc", "none"})
+	public String cipher;
+
+	/** Not used with GCM, which authenticates packets itself */
+	@Param({"hmac-sha1", "hmac-sha2-256", "hmac-sha2-256-etm@openssh.com", "umac-64-etm@openssh.com"})
+	public String mac;
+
+	/** Channel data bytes per packet; 1 is a keystroke */
+	@Param({"1", "256", "4096"})
+	public int size;
+
+	private SSH2.Packet sendPacket_, recvPacket_;
+	private byte[] payload_;
+	private int sequenceNum_ = 0;
+	private WireBuffer wire_;
+	private DataOutputStream wireOut_;
+	private SSH2.PacketDecoder decoder_;
+	private SSH2.Packet decoded_;
+
+	/** What the decoder is given at a time, about one TCP segment */
+	private static final int CHUNK_SIZE = 1448;
+
+	/** Lets us read back what was written without toByteArray() copying it */
+	private static class WireBuffer extends ByteArrayOutputStream
+	{
+		WireBuffer()
+		{
+			super(8192);
+		}
+
+		DataInputStream openInputStream()
+		{
+			return new DataInputStream(new ByteArrayInputStream(buf, 0, count));
+		}
+
+		void feedTo(SSH2.PacketDecoder decoder, int chunkSize) throws IOException
+		{
+			for(int off = 0; off < count; off += chunkSize)
+				decoder.feed(buf, off, Math.min(chunkSize, count - off));
+		}
+	}
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		payload_ = new byte[size];
+		random.nextBytes(payload_);
+
+		sendPacket_ = new SSH2.Packet();
+		recvPacket_ = new SSH2.Packet();
+		if(cipher.equals("none") == false)
+		{
+			byte[] key = new byte[16], iv = new byte[SSH2Algorithms.getCipherIvLength(cipher)];
+			byte[] macKey = new byte[SSH2Algorithms.getMacKeyLength(mac)];
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			random.nextBytes(macKey);
+
+			BlockCipher encryptor = SSH2Algorithms.newCipher(cipher);
+			encryptor.init(true, new ParametersWithIV(new KeyParameter(key), iv));
+			sendPacket_.setEncryptor(encryptor);
+			if(SSH2Algorithms.isAead(cipher) == false)
+				sendPacket_.setEncryptionHMac(SSH2Algorithms.newMac(mac), macKey, SSH2Algorithms.isEncryptThenMac(mac));
+			sendPacket_.setUseEncryption(true);
+
+			BlockCipher decryptor = SSH2Algorithms.newCipher(cipher);
+			decryptor.init(false, new ParametersWithIV(new KeyParameter(key), iv));
+			recvPacket_.setDecryptor(decryptor);
+			if(SSH2Algorithms.isAead(cipher) == false)
+				recvPacket_.setDecryptionHMac(SSH2Algorithms.newMac(mac), macKey, SSH2Algorithms.isEncryptThenMac(mac));
+			recvPacket_.setUseEncryption(true);
+		}
+
+		wire_ = new WireBuffer();
+		wireOut_ = new DataOutputStream(wire_);
+		decoder_ = new SSH2.PacketDecoder(recvPacket_, 0, new SSH2.PacketDecoder.Handler() {
+			public void handlePacket(SSH2.Packet p)
+			{
+				decoded_ = p;
+			}
+		});
+	}
+
+	private void fillPacket()
+	{
+		sendPacket_.reset();
+		sendPacket_.putByte(SSH2.MSG_CHANNEL_DATA);
+		sendPacket_.putInt(0); // Recipient channel
+		sendPacket_.putInt(size);
+		sendPacket_.putBytes(payload_, 0, size);
+		sendPacket_.setSequenceNumber(sequenceNum_);
+	}
+
+	/** Padding, MAC and encryption only */
+	@Benchmark
+	public SSH2.Packet bless()
+	{
+		fillPacket();
+		sendPacket_.bless();
+		sequenceNum_++;
+		return sendPacket_;
+	}
+
+	@Benchmark
+	public SSH2.Packet roundTrip() throws IOException
+	{
+		fillPacket();
+		wire_.reset();
+		sendPacket_.send(wireOut_);
+
+		recvPacket_.setSequenceNumber(sequenceNum_++);
+		recvPacket_.fromNetwork(wire_.openInputStream());
+		return recvPacket_;
+	}
+
+	/** Same as roundTrip, but the receiving end is pushed the bytes a segment at a time */
+	@Benchmark
+	public SSH2.Packet roundTripChunked() throws IOException
+	{
+		fillPacket();
+		wire_.reset();
+		sendPacket_.send(wireOut_);
+		sequenceNum_++;
+		wire_.feedTo(decoder_, CHUNK_SIZE);
+		return decoded_;
+	}
+}
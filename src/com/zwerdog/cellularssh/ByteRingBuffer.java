@@ -0,0 +1,254 @@
+package com.zwerdog.cellularssh;
+
+/**
+ * A fixed-size FIFO of bytes for exactly one writer thread and one reader thread.
+ *
+ * Neither side takes a lock to move data.  The writer owns tail_ and the reader owns
+ * head_; each only ever reads the other's counter, and publishes its own with a
+ * volatile write after the bytes are in place.  The counters run forever and are
+ * masked into the array, which is why the capacity is always a power of two.
+ * Copies are done with at most two System.arraycopy() calls, one on either side of
+ * the wraparound point.
+ *
+ * A monitor is only touched when one side has to wait for the other: readBlocking()
+ * parks when the buffer is empty, and write() parks when it is full.
+ *
+ * @author Tom Joseph
+ */
+public class ByteRingBuffer
+{
+	private final byte[] data_;
+	private final int mask_;
+
+	/** Count of bytes ever read.  Only the reader changes this. */
+	private volatile int head_ = 0;
+	/** Count of bytes ever written.  Only the writer changes this. */
+	private volatile int tail_ = 0;
+
+	private volatile boolean readerWaiting_ = false, writerWaiting_ = false, closed_ = false;
+
+	/**
+	 * Makes a ring buffer that holds at least the given number of bytes.
+	 *
+	 * @param minCapacity Rounded up to the next power of two
+	 */
+	public ByteRingBuffer(int minCapacity)
+	{
+		int capacity = 1;
+		while(capacity < minCapacity)
+			capacity <<= 1;
+
+		data_ = new byte[capacity];
+		mask_ = capacity - 1;
+	}
+
+	/**
+	 * Returns how many bytes this buffer can hold.
+	 *
+	 * @return The capacity, which is a power of two
+	 */
+	public int capacity()
+	{
+		return data_.length;
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be read.  Exact when called from
+	 * the reader; from anywhere else, it may already be out of date.
+	 *
+	 * @return Number of bytes in the buffer
+	 */
+	public int available()
+	{
+		return tail_ - head_;
+	}
+
+	/**
+	 * Adds bytes to the buffer, waiting for the reader to make room if necessary.
+	 * Only the writer thread may call this.
+	 *
+	 * @param b Array to copy bytes from
+	 * @param off Where the bytes start in b
+	 * @param len How many bytes
+	 * @throws InterruptedException If the buffer was closed while we were waiting for room
+	 */
+	public void write(byte[] b, int off, int len) throws InterruptedException
+	{
+		while(len > 0)
+		{
+			int tail = tail_;
+			int free = data_.length - (tail - head_);
+			if(free == 0)
+			{
+				waitForRoom();
+				continue;
+			}
+
+			int n = (len < free) ? len : free;
+			int start = tail & mask_;
+			int firstPart = data_.length - start;
+			if(firstPart >= n)
+				System.arraycopy(b, off, data_, start, n);
+			else
+			{
+				System.arraycopy(b, off, data_, start, firstPart);
+				System.arraycopy(b, off + firstPart, data_, 0, n - firstPart);
+			}
+
+			// Publish the bytes only once they're all in place
+			tail_ = tail + n;
+			off += n;
+			len -= n;
+
+			if(readerWaiting_)
+			{
+				synchronized(this)
+				{
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds one byte to the buffer.  Only the writer thread may call this.
+	 *
+	 * @param b The byte
+	 * @throws InterruptedException If the buffer was closed while we were waiting for room
+	 */
+	public void write(byte b) throws InterruptedException
+	{
+		while(data_.length - (tail_ - head_) == 0)
+			waitForRoom();
+
+		int tail = tail_;
+		data_[tail & mask_] = b;
+		tail_ = tail + 1;
+
+		if(readerWaiting_)
+		{
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Takes up to len bytes out of the buffer without waiting.  Only the reader thread
+	 * may call this.
+	 *
+	 * @param b Where to put the bytes
+	 * @param off Where to start putting them in b
+	 * @param len Most bytes to take
+	 * @return Number of bytes actually taken, which may be 0
+	 */
+	public int read(byte[] b, int off, int len)
+	{
+		int head = head_;
+		int avail = tail_ - head;
+		int n = (len < avail) ? len : avail;
+		if(n <= 0)
+			return 0;
+
+		int start = head & mask_;
+		int firstPart = data_.length - start;
+		if(firstPart >= n)
+			System.arraycopy(data_, start, b, off, n);
+		else
+		{
+			System.arraycopy(data_, start, b, off, firstPart);
+			System.arraycopy(data_, 0, b, off + firstPart, n - firstPart);
+		}
+
+		// Give the space back to the writer only after we're done copying out of it
+		head_ = head + n;
+
+		if(writerWaiting_)
+		{
+			synchronized(this)
+			{
+				notifyAll();
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * Takes between 1 and len bytes out of the buffer, parking the calling thread
+	 * until there is something to take.  Only the reader thread may call this.
+	 *
+	 * @param b Where to put the bytes
+	 * @param off Where to start putting them in b
+	 * @param len Most bytes to take
+	 * @return Number of bytes taken, or -1 if the buffer was closed and is empty
+	 * @throws InterruptedException
+	 */
+	public int readBlocking(byte[] b, int off, int len) throws InterruptedException
+	{
+		if(len == 0)
+			return 0;
+
+		while(true)
+		{
+			int n = read(b, off, len);
+			if(n > 0)
+				return n;
+			if(closed_)
+				return -1;
+
+			synchronized(this)
+			{
+				// The writer checks readerWaiting_ after publishing tail_, so one of us
+				// is guaranteed to see the other and the wakeup can't be lost
+				readerWaiting_ = true;
+				try
+				{
+					while(tail_ == head_ && closed_ == false)
+						wait();
+				} finally
+				{
+					readerWaiting_ = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wakes up anybody waiting on this buffer.  Afterward readBlocking() returns -1 once
+	 * the buffer is drained, and a writer waiting for room gives up.
+	 */
+	public void close()
+	{
+		closed_ = true;
+		synchronized(this)
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Parks the writer until the reader has freed some space.
+	 *
+	 * @throws InterruptedException If the buffer is closed
+	 */
+	private void waitForRoom() throws InterruptedException
+	{
+		synchronized(this)
+		{
+			writerWaiting_ = true;
+			try
+			{
+				while(tail_ - head_ == data_.length && closed_ == false)
+					wait();
+			} finally
+			{
+				writerWaiting_ = false;
+			}
+		}
+
+		if(closed_)
+			throw new InterruptedException("ByteRingBuffer closed");
+	}
+}
@@ -5,6 +5,7 @@ import net.rim.device.api.ui.*;
 import net.rim.device.api.ui.container.*;
 import net.rim.device.api.ui.component.*;
 import net.rim.device.api.system.CoverageInfo;
+import net.rim.device.api.system.DeviceInfo;
 import net.rim.device.api.system.Bitmap;
 
 public class CellularSSHApp extends UiApplication
@@ -86,6 +87,10 @@ public class CellularSSHApp extends UiApplication
                 pushScreen(screen);
                 
                 serverField_.setFocus();
+                
+                // Get the key exchange's number crunching out of the way while the user types
+                SSH2.random_.setSeed(DeviceInfo.getDeviceId() ^ System.currentTimeMillis());
+                KeyPairPool.getInstance().start();
         }
         
         /**
@@ -0,0 +1,419 @@
+package com.zwerdog.cellularssh;
+
+import org.bouncycastle.SecureRandom;
+
+/**
+ * X25519 (RFC 7748): Diffie-Hellman on Curve25519, for the curve25519-sha256 key exchange.
+ * It's a lot cheaper than a modPow over a 1024-bit or bigger prime, and the server doesn't
+ * have to send us a group first.
+ *
+ * Field elements mod 2^255 - 19 are int[10] in radix 2^25.5: limbs alternate between 26
+ * and 25 bits, so a product of two limbs always fits in a long and a whole multiply is a
+ * hundred long multiplies with no BigInteger anywhere.  Limbs are allowed to go a little
+ * out of range between carries; only toBytes() fully reduces.  The ladder works in arrays
+ * allocated before it starts and doesn't branch or index on secret bits.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see SSH2Connection
+ */
+public class Curve25519
+{
+	/** Size in bytes of keys and shared secrets */
+	public static final int KEY_SIZE = 32;
+
+	/** The u-coordinate of the base point */
+	private static final byte[] BASE_POINT = new byte[KEY_SIZE];
+	static
+	{
+		BASE_POINT[0] = 9;
+	}
+
+	/**
+	 * Makes a new random private key.  Clamping happens in scalarMult(), so any 32 bytes will do.
+	 *
+	 * @param random
+	 * @return The private key
+	 */
+	public static byte[] generatePrivateKey(SecureRandom random)
+	{
+		byte[] key = new byte[KEY_SIZE];
+		random.nextBytes(key);
+		return key;
+	}
+
+	/**
+	 * Works out the public key that goes with a private key.
+	 *
+	 * @param publicKey Where to put the public key (KEY_SIZE bytes)
+	 * @param privateKey
+	 */
+	public static void publicKey(byte[] publicKey, byte[] privateKey)
+	{
+		scalarMult(publicKey, privateKey, BASE_POINT);
+	}
+
+	/**
+	 * The X25519 function: multiplies the point with u-coordinate u by the scalar.
+	 *
+	 * @param out Where to put the resulting u-coordinate (KEY_SIZE bytes)
+	 * @param scalar Private key, little-endian.  It's clamped as RFC 7748 says; the array isn't changed.
+	 * @param u The other side's public key, little-endian
+	 */
+	public static void scalarMult(byte[] out, byte[] scalar, byte[] u)
+	{
+		byte[] e = new byte[KEY_SIZE];
+		System.arraycopy(scalar, 0, e, 0, KEY_SIZE);
+		e[0] &= 248;
+		e[31] &= 127;
+		e[31] |= 64;
+
+		int[] x1 = new int[10], x2 = new int[10], z2 = new int[10], x3 = new int[10], z3 = new int[10];
+		int[] tmp0 = new int[10], tmp1 = new int[10];
+
+		fromBytes(x1, u);
+		x2[0] = 1;
+		System.arraycopy(x1, 0, x3, 0, 10);
+		z3[0] = 1;
+
+		// Montgomery ladder, as in RFC 7748 section 5
+		int swap = 0;
+		for(int pos = 254; pos >= 0; pos--)
+		{
+			int b = (e[pos >>> 3] >>> (pos & 7)) & 1;
+			swap ^= b;
+			cswap(x2, x3, swap);
+			cswap(z2, z3, swap);
+			swap = b;
+
+			sub(tmp0, x3, z3);
+			sub(tmp1, x2, z2);
+			add(x2, x2, z2);
+			add(z2, x3, z3);
+			mul(z3, tmp0, x2);
+			mul(z2, z2, tmp1);
+			square(tmp0, tmp1);
+			square(tmp1, x2);
+			add(x3, z3, z2);
+			sub(z2, z3, z2);
+			mul(x2, tmp1, tmp0);
+			sub(tmp1, tmp1, tmp0);
+			square(z2, z2);
+			mul121666(z3, tmp1);
+			square(x3, x3);
+			add(tmp0, tmp0, z3);
+			mul(z3, x1, z2);
+			mul(z2, tmp1, tmp0);
+		}
+		cswap(x2, x3, swap);
+		cswap(z2, z3, swap);
+
+		invert(z2, z2, x3, z3, tmp0, tmp1);
+		mul(x2, x2, z2);
+		toBytes(out, x2);
+
+		for(int i = 0; i < KEY_SIZE; i++)
+			e[i] = 0;
+	}
+
+	/**
+	 * Tells whether a shared secret is all zeroes, which happens when the other side sends
+	 * a point of small order.  RFC 8731 says to give up if so.
+	 */
+	public static boolean isZero(byte[] k)
+	{
+		int bits = 0;
+		for(int i = 0; i < KEY_SIZE; i++)
+			bits |= k[i];
+		return bits == 0;
+	}
+
+	private static long load3(byte[] s, int off)
+	{
+		return (s[off] & 0xff) | (s[off + 1] & 0xff) << 8 | (s[off + 2] & 0xff) << 16;
+	}
+
+	private static long load4(byte[] s, int off)
+	{
+		return ((s[off] & 0xff) | (s[off + 1] & 0xff) << 8 | (s[off + 2] & 0xff) << 16 | (s[off + 3] & 0xff) << 24) & 0xffffffffL;
+	}
+
+	/**
+	 * Unpacks 32 little-endian bytes into limbs, ignoring the top bit.
+	 */
+	private static void fromBytes(int[] h, byte[] s)
+	{
+		long h0 = load4(s, 0);
+		long h1 = load3(s, 4) << 6;
+		long h2 = load3(s, 7) << 5;
+		long h3 = load3(s, 10) << 3;
+		long h4 = load3(s, 13) << 2;
+		long h5 = load4(s, 16);
+		long h6 = load3(s, 20) << 7;
+		long h7 = load3(s, 23) << 5;
+		long h8 = load3(s, 26) << 4;
+		long h9 = (load3(s, 29) & 0x7fffff) << 2;
+		carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+	}
+
+	/**
+	 * Packs limbs into 32 little-endian bytes, reducing all the way mod 2^255 - 19 first.
+	 */
+	private static void toBytes(byte[] s, int[] f)
+	{
+		int h0 = f[0], h1 = f[1], h2 = f[2], h3 = f[3], h4 = f[4];
+		int h5 = f[5], h6 = f[6], h7 = f[7], h8 = f[8], h9 = f[9];
+
+		// q is 1 if h >= p, so h - q * p is fully reduced
+		int q = (19 * h9 + (1 << 24)) >> 25;
+		q = (h0 + q) >> 26;
+		q = (h1 + q) >> 25;
+		q = (h2 + q) >> 26;
+		q = (h3 + q) >> 25;
+		q = (h4 + q) >> 26;
+		q = (h5 + q) >> 25;
+		q = (h6 + q) >> 26;
+		q = (h7 + q) >> 25;
+		q = (h8 + q) >> 26;
+		q = (h9 + q) >> 25;
+
+		h0 += 19 * q;
+		int c;
+		c = h0 >> 26; h1 += c; h0 -= c << 26;
+		c = h1 >> 25; h2 += c; h1 -= c << 25;
+		c = h2 >> 26; h3 += c; h2 -= c << 26;
+		c = h3 >> 25; h4 += c; h3 -= c << 25;
+		c = h4 >> 26; h5 += c; h4 -= c << 26;
+		c = h5 >> 25; h6 += c; h5 -= c << 25;
+		c = h6 >> 26; h7 += c; h6 -= c << 26;
+		c = h7 >> 25; h8 += c; h7 -= c << 25;
+		c = h8 >> 26; h9 += c; h8 -= c << 26;
+		c = h9 >> 25; h9 -= c << 25;
+
+		s[0] = (byte) h0;
+		s[1] = (byte) (h0 >> 8);
+		s[2] = (byte) (h0 >> 16);
+		s[3] = (byte) ((h0 >> 24) | (h1 << 2));
+		s[4] = (byte) (h1 >> 6);
+		s[5] = (byte) (h1 >> 14);
+		s[6] = (byte) ((h1 >> 22) | (h2 << 3));
+		s[7] = (byte) (h2 >> 5);
+		s[8] = (byte) (h2 >> 13);
+		s[9] = (byte) ((h2 >> 21) | (h3 << 5));
+		s[10] = (byte) (h3 >> 3);
+		s[11] = (byte) (h3 >> 11);
+		s[12] = (byte) ((h3 >> 19) | (h4 << 6));
+		s[13] = (byte) (h4 >> 2);
+		s[14] = (byte) (h4 >> 10);
+		s[15] = (byte) (h4 >> 18);
+		s[16] = (byte) h5;
+		s[17] = (byte) (h5 >> 8);
+		s[18] = (byte) (h5 >> 16);
+		s[19] = (byte) ((h5 >> 24) | (h6 << 1));
+		s[20] = (byte) (h6 >> 7);
+		s[21] = (byte) (h6 >> 15);
+		s[22] = (byte) ((h6 >> 23) | (h7 << 3));
+		s[23] = (byte) (h7 >> 5);
+		s[24] = (byte) (h7 >> 13);
+		s[25] = (byte) ((h7 >> 21) | (h8 << 4));
+		s[26] = (byte) (h8 >> 4);
+		s[27] = (byte) (h8 >> 12);
+		s[28] = (byte) ((h8 >> 20) | (h9 << 6));
+		s[29] = (byte) (h9 >> 2);
+		s[30] = (byte) (h9 >> 10);
+		s[31] = (byte) (h9 >> 18);
+	}
+
+	private static void add(int[] h, int[] f, int[] g)
+	{
+		for(int i = 0; i < 10; i++)
+			h[i] = f[i] + g[i];
+	}
+
+	private static void sub(int[] h, int[] f, int[] g)
+	{
+		for(int i = 0; i < 10; i++)
+			h[i] = f[i] - g[i];
+	}
+
+	/**
+	 * Swaps f and g if b is 1 and leaves them alone if it's 0, taking the same time either way.
+	 */
+	private static void cswap(int[] f, int[] g, int b)
+	{
+		int mask = -b;
+		for(int i = 0; i < 10; i++)
+		{
+			int x = (f[i] ^ g[i]) & mask;
+			f[i] ^= x;
+			g[i] ^= x;
+		}
+	}
+
+	/**
+	 * h = f * g.  h may be f or g.
+	 *
+	 * Limb i stands for 2^ceil(25.5 i), so multiplying two odd limbs gives twice the
+	 * power of two that the result limb stands for, and anything past limb 9 wraps
+	 * around times 19, because 2^255 = 19 mod p.
+	 */
+	private static void mul(int[] h, int[] f, int[] g)
+	{
+		int f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+		int f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+		int g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+		int g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+		long g1_19 = 19 * (long) g1, g2_19 = 19 * (long) g2, g3_19 = 19 * (long) g3;
+		long g4_19 = 19 * (long) g4, g5_19 = 19 * (long) g5, g6_19 = 19 * (long) g6;
+		long g7_19 = 19 * (long) g7, g8_19 = 19 * (long) g8, g9_19 = 19 * (long) g9;
+		long f1_2 = 2 * (long) f1, f3_2 = 2 * (long) f3, f5_2 = 2 * (long) f5;
+		long f7_2 = 2 * (long) f7, f9_2 = 2 * (long) f9;
+
+		long h0 = f0 * (long) g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19
+			+ f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+		long h1 = f0 * (long) g1 + f1 * (long) g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19
+			+ f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+		long h2 = f0 * (long) g2 + f1_2 * g1 + f2 * (long) g0 + f3_2 * g9_19 + f4 * g8_19
+			+ f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+		long h3 = f0 * (long) g3 + f1 * (long) g2 + f2 * (long) g1 + f3 * (long) g0 + f4 * g9_19
+			+ f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+		long h4 = f0 * (long) g4 + f1_2 * g3 + f2 * (long) g2 + f3_2 * g1 + f4 * (long) g0
+			+ f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+		long h5 = f0 * (long) g5 + f1 * (long) g4 + f2 * (long) g3 + f3 * (long) g2 + f4 * (long) g1
+			+ f5 * (long) g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+		long h6 = f0 * (long) g6 + f1_2 * g5 + f2 * (long) g4 + f3_2 * g3 + f4 * (long) g2
+			+ f5_2 * g1 + f6 * (long) g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+		long h7 = f0 * (long) g7 + f1 * (long) g6 + f2 * (long) g5 + f3 * (long) g4 + f4 * (long) g3
+			+ f5 * (long) g2 + f6 * (long) g1 + f7 * (long) g0 + f8 * g9_19 + f9 * g8_19;
+		long h8 = f0 * (long) g8 + f1_2 * g7 + f2 * (long) g6 + f3_2 * g5 + f4 * (long) g4
+			+ f5_2 * g3 + f6 * (long) g2 + f7_2 * g1 + f8 * (long) g0 + f9_2 * g9_19;
+		long h9 = f0 * (long) g9 + f1 * (long) g8 + f2 * (long) g7 + f3 * (long) g6 + f4 * (long) g5
+			+ f5 * (long) g4 + f6 * (long) g3 + f7 * (long) g2 + f8 * (long) g1 + f9 * (long) g0;
+
+		carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+	}
+
+	/**
+	 * h = f * f, which needs about half the multiplies that mul() does.
+	 */
+	private static void square(int[] h, int[] f)
+	{
+		int f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+		int f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+		long f1_2 = 2 * (long) f1;
+		long f2_2 = 2 * (long) f2;
+		long f3_2 = 2 * (long) f3;
+		long f4_2 = 2 * (long) f4;
+		long f5_2 = 2 * (long) f5;
+		long f5_38 = 38 * (long) f5;
+		long f6_2 = 2 * (long) f6;
+		long f6_19 = 19 * (long) f6;
+		long f6_38 = 38 * (long) f6;
+		long f7_2 = 2 * (long) f7;
+		long f7_38 = 38 * (long) f7;
+		long f8_2 = 2 * (long) f8;
+		long f8_19 = 19 * (long) f8;
+		long f8_38 = 38 * (long) f8;
+		long f9_2 = 2 * (long) f9;
+		long f9_38 = 38 * (long) f9;
+
+		long h0 = f0 * (long) f0 + f1_2 * f9_38 + f2 * f8_38 + f3_2 * f7_38 + f4 * f6_38 + f5 * f5_38;
+		long h1 = f0 * f1_2 + f2 * f9_38 + f3 * f8_38 + f4 * f7_38 + f5 * f6_38;
+		long h2 = f0 * f2_2 + f1 * f1_2 + f3_2 * f9_38 + f4 * f8_38 + f5_2 * f7_38 + f6 * f6_19;
+		long h3 = f0 * f3_2 + f1 * f2_2 + f4 * f9_38 + f5 * f8_38 + f6 * f7_38;
+		long h4 = f0 * f4_2 + f1_2 * f3_2 + f2 * (long) f2 + f5_2 * f9_38 + f6 * f8_38 + f7 * f7_38;
+		long h5 = f0 * f5_2 + f1 * f4_2 + f2 * f3_2 + f6 * f9_38 + f7 * f8_38;
+		long h6 = f0 * f6_2 + f1_2 * f5_2 + f2 * f4_2 + f3 * f3_2 + f7_2 * f9_38 + f8 * f8_19;
+		long h7 = f0 * f7_2 + f1 * f6_2 + f2 * f5_2 + f3 * f4_2 + f8 * f9_38;
+		long h8 = f0 * f8_2 + f1_2 * f7_2 + f2 * f6_2 + f3_2 * f5_2 + f4 * (long) f4 + f9 * f9_38;
+		long h9 = f0 * f9_2 + f1 * f8_2 + f2 * f7_2 + f3 * f6_2 + f4 * f5_2;
+
+		carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+	}
+
+	/**
+	 * h = f * 121666, which is (A + 2) / 4 for Curve25519's A = 486662.
+	 */
+	private static void mul121666(int[] h, int[] f)
+	{
+		carry(h, f[0] * 121666L, f[1] * 121666L, f[2] * 121666L, f[3] * 121666L, f[4] * 121666L,
+			f[5] * 121666L, f[6] * 121666L, f[7] * 121666L, f[8] * 121666L, f[9] * 121666L);
+	}
+
+	/**
+	 * Carries 64-bit limbs down to 26 and 25 bits (give or take one) and stores them in h.
+	 * Two carry chains are interleaved so they don't wait on each other.
+	 */
+	private static void carry(int[] h, long h0, long h1, long h2, long h3, long h4,
+		long h5, long h6, long h7, long h8, long h9)
+	{
+		long c;
+		c = (h0 + (1 << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h4 + (1 << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h1 + (1 << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h5 + (1 << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h2 + (1 << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h6 + (1 << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h3 + (1 << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h7 + (1 << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h4 + (1 << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h8 + (1 << 25)) >> 26; h9 += c; h8 -= c << 26;
+		c = (h9 + (1 << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h0 + (1 << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+	/**
+	 * out = z^(p - 2) = 1/z, by the usual chain of 254 squarings and 11 multiplies.
+	 * t0 to t3 are scratch.  out may be z.
+	 */
+	private static void invert(int[] out, int[] z, int[] t0, int[] t1, int[] t2, int[] t3)
+	{
+		int i;
+		square(t0, z);
+		square(t1, t0);
+		square(t1, t1);
+		mul(t1, z, t1);
+		mul(t0, t0, t1);
+		square(t2, t0);
+		mul(t1, t1, t2);
+		square(t2, t1);
+		for(i = 1; i < 5; i++)
+			square(t2, t2);
+		mul(t1, t2, t1);
+		square(t2, t1);
+		for(i = 1; i < 10; i++)
+			square(t2, t2);
+		mul(t2, t2, t1);
+		square(t3, t2);
+		for(i = 1; i < 20; i++)
+			square(t3, t3);
+		mul(t2, t3, t2);
+		for(i = 0; i < 10; i++)
+			square(t2, t2);
+		mul(t1, t2, t1);
+		square(t2, t1);
+		for(i = 1; i < 50; i++)
+			square(t2, t2);
+		mul(t2, t2, t1);
+		square(t3, t2);
+		for(i = 1; i < 100; i++)
+			square(t3, t3);
+		mul(t2, t3, t2);
+		for(i = 0; i < 50; i++)
+			square(t2, t2);
+		mul(t1, t2, t1);
+		for(i = 0; i < 5; i++)
+			square(t1, t1);
+		mul(out, t1, t0);
+	}
+}
@@ -0,0 +1,192 @@
+package com.zwerdog.cellularssh;
+import java.util.Vector;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.DHBasicKeyPairGenerator;
+import org.bouncycastle.crypto.params.DHKeyGenerationParameters;
+import org.bouncycastle.crypto.params.DHParameters;
+
+/**
+ * Makes ephemeral key exchange key pairs ahead of time on a low-priority thread, so the
+ * key exchange can take one that's ready instead of stopping to make it.  A 2048-bit modPow
+ * is the slowest part of connecting on a phone, and there's plenty of idle time to do it
+ * in while the user is typing a password.
+ *
+ * Pairs are kept for Curve25519 and the fixed groups, since those are the only ones we
+ * know before the server tells us anything.  Each pair is handed out once and then
+ * forgotten, so every key exchange still gets its own.  If the pool is empty, or was never
+ * started, the caller gets a freshly made pair instead.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see SSH2Connection
+ */
+public class KeyPairPool implements Runnable
+{
+	/** What we keep pairs for, most likely to be used first */
+	private static final String[] KINDS = { "curve25519-sha256", "diffie-hellman-group14-sha256",
+		"diffie-hellman-group16-sha512" };
+	/** Pairs to keep of each kind.  Each connection uses one. */
+	private static final int POOL_SIZE = 2;
+
+	private static KeyPairPool instance_ = null;
+
+	/** Ready pairs for each of KINDS.  Guarded by this. */
+	private final Vector[] pools_ = new Vector[KINDS.length];
+	/** The thread filling the pools, or null if it's been told to stop.  Guarded by this. */
+	private Thread thread_ = null;
+
+	private KeyPairPool()
+	{
+		for(int i = 0; i < KINDS.length; i++)
+			pools_[i] = new Vector();
+	}
+
+	/**
+	 * Returns the pool, which there's only one of.
+	 */
+	public static synchronized KeyPairPool getInstance()
+	{
+		if(instance_ == null)
+			instance_ = new KeyPairPool();
+		return instance_;
+	}
+
+	/**
+	 * Starts filling the pool in the background, if it isn't already.  Seed SSH2.random_
+	 * first if you're going to.
+	 */
+	public synchronized void start()
+	{
+		if(thread_ != null)
+			return;
+		thread_ = new Thread(this);
+		thread_.setPriority(Thread.MIN_PRIORITY);
+		thread_.start();
+	}
+
+	/**
+	 * Stops filling the pool once the pair being made is done.  Pairs already made
+	 * can still be taken.
+	 */
+	public synchronized void stop()
+	{
+		thread_ = null;
+		notifyAll();
+	}
+
+	/**
+	 * Gets a Curve25519 key pair for a curve25519-sha256 key exchange.
+	 *
+	 * @return { private key, public key }
+	 */
+	public byte[][] takeCurve25519KeyPair()
+	{
+		byte[][] pair = (byte[][]) take(0);
+		if(pair == null)
+			pair = makeCurve25519KeyPair();
+		return pair;
+	}
+
+	/**
+	 * Gets a Diffie-Hellman key pair for a key exchange.
+	 *
+	 * @param kexName One of SSH2Algorithms.KEX
+	 * @param group The group to make one for if we don't have one ready, e.g. because
+	 * the server picked it with group exchange
+	 * @return The key pair
+	 */
+	public AsymmetricCipherKeyPair takeDHKeyPair(String kexName, DHParameters group)
+	{
+		AsymmetricCipherKeyPair pair = null;
+		for(int i = 1; i < KINDS.length; i++)
+		{
+			if(KINDS[i].equals(kexName))
+				pair = (AsymmetricCipherKeyPair) take(i);
+		}
+		if(pair == null)
+			pair = makeDHKeyPair(group);
+		return pair;
+	}
+
+	/**
+	 * Keeps the pools topped up, one pair at a time, until stop().  Every kind gets one
+	 * pair before any gets a second.
+	 */
+	public void run()
+	{
+		while(true)
+		{
+			int kind = -1;
+			synchronized(this)
+			{
+				try
+				{
+					while(thread_ == Thread.currentThread() && (kind = nextKindToFill()) < 0)
+						wait();
+				} catch(InterruptedException e)
+				{
+					return;
+				}
+				if(thread_ != Thread.currentThread())
+					return;
+			}
+
+			Object pair;
+			if(kind == 0)
+				pair = makeCurve25519KeyPair();
+			else
+				pair = makeDHKeyPair(SSH2Groups.get(KINDS[kind]));
+
+			synchronized(this)
+			{
+				pools_[kind].addElement(pair);
+			}
+		}
+	}
+
+	/**
+	 * Returns which pool to add to next, or -1 if they're all full.
+	 */
+	private int nextKindToFill()
+	{
+		for(int level = 1; level <= POOL_SIZE; level++)
+		{
+			for(int i = 0; i < KINDS.length; i++)
+			{
+				if(pools_[i].size() < level)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes a pair from one of the pools and wakes the thread up to replace it.
+	 *
+	 * @return The pair, or null if there isn't one ready
+	 */
+	private synchronized Object take(int kind)
+	{
+		if(pools_[kind].isEmpty())
+			return null;
+		Object pair = pools_[kind].elementAt(0);
+		pools_[kind].removeElementAt(0);
+		notifyAll();
+		return pair;
+	}
+
+	private static byte[][] makeCurve25519KeyPair()
+	{
+		byte[] privateKey = Curve25519.generatePrivateKey(SSH2.random_);
+		byte[] publicKey = new byte[Curve25519.KEY_SIZE];
+		Curve25519.publicKey(publicKey, privateKey);
+		return new byte[][] { privateKey, publicKey };
+	}
+
+	private static AsymmetricCipherKeyPair makeDHKeyPair(DHParameters group)
+	{
+		DHBasicKeyPairGenerator kpgen = new DHBasicKeyPairGenerator();
+		kpgen.init(new DHKeyGenerationParameters(SSH2.random_, group));
+		return kpgen.generateKeyPair();
+	}
+}
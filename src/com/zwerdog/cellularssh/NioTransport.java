@@ -0,0 +1,311 @@
+package com.zwerdog.cellularssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Drives any number of SSH2Connections from one thread using non-blocking sockets,
+ * instead of keeping a thread blocked in read() for each one.  Bytes are handed to
+ * SSH2Connection.feed() as they arrive, which copes with packets that come in pieces.
+ * For more than one thread, make more than one NioTransport and share the connections
+ * out between them.
+ *
+ * Anything the connection sends is written straight to the socket if it will take it,
+ * and otherwise queued until the selector says there's room.  Writes never block, so
+ * packet handlers running on the selector thread can send replies.  Channel data sinks
+ * run on the selector thread too and mustn't block.
+ *
+ * This needs java.nio, so it's for standard JVMs only and isn't part of the BlackBerry build.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see SSH2Connection#start
+ * @see SSH2Connection#feed
+ */
+public class NioTransport implements Runnable
+{
+	private static final int READ_BUFFER_SIZE = 16384;
+
+	public interface DisconnectListener
+	{
+		/**
+		 * Called on the selector thread once a connection is gone.
+		 *
+		 * @param connection The connection
+		 * @param reason Why, suitable for logging
+		 */
+		public void onDisconnected(SSH2Connection connection, String reason);
+	}
+
+	private final Selector selector_;
+	/** Endpoints to register or whose interest ops have changed.  Guarded by itself. */
+	private final Vector pendingEndpoints_ = new Vector();
+	/** Only the selector thread reads, so one buffer does for everybody */
+	private final ByteBuffer readBuffer_ = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private volatile boolean running_ = true;
+	private DisconnectListener listener_ = null;
+
+	/**
+	 * One connection's socket, and the stream the connection writes packets to.
+	 */
+	private class Endpoint extends OutputStream
+	{
+		final SSH2Connection connection_;
+		final SocketChannel channel_;
+		/** Only touched by the selector thread */
+		SelectionKey key_ = null;
+		boolean dropped_ = false;
+
+		/** Bytes the socket wouldn't take yet.  Guarded by this. */
+		private byte[] outgoing_ = new byte[4096];
+		private int outgoingLength_ = 0;
+		private boolean closed_ = false;
+
+		Endpoint(SSH2Connection connection, SocketChannel channel)
+		{
+			connection_ = connection;
+			channel_ = channel;
+		}
+
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			synchronized(this)
+			{
+				if(closed_)
+					throw new IOException("Connection is closed");
+
+				// Skip the queue if there isn't one
+				if(outgoingLength_ == 0 && channel_.isConnected())
+				{
+					int n = channel_.write(ByteBuffer.wrap(b, off, len));
+					off += n;
+					len -= n;
+					if(len == 0)
+						return;
+				}
+
+				if(outgoing_.length - outgoingLength_ < len)
+					outgoing_ = SSH2.biggerBuffer(outgoing_, (outgoingLength_ + len) * 2);
+				System.arraycopy(b, off, outgoing_, outgoingLength_, len);
+				boolean wasEmpty = (outgoingLength_ == 0);
+				outgoingLength_ += len;
+				if(wasEmpty == false)
+					return; // The selector already knows
+			}
+
+			schedule(this);
+		}
+
+		public void close()
+		{
+			synchronized(this)
+			{
+				closed_ = true;
+				outgoingLength_ = 0;
+			}
+
+			try {
+				channel_.close();
+			} catch(IOException e) {}
+		}
+
+		/**
+		 * Writes as much of the queue as the socket will take.  Selector thread only.
+		 */
+		synchronized void flushOutgoing() throws IOException
+		{
+			if(outgoingLength_ == 0)
+				return;
+
+			int n = channel_.write(ByteBuffer.wrap(outgoing_, 0, outgoingLength_));
+			System.arraycopy(outgoing_, n, outgoing_, 0, outgoingLength_ - n);
+			outgoingLength_ -= n;
+		}
+
+		synchronized int interestOps()
+		{
+			if(channel_.isConnectionPending())
+				return SelectionKey.OP_CONNECT;
+			return (outgoingLength_ > 0) ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+		}
+	}
+
+	/**
+	 * Makes a transport.  Nothing happens until somebody calls run().
+	 *
+	 * @throws IOException If we couldn't get a Selector
+	 */
+	public NioTransport() throws IOException
+	{
+		selector_ = Selector.open();
+	}
+
+	public void setDisconnectListener(DisconnectListener listener)
+	{
+		listener_ = listener;
+	}
+
+	/**
+	 * Connects to host:port and runs the given connection over it.  Returns right away;
+	 * the rest happens on the selector thread, and the connection's listener hears about
+	 * it the same way it would with open().
+	 *
+	 * @param connection A connection that hasn't been opened or started
+	 * @param host
+	 * @param port
+	 * @throws IOException If the connection couldn't even be attempted
+	 */
+	public void connect(SSH2Connection connection, String host, int port) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Endpoint endpoint = new Endpoint(connection, channel);
+		// Connections to this machine can finish right away
+		if(channel.connect(new InetSocketAddress(host, port)))
+			connection.start(endpoint);
+		schedule(endpoint);
+	}
+
+	/**
+	 * Stops the event loop and closes every connection it was running.
+	 */
+	public void shutdown()
+	{
+		running_ = false;
+		selector_.wakeup();
+	}
+
+	/**
+	 * The event loop.  Runs until shutdown().
+	 */
+	public void run()
+	{
+		while(running_)
+		{
+			try {
+				selector_.select();
+			} catch(IOException e) {
+				System.err.println("NioTransport: select() failed: " + e);
+				break;
+			}
+
+			updatePendingEndpoints();
+
+			Iterator it = selector_.selectedKeys().iterator();
+			while(it.hasNext())
+			{
+				SelectionKey key = (SelectionKey) it.next();
+				it.remove();
+				Endpoint endpoint = (Endpoint) key.attachment();
+				try
+				{
+					if(key.isValid() && key.isConnectable())
+					{
+						endpoint.channel_.finishConnect();
+						endpoint.connection_.start(endpoint);
+					}
+					if(key.isValid() && key.isReadable())
+						read(endpoint);
+					if(key.isValid() && key.isWritable())
+						endpoint.flushOutgoing();
+					if(key.isValid())
+						key.interestOps(endpoint.interestOps());
+				} catch(IOException e)
+				{
+					drop(endpoint, e.getMessage() != null ? e.getMessage() : e.toString());
+				} catch(RuntimeException e)
+				{
+					// Likely a malformed packet from this server.  It must not take the
+					// selector thread, and every other connection, down with it.
+					System.err.println("NioTransport: Dropping a connection after " + e);
+					drop(endpoint, e.toString());
+				}
+			}
+		}
+
+		Iterator it = selector_.keys().iterator();
+		while(it.hasNext())
+			drop((Endpoint) ((SelectionKey) it.next()).attachment(), "Transport shut down");
+		try {
+			selector_.close();
+		} catch(IOException e) {}
+	}
+
+	private void read(Endpoint endpoint) throws IOException
+	{
+		readBuffer_.clear();
+		int n = endpoint.channel_.read(readBuffer_);
+		if(n < 0)
+			throw new IOException("Server closed the connection");
+		endpoint.connection_.feed(readBuffer_.array(), 0, n);
+	}
+
+	/**
+	 * Asks the selector thread to look at an endpoint's interest ops again.
+	 */
+	private void schedule(Endpoint endpoint)
+	{
+		synchronized(pendingEndpoints_)
+		{
+			pendingEndpoints_.addElement(endpoint);
+		}
+		selector_.wakeup();
+	}
+
+	private void updatePendingEndpoints()
+	{
+		Endpoint[] pending;
+		synchronized(pendingEndpoints_)
+		{
+			pending = new Endpoint[pendingEndpoints_.size()];
+			pendingEndpoints_.copyInto(pending);
+			pendingEndpoints_.removeAllElements();
+		}
+
+		for(int i = 0; i < pending.length; i++)
+		{
+			Endpoint endpoint = pending[i];
+			try
+			{
+				if(endpoint.key_ == null)
+					endpoint.key_ = endpoint.channel_.register(selector_, endpoint.interestOps(), endpoint);
+				else if(endpoint.key_.isValid())
+					endpoint.key_.interestOps(endpoint.interestOps());
+			} catch(IOException e)
+			{
+				drop(endpoint, e.toString());
+			} catch(RuntimeException e)
+			{
+				drop(endpoint, e.toString());
+			}
+		}
+	}
+
+	private void drop(Endpoint endpoint, String reason)
+	{
+		if(endpoint.dropped_)
+			return;
+		endpoint.dropped_ = true;
+		if(endpoint.key_ != null)
+			endpoint.key_.cancel();
+		try {
+			endpoint.connection_.close();
+		} catch(IOException e) {}
+		endpoint.close();
+
+		if(listener_ != null)
+			listener_.onDisconnected(endpoint.connection_, reason);
+	}
+}
@@ -3,13 +3,14 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import org.bouncycastle.BigInteger;
-import java.util.Random;
-
-import net.rim.device.api.system.DeviceInfo;
+import org.bouncycastle.SecureRandom;
 
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.digests.SHA1Digest;
-import org.bouncycastle.crypto.macs.HMac;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.macs.UMac;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
@@ -28,6 +29,11 @@ public class SSH2
 	public static final byte MSG_SERVICE_ACCEPT = 6;
 	public static final byte MSG_KEXINIT = 20;
 	public static final byte MSG_NEWKEYS = 21;
+	/** The fixed-group methods (RFC 4253 section 8) and curve25519-sha256 (RFC 5656) share 30 and 31 */
+	public static final byte MSG_KEXDH_INIT = 30;
+	public static final byte MSG_KEXDH_REPLY = 31;
+	public static final byte MSG_KEX_ECDH_INIT = 30;
+	public static final byte MSG_KEX_ECDH_REPLY = 31;
 	public static final byte MSG_KEXDH_GEX_REPLY = 33;
 	public static final byte MSG_KEXDH_REQUEST = 34;
 	public static final byte MSG_KEXDH_GEX_GROUP = 31;
@@ -40,6 +46,7 @@ public class SSH2
 	public static final byte MSG_CHANNEL_OPEN_FAILURE = 92;
 	public static final byte MSG_CHANNEL_WINDOW_ADJUST = 93;
 	public static final byte MSG_CHANNEL_DATA = 94;
+	public static final byte MSG_CHANNEL_EXTENDED_DATA = 95;
 	public static final byte MSG_CHANNEL_EOF = 96;
 	public static final byte MSG_CHANNEL_CLOSE = 97;
 	public static final byte MSG_CHANNEL_REQUEST = 98;
@@ -50,7 +57,8 @@ public class SSH2
 	// The minimum here is 1024, or OpenSSH won't like it
 	public static final int GROUP_SIZE_MIN = 1024, GROUP_SIZE_WANTED = 1024, GROUP_SIZE_MAX = 1024;
 	
-	public static final Random random_ = new Random(DeviceInfo.getDeviceId() * (DeviceInfo.getIdleTime() % 16));
+	/** Platform code may add entropy of its own with setSeed() before connecting. */
+	public static final SecureRandom random_ = new SecureRandom();
 	
 	/**
 	 * Encapsulates an SSH2 packet.
@@ -61,11 +69,33 @@ public class SSH2
 	{
 		private String[] typeNames_ = new String[256];
 		
-		public byte[] data = null, encryptedData_, macData_, computedMac_;
+		public byte[] data = null, macData_, computedMac_;
 		private int realLength_, sequenceNum_ = -1;
 		private boolean blessed_, useEncryption_;
-		private CBCBlockCipher encryptor_ = null, decryptor_ = null;
-		private HMac encryptionHMac_, decryptionHMac_;
+		/**
+		 * Where fromBytes() is in the packet it's putting together; -1 until the length is known.
+		 * decrypted_ is how much has been through the MAC, and through the decryptor too
+		 * unless it's encrypt-then-MAC.
+		 */
+		private int received_ = 0, expected_ = -1, decrypted_ = 0;
+		private boolean complete_ = false;
+		private BlockCipher encryptor_ = null, decryptor_ = null;
+		/**
+		 * The same ciphers when they're AES-GCM, which authenticates packets itself.  Then no
+		 * MAC is used, and the tag goes in data straight after the packet.
+		 */
+		private GCMBlockCipher encryptionGcm_, decryptionGcm_;
+		private Mac encryptionHMac_, decryptionHMac_;
+		/** The sequence number as UMAC wants it, an 8-byte nonce */
+		private byte[] nonce_;
+		/** Whether the MACs are the encrypt-then-MAC kind, which changes the packet format */
+		private boolean encryptionEtm_ = false, decryptionEtm_ = false;
+		/** Set once compression starts, which isn't necessarily when encryption does */
+		private ZlibDeflater compressor_ = null;
+		private ZlibInflater decompressor_ = null;
+		/** How many bytes of the last received packet came after its first block, and how long they took */
+		private int arrivalBytes_, arrivalMillis_;
+		private long firstBlockTime_;
 		
 		/** Don't manipulate this directly! It's only public so reading it is fast. */
 		public int offset_;
@@ -107,13 +137,61 @@ public class SSH2
 		
 		/**
 		 * Set the encryption scheme to use; once this is set the bless() method will
-		 * automatically start encrypting this packet.
+		 * automatically start encrypting this packet.  A GCMBlockCipher authenticates
+		 * packets too, and then the MAC isn't used.
 		 * 
 		 * @param encryptor
 		 */
-		public void setEncryptor(CBCBlockCipher encryptor)
+		public void setEncryptor(BlockCipher encryptor)
 		{
 			encryptor_ = encryptor;
+			encryptionGcm_ = (encryptor instanceof GCMBlockCipher) ? (GCMBlockCipher) encryptor : null;
+		}
+		
+		/**
+		 * Sets the zlib stream that bless() compresses the payload into, or null to stop
+		 * compressing.  The same one has to be used for every packet sent from then on.
+		 * 
+		 * @param compressor
+		 */
+		public void setCompressor(ZlibDeflater compressor)
+		{
+			compressor_ = compressor;
+		}
+		
+		/**
+		 * Sets the zlib stream received payloads are inflated from once their MAC checks out,
+		 * or null if they aren't compressed.
+		 * 
+		 * @param decompressor
+		 */
+		public void setDecompressor(ZlibInflater decompressor)
+		{
+			decompressor_ = decompressor;
+		}
+		
+		/**
+		 * Returns how many bytes of the last received packet arrived after its first cipher
+		 * block, MAC included.  With getArrivalMillis() that gives a rough idea of how fast
+		 * the network is, since the rest of a big packet is sent all at once.
+		 * 
+		 * @return Bytes
+		 */
+		public int getArrivalBytes()
+		{
+			return arrivalBytes_;
+		}
+		
+		/**
+		 * Returns how long the rest of the last received packet took to arrive after its
+		 * first cipher block.
+		 * 
+		 * @return Milliseconds
+		 * @see getArrivalBytes
+		 */
+		public int getArrivalMillis()
+		{
+			return arrivalMillis_;
 		}
 		
 		/**
@@ -158,6 +236,7 @@ public class SSH2
 				int paddingLength = (int) in.readByte();
 				// The packet type will determine whether there is a MAC
 				byte packetType = in.readByte();
+				firstBlockTime_ = System.currentTimeMillis();
 
 				offset_ = 0;
 				putInt(length);
@@ -169,23 +248,76 @@ public class SSH2
 				ensureSize(length + 4); // XXX: add MAC size to this
 				in.readFully(data, offset_, length - 2);
 				realLength_ += length - 2;
+				arrivalBytes_ = length - 2;
 
 				// Reposition offset at packet type field
 				offset_--;
-			} else // We expect the packet to be encrypted, because the caller has given us a decryptor
+			} else if(decryptionGcm_ != null)
 			{
-				if(encryptedData_ == null)
-					encryptedData_ = new byte[data.length];
+				// AES-GCM leaves the length in the clear but authenticates it, and decrypts and
+				// authenticates the rest in the same pass
+				int blockSize = decryptor_.getBlockSize();
+				int length = in.readInt();
+				firstBlockTime_ = System.currentTimeMillis();
+				if(length < 5 || length > 32768 || length % blockSize != 0)
+				{
+					System.err.println("fromNetwork: Packet length " + length + " is fishy. Something's gone wrong.");
+					throw new IOException();
+				}
 				
+				int tagSize = decryptionGcm_.getMacSize();
+				ensureSize(length + 4 + tagSize);
+				offset_ = 0;
+				putInt(length);
+				in.readFully(data, 4, length + tagSize);
+				realLength_ = length + 4;
+				arrivalBytes_ = length + tagSize;
+				
+				decryptionGcm_.processAADBytes(data, 0, 4);
+				decryptionGcm_.processBlocks(data, 4, data, 4, length / blockSize);
+				checkMac(data, realLength_);
+			} else if(decryptionEtm_)
+			{
+				// Encrypt-then-MAC leaves the length in the clear and MACs the ciphertext,
+				// so nothing needs decrypting until we know the packet is genuine
+				int blockSize = decryptor_.getBlockSize();
+				int length = in.readInt();
+				firstBlockTime_ = System.currentTimeMillis();
+				if(length < 5 || length > 32768 || length % blockSize != 0)
+				{
+					System.err.println("fromNetwork: Packet length " + length + " is fishy. Something's gone wrong.");
+					throw new IOException();
+				}
+				
+				ensureSize(length + 4);
+				offset_ = 0;
+				putInt(length);
+				in.readFully(data, 4, length);
+				realLength_ = length + 4;
+				
+				if(macData_ == null)
+					macData_ = new byte[decryptionHMac_.getMacSize()];
+				in.readFully(macData_, 0, macData_.length);
+				arrivalBytes_ = length + macData_.length;
+				
+				// MAC is M(key, seqno || length || encrypted data)
+				startMac(decryptionHMac_);
+				decryptionHMac_.update(data, 0, realLength_);
+				checkMac(macData_, 0);
+				
+				decryptor_.processBlocks(data, 4, data, 4, length / blockSize);
+			} else // We expect the packet to be encrypted, because the caller has given us a decryptor
+			{
 				// Get first block so we can decrypt it and read the length field, so we know
-				// how many more blocks to fetch (if any).
+				// how many more blocks to fetch (if any).  Everything is decrypted in place.
 				int blockSize = decryptor_.getBlockSize();
-				in.readFully(encryptedData_, 0, blockSize);
+				in.readFully(data, 0, blockSize);
 
 //				System.err.print("fromNetwork: First encrypted block of this packet is:");
-//				Main.hexDump(encryptedData_, 0, blockSize);
+//				Main.hexDump(data, 0, blockSize);
 				
-				decryptor_.processBlock(encryptedData_, 0, data, 0);
+				firstBlockTime_ = System.currentTimeMillis();
+				decryptor_.processBlock(data, 0, data, 0);
 				offset_ = 0;
 
 //				System.err.print("fromNetwork: First decrypted block of this packet is:");
@@ -200,22 +332,21 @@ public class SSH2
 					throw new IOException();
 				}
 				
-				// Resize data buffers if necessary
-				if(encryptedData_.length < length)
+				// Resize data buffer if necessary
+				if(data.length < length + 4)
 				{
-					encryptedData_ = biggerBuffer(encryptedData_, length * 2);
-					// biggerBuffer() copies the old data over.  We only need to copy the first
-					// block, so we avoid copying the rest of it by replacing the buffer manually
+					// We only need to copy the first block, so we avoid copying the rest of
+					// it by replacing the buffer manually
 					byte[] data2 = new byte[length * 2];
 					System.arraycopy(data, 0, data2, 0, blockSize);
 					data = data2;
 				}
 				
-				int numBlocksLeft = (length + 4) / blockSize - 1;
+				realLength_ = length + 4;
+				int numBlocksLeft = realLength_ / blockSize - 1;
 				// System.err.println("fromNetwork: There are " + numBlocksLeft + " blocks left to read, not including the MAC");
-				in.readFully(encryptedData_, blockSize, numBlocksLeft * blockSize);
-				for(int i = 1; i <= numBlocksLeft; i++)
-					decryptor_.processBlock(encryptedData_, i * blockSize, data, i * blockSize);
+				in.readFully(data, blockSize, numBlocksLeft * blockSize);
+				decryptor_.processBlocks(data, blockSize, data, blockSize, numBlocksLeft);
 				
 				// Read the MAC.
 				if(macData_ == null)
@@ -223,27 +354,12 @@ public class SSH2
 				
 				// System.err.println("fromNetwork: Reading mac of size " + macData_.length);
 				in.readFully(macData_, 0, macData_.length);	
+				arrivalBytes_ = numBlocksLeft * blockSize + macData_.length;
 				
-				if(computedMac_ == null)
-					computedMac_ = new byte[macData_.length];
-
 				// MAC is M(key, seqno || data) where M is some hash function
-				decryptionHMac_.update(intToByteArray(sequenceNum_), 0, 4);
-				decryptionHMac_.update(data, 0, blockSize + blockSize * numBlocksLeft);
-				decryptionHMac_.doFinal(computedMac_, 0);
-				// decryptionHMac_.reset(); // ??
-				
-				//System.err.println("Computed MAC:");
-				//SSH2Connection.hexDump(computedMac_, 0, computedMac_.length);
-				//System.err.println("Received MAC:");
-				//SSH2Connection.hexDump(macData_, 0, macData_.length);
-				
-				// Compare the computed and received MACs - if they don't match, the connection has been messed up
-				for(int i = 0; i < computedMac_.length; i++)
-				{
-					if(computedMac_[i] != macData_[i])
-						throw new IOException("Connection is messed up (MACs do not match)");
-				}
+				startMac(decryptionHMac_);
+				decryptionHMac_.update(data, 0, realLength_);
+				checkMac(macData_, 0);
 			}
 			
 			//offset_ = 0;
@@ -252,11 +368,228 @@ public class SSH2
 			//int packetType = getByte();
 			//offset_--;
 			// System.err.println("fromNetwork: length = " + length + " padding = " + paddingLength + " type = " + packetType);
+			arrivalMillis_ = (int) (System.currentTimeMillis() - firstBlockTime_);
+			if(decompressor_ != null)
+				decompress();
 			offset_ = 5; // Point at packet type
 			
 			blessed_ = true; // Packets received from the network are already blessed
 		}
 		
+		/**
+		 * Populates this packet from whatever bytes have arrived so far, for callers that
+		 * can't block waiting for a whole packet.  Keep calling this as bytes come in; it
+		 * remembers where it was, takes only as many bytes as the current packet needs, and
+		 * sets isComplete() once it has checked the MAC on a whole one.  Handle that packet
+		 * before calling this again, because the next call starts on the next packet.
+		 * 
+		 * Each cipher block is decrypted and run through the MAC as soon as all of it is
+		 * here, so by the time the last piece of a big packet turns up there's only a block
+		 * or two left to do.  The sequence number has to be set before the first byte.
+		 * 
+		 * @param b Bytes from the network
+		 * @param off Where they start in b
+		 * @param len How many there are
+		 * @return How many bytes were used, which is less than len if a packet was finished
+		 * @throws IOException If the packet is garbled or the MAC doesn't match
+		 * @see fromNetwork
+		 */
+		public int fromBytes(byte[] b, int off, int len) throws IOException
+		{
+			if(received_ == 0)
+			{
+				reset();
+				complete_ = false;
+				decrypted_ = 0;
+			}
+			
+			boolean encrypted = (useEncryption_ == true && decryptor_ != null);
+			boolean gcm = encrypted && decryptionGcm_ != null;
+			boolean etm = encrypted && decryptionEtm_ && gcm == false;
+			int blockSize = encrypted ? decryptor_.getBlockSize() : 8;
+			// We need one cipher block to find out how long the packet is, unless the
+			// length isn't encrypted
+			int firstPart = (etm || gcm) ? 4 : blockSize;
+			int macSize = gcm ? decryptionGcm_.getMacSize() : encrypted ? decryptionHMac_.getMacSize() : 0;
+			int used = 0;
+			
+			if(expected_ < 0)
+			{
+				used = Math.min(len, firstPart - received_);
+				System.arraycopy(b, off, data, received_, used);
+				received_ += used;
+				if(received_ < firstPart)
+					return used;
+				
+				firstBlockTime_ = System.currentTimeMillis();
+				if(gcm)
+				{
+					decryptionGcm_.processAADBytes(data, 0, firstPart);
+					decrypted_ = firstPart;
+				} else if(encrypted)
+				{
+					if(etm == false)
+						decryptor_.processBlock(data, 0, data, 0);
+					// MAC is M(key, seqno || data), so it can be fed a block at a time
+					startMac(decryptionHMac_);
+					decryptionHMac_.update(data, 0, firstPart);
+					decrypted_ = firstPart;
+				}
+				offset_ = 0;
+				int length = getInt();
+				if(length < 5 || length > 32768 || (encrypted && ((etm || gcm) ? length : length + 4) % blockSize != 0))
+				{
+					System.err.println("fromBytes: Packet length " + length + " is fishy. Something's gone wrong.");
+					throw new IOException("Bad packet length");
+				}
+				
+				expected_ = length + 4 + macSize;
+				if(data.length < expected_)
+				{
+					// Only the first part is worth keeping
+					byte[] data2 = new byte[expected_ * 2];
+					System.arraycopy(data, 0, data2, 0, received_);
+					data = data2;
+				}
+			}
+			
+			int n = Math.min(len - used, expected_ - received_);
+			System.arraycopy(b, off + used, data, received_, n);
+			received_ += n;
+			used += n;
+			
+			int packetLength = expected_ - macSize;
+			if(etm)
+			{
+				// The MAC is of the ciphertext, so it can take bytes as they come
+				int ready = Math.min(received_, packetLength) - decrypted_;
+				if(ready > 0)
+				{
+					decryptionHMac_.update(data, decrypted_, ready);
+					decrypted_ += ready;
+				}
+			} else if(encrypted)
+			{
+				// Deal with whatever whole blocks have turned up since last time.  GCM
+				// authenticates them as it decrypts them.
+				int blocks = (Math.min(received_, packetLength) - decrypted_) / blockSize;
+				if(blocks > 0)
+				{
+					decryptor_.processBlocks(data, decrypted_, data, decrypted_, blocks);
+					if(gcm == false)
+						decryptionHMac_.update(data, decrypted_, blocks * blockSize);
+					decrypted_ += blocks * blockSize;
+				}
+			}
+			if(received_ < expected_)
+				return used;
+			
+			// We have the whole packet
+			if(encrypted)
+			{
+				checkMac(data, packetLength);
+				if(etm)
+					decryptor_.processBlocks(data, 4, data, 4, (packetLength - 4) / blockSize);
+			}
+			
+			realLength_ = packetLength;
+			arrivalBytes_ = expected_ - firstPart;
+			arrivalMillis_ = (int) (System.currentTimeMillis() - firstBlockTime_);
+			// Start on the next packet even if this one doesn't inflate
+			received_ = 0;
+			expected_ = -1;
+			if(decompressor_ != null)
+				decompress();
+			offset_ = 5; // Point at packet type
+			blessed_ = true;
+			complete_ = true;
+			return used;
+		}
+		
+		/**
+		 * Starts the MAC of a packet with its sequence number.  HMAC takes it as the first
+		 * four bytes of the message; UMAC takes it as an 8-byte nonce instead.
+		 */
+		private void startMac(Mac mac)
+		{
+			if(mac instanceof UMac)
+			{
+				if(nonce_ == null)
+					nonce_ = new byte[8];
+				nonce_[4] = (byte) (sequenceNum_ >>> 24);
+				nonce_[5] = (byte) (sequenceNum_ >>> 16);
+				nonce_[6] = (byte) (sequenceNum_ >>> 8);
+				nonce_[7] = (byte) sequenceNum_;
+				((UMac) mac).setNonce(nonce_);
+			} else
+				mac.update(intToByteArray(sequenceNum_), 0, 4);
+		}
+		
+		/**
+		 * Finishes the MAC of a received packet and compares it with the one the server sent.
+		 * With AES-GCM it's the tag instead.
+		 * 
+		 * @param mac Where the server's MAC is
+		 * @param off Where in mac it starts
+		 * @throws IOException If they don't match
+		 */
+		private void checkMac(byte[] mac, int off) throws IOException
+		{
+			if(decryptionGcm_ != null)
+			{
+				if(computedMac_ == null)
+					computedMac_ = new byte[decryptionGcm_.getMacSize()];
+				decryptionGcm_.doFinal(computedMac_, 0);
+			} else
+			{
+				if(computedMac_ == null)
+					computedMac_ = new byte[decryptionHMac_.getMacSize()];
+				decryptionHMac_.doFinal(computedMac_, 0);
+			}
+			
+			// If they don't match, the connection has been messed up
+			for(int i = 0; i < computedMac_.length; i++)
+			{
+				if(computedMac_[i] != mac[off + i])
+					throw new IOException("Connection is messed up (MACs do not match)");
+			}
+		}
+		
+		/**
+		 * Replaces the payload of a received packet with what it inflates to.  The padding
+		 * goes, since nobody needs it once the MAC has been checked, and the length fields are
+		 * made to match.
+		 * 
+		 * @throws IOException If the payload doesn't inflate
+		 */
+		private void decompress() throws IOException
+		{
+			offset_ = 0;
+			int length = getInt();
+			int paddingLength = getByte() & 0xff;
+			int n = decompressor_.decompress(data, 5, length - paddingLength - 1);
+			if(n == 0)
+				throw new IOException("Compressed packet has nothing in it");
+			
+			realLength_ = 5;
+			ensureSize(5 + n);
+			System.arraycopy(decompressor_.getOutput(), 0, data, 5, n);
+			realLength_ = 5 + n;
+			offset_ = 0;
+			putInt(n + 1);
+			putByte((byte) 0);
+		}
+		
+		/**
+		 * Tells whether the last call to fromBytes() finished a packet.
+		 * 
+		 * @return true if this holds a whole received packet
+		 */
+		public boolean isComplete()
+		{
+			return complete_;
+		}
+		
 		/**
 		 * Bless and send this packet.
 		 * 
@@ -270,11 +603,15 @@ public class SSH2
 			
 			if(useEncryption_ == false || encryptor_ == null)
 				out.write(data, 0, realLength_);
-			else
+			else if(encryptionGcm_ != null)
+			{
+				// bless() left the tag in data after the packet
+				out.write(data, 0, realLength_ + encryptionGcm_.getMacSize());
+			} else
 			{
 //				System.err.println("send: [" + sequenceNum_ + "] Sending encrypted data of length " + realLength_ + " and MAC length " + macData_.length);
-				// Send encrypted data
-				out.write(encryptedData_, 0, realLength_);
+				// Send encrypted data, which bless() left in data
+				out.write(data, 0, realLength_);
 				// Send MAC
 				out.write(macData_, 0, macData_.length);
 //				System.err.print("      MAC is");
@@ -305,7 +642,7 @@ public class SSH2
 		{
 			int oldOffset = offset_;
 			offset_ = 5;
-			int ret = getByte();
+			int ret = getByte() & 0xff;
 			offset_ = oldOffset;
 			return ret;
 		}
@@ -351,6 +688,7 @@ public class SSH2
 			typeNames_[92] = "CHANNEL_OPEN_FAILURE";
 			typeNames_[93] = "CHANNEL_WINDOW_ADJUST";
 			typeNames_[94] = "CHANNEL_DATA";
+			typeNames_[95] = "CHANNEL_EXTENDED_DATA";
 			typeNames_[96] = "CHANNEL_EOF";
 			typeNames_[97] = "CHANNEL_CLOSE";
 			typeNames_[98] = "CHANNEL_REQUEST";
@@ -393,10 +731,21 @@ public class SSH2
 			if(blessed_)
 				return;
 			
+			if(compressor_ != null)
+			{
+				// Everything after the padlen field is the payload, so far
+				int n = compressor_.compress(data, 5, realLength_ - 5);
+				realLength_ = 5;
+				ensureSize(5 + n);
+				System.arraycopy(compressor_.getOutput(), 0, data, 5, n);
+				realLength_ = 5 + n;
+			}
+			
 			int blockSize;
+			boolean encrypted = (useEncryption_ == true && encryptor_ != null);
 			
 			// XXX: block size should be less than 256
-			if(useEncryption_ == true && encryptor_ != null)
+			if(encrypted)
 				blockSize = encryptor_.getBlockSize();
 			else
 				blockSize = 8;
@@ -406,7 +755,8 @@ public class SSH2
 			// length_of_DATA is LENGTH - PADLEN
 			// PADLEN ensures that length_of_DATA + 5 is multiple of 8 
 			// There is no MAC, so we just round up.  Padding has to be 4-255 bytes.
-			int padFrom = realLength_;
+			// With encrypt-then-MAC or GCM the length field isn't encrypted, so it doesn't count.
+			int padFrom = (encrypted && (encryptionEtm_ || encryptionGcm_ != null)) ? realLength_ - 4 : realLength_;
 			int paddingLength = blockSize - (padFrom % blockSize);
 			if(paddingLength < 4)
 				paddingLength += blockSize;
@@ -418,7 +768,7 @@ public class SSH2
 
 			// Length field is realSize + paddingLength - 4
 			// We subtract the size of the length field itself
-			int length = padFrom + paddingLength - 4;
+			int length = realLength_ + paddingLength - 4;
 			offset_ = 0;
 			putInt(length);
 			putByte((byte) (paddingLength));
@@ -428,7 +778,7 @@ public class SSH2
 
 			// Now we're done padding, so we are of a size friendly to the block cipher
 			// If we have an encryptor, use it
-			if(useEncryption_ == true && encryptor_ != null)
+			if(encrypted)
 			{
 				// TODO: Fill padding with random data!
 				
@@ -437,7 +787,19 @@ public class SSH2
 //				System.err.println("bless: " + realLength_ + " bytes of data to encrypt, in " + numBlocks
 //						+ " blocks of " + blockSize + " bytes each");
 
-				// We compute the MAC before we encrypt the data
+				if(encryptionGcm_ != null)
+				{
+					// One pass encrypts and authenticates everything but the length, which is
+					// authenticated as additional data.  The tag goes after the packet, so
+					// send() can write it all at once.
+					ensureSize(realLength_ + encryptionGcm_.getMacSize());
+					encryptionGcm_.processAADBytes(data, 0, 4);
+					encryptionGcm_.processBlocks(data, 4, data, 4, (realLength_ - 4) / blockSize);
+					encryptionGcm_.doFinal(data, realLength_);
+					blessed_ = true;
+					return;
+				}
+				
 				if(encryptionHMac_ == null)
 				{
 					System.err.println("bless: Encryption is on and I have no way to make a MAC. This is a bug.");
@@ -447,17 +809,27 @@ public class SSH2
 				if(macData_ == null)
 					macData_ = new byte[encryptionHMac_.getMacSize()];
 				
+				if(encryptionEtm_)
+				{
+					// Encrypt everything but the length, then MAC it all as it will be sent:
+					// M(key, seqno || length || encrypted data)
+					encryptor_.processBlocks(data, 4, data, 4, (realLength_ - 4) / blockSize);
+					startMac(encryptionHMac_);
+					encryptionHMac_.update(data, 0, realLength_);
+					encryptionHMac_.doFinal(macData_, 0);
+					blessed_ = true;
+					return;
+				}
+				
+				// Otherwise we compute the MAC before we encrypt the data.
 				// MAC is M(key, seqno || unenc_msg) where M is MAC function
-				encryptionHMac_.update(SSH2.intToByteArray(sequenceNum_), 0, 4);
+				startMac(encryptionHMac_);
 				encryptionHMac_.update(data, 0, realLength_);
 				encryptionHMac_.doFinal(macData_, 0); // Get MAC data out
 				
-				// Encrypt the data
-				if(encryptedData_ == null || encryptedData_.length < realLength_)
-					encryptedData_ = new byte[realLength_];
-				
-				for(int i = 0; i < numBlocks; i++)
-					encryptor_.processBlock(data, i * blockSize, encryptedData_, i * blockSize);
+				// Encrypt the data in place.  The plaintext is gone after this, but nobody
+				// looks at a packet again once it's blessed.
+				encryptor_.processBlocks(data, 0, data, 0, numBlocks);
 			}			
 			
 			blessed_ = true;
@@ -701,7 +1073,16 @@ public class SSH2
 		 */
 		public byte[] toExchangeHash()
 		{
-			SHA1Digest digest = new SHA1Digest();
+			return toExchangeHash(new SHA1Digest());
+		}
+		
+		/**
+		 * Same, with the hash the key exchange method calls for.
+		 * 
+		 * @param digest A fresh digest
+		 */
+		public byte[] toExchangeHash(Digest digest)
+		{
 			byte[] digestValue = new byte[digest.getDigestSize()];
 			digest.update(data, 5, realLength_ - 5);
 			digest.doFinal(digestValue, 0);
@@ -710,16 +1091,32 @@ public class SSH2
 
 		/**
 		 * Encrypted sent packets have a MAC at the end. This function lets you set the
-		 * HMAC you want, allowing for the possibility of different hashes (e.g. MD5, SHA-1)
+		 * MAC you want, allowing for the possibility of different hashes (e.g. MD5, SHA-1)
+		 * or UMAC
 		 * 
 		 * @param mac
 		 * @param hmacKey
 		 */
-		public void setEncryptionHMac(HMac mac, byte[] hmacKey)
+		public void setEncryptionHMac(Mac mac, byte[] hmacKey)
+		{
+			setEncryptionHMac(mac, hmacKey, false);
+		}
+		
+		/**
+		 * Same, for either kind of MAC.
+		 * 
+		 * @param mac
+		 * @param hmacKey
+		 * @param encryptThenMac true for the -etm@openssh.com MACs, which send the packet
+		 * length unencrypted and MAC the ciphertext
+		 */
+		public void setEncryptionHMac(Mac mac, byte[] hmacKey, boolean encryptThenMac)
 		{
 			encryptionHMac_ = mac;
+			encryptionEtm_ = encryptThenMac;
 			KeyParameter kp = new KeyParameter(hmacKey);
 			encryptionHMac_.init(kp);
+			macData_ = null; // A new key exchange might have picked a different size
 		}
 		
 		/**
@@ -729,25 +1126,114 @@ public class SSH2
 		 * @param mac
 		 * @param hmacKey
 		 */
-		public void setDecryptionHMac(HMac mac, byte[] hmacKey)
+		public void setDecryptionHMac(Mac mac, byte[] hmacKey)
+		{
+			setDecryptionHMac(mac, hmacKey, false);
+		}
+		
+		/**
+		 * Same, for either kind of MAC.
+		 * 
+		 * @see setEncryptionHMac(Mac, byte[], boolean)
+		 * @param mac
+		 * @param hmacKey
+		 * @param encryptThenMac
+		 */
+		public void setDecryptionHMac(Mac mac, byte[] hmacKey, boolean encryptThenMac)
 		{
 			decryptionHMac_ = mac;
+			decryptionEtm_ = encryptThenMac;
 			KeyParameter kp = new KeyParameter(hmacKey);
 			decryptionHMac_.init(kp);
+			macData_ = computedMac_ = null;
 		}
 
 		/**
-		 * Provides an object that will decrypt this packet.
+		 * Provides an object that will decrypt this packet.  As with setEncryptor(), a
+		 * GCMBlockCipher checks packets itself.
 		 * 
 		 * @param decryptor
 		 */
-		public void setDecryptor(CBCBlockCipher decryptor)
+		public void setDecryptor(BlockCipher decryptor)
 		{
-			decryptor_ = decryptor;			
+			decryptor_ = decryptor;
+			decryptionGcm_ = (decryptor instanceof GCMBlockCipher) ? (GCMBlockCipher) decryptor : null;
+			computedMac_ = null; // The tag needn't be the size the MAC was
 		}
 		
 	} // End of Packet definition
 	
+	/**
+	 * Turns bytes that arrive in pieces of any size into whole packets, for callers
+	 * that get data pushed at them instead of reading it.  All the real work is in
+	 * Packet.fromBytes(); this keeps count of the receive sequence numbers, so the MAC
+	 * check works across chunks, and hands each finished packet to a Handler.
+	 * 
+	 * @author Tom Joseph <ttjoseph@gmail.com>
+	 */
+	public static class PacketDecoder
+	{
+		public interface Handler
+		{
+			/**
+			 * Called with each packet as soon as its MAC checks out.  The packet is reused
+			 * for the next one, so don't hang on to it.
+			 * 
+			 * @param p The packet, with the offset pointing at the type field
+			 * @throws IOException
+			 */
+			public void handlePacket(Packet p) throws IOException;
+		}
+		
+		private final Packet packet_;
+		private final Handler handler_;
+		private int nextSequenceNumber_;
+		/** Whether packet_ has part of a packet in it */
+		private boolean inPacket_ = false;
+		
+		/**
+		 * @param packet The packet to decode into.  Its decryptor and MAC can be changed
+		 *        between packets, e.g. from the handler when NEWKEYS turns up.
+		 * @param firstSequenceNumber Sequence number of the next packet to arrive
+		 * @param handler Who gets the packets
+		 */
+		public PacketDecoder(Packet packet, int firstSequenceNumber, Handler handler)
+		{
+			packet_ = packet;
+			nextSequenceNumber_ = firstSequenceNumber;
+			handler_ = handler;
+		}
+		
+		/**
+		 * Takes some bytes from the network.  Any packets they finish go to the handler
+		 * before this returns; whatever is left over is kept for next time.
+		 * 
+		 * @param b
+		 * @param off
+		 * @param len
+		 * @throws IOException If a packet is garbled or its MAC doesn't match, or the handler throws
+		 */
+		public void feed(byte[] b, int off, int len) throws IOException
+		{
+			int end = off + len;
+			while(off < end)
+			{
+				if(inPacket_ == false)
+				{
+					packet_.setSequenceNumber(nextSequenceNumber_++);
+					inPacket_ = true;
+				}
+				
+				off += packet_.fromBytes(b, off, end - off);
+				if(packet_.isComplete())
+				{
+					inPacket_ = false;
+					handler_.handlePacket(packet_);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Makes a new buffer and copies the contents of the old one into it.
 	 * If the requested length is less than the current length of the buffer, just
@@ -784,17 +1270,57 @@ public class SSH2
 	public static byte[] generateKeyWithSHA1(BigInteger sharedSecret, byte[] exchangeHash,
 			byte keyType, byte[] sessionID)
 	{
-		SHA1Digest sha1 = new SHA1Digest();
-		byte[] buf = new byte[sha1.getDigestSize()];
+		return generateKey(new SHA1Digest(), sharedSecret, exchangeHash, keyType, sessionID, 0);
+	}
+	
+	/**
+	 * Generates a key of at least the given length, for when one SHA-1 hash isn't enough
+	 * (e.g. a 256-bit AES key).  Per RFC 4253 section 7.2, each following 20 bytes is
+	 * the hash of the shared secret, the exchange hash and all the key so far.
+	 * 
+	 * @param length How many bytes of key are needed
+	 * @return The key, which may be a few bytes longer than asked for
+	 * @see generateKeyWithSHA1(BigInteger, byte[], byte, byte[])
+	 */
+	public static byte[] generateKeyWithSHA1(BigInteger sharedSecret, byte[] exchangeHash,
+			byte keyType, byte[] sessionID, int length)
+	{
+		return generateKey(new SHA1Digest(), sharedSecret, exchangeHash, keyType, sessionID, length);
+	}
+	
+	/**
+	 * Generates a key with whatever hash the key exchange method uses: SHA-1 for the
+	 * old methods, SHA-256 for curve25519-sha256 and so on.
+	 * 
+	 * @param digest A fresh digest, which this uses up
+	 * @param length How many bytes of key are needed; at least one hash's worth comes back
+	 * @see generateKeyWithSHA1(BigInteger, byte[], byte, byte[], int)
+	 */
+	public static byte[] generateKey(Digest digest, BigInteger sharedSecret, byte[] exchangeHash,
+			byte keyType, byte[] sessionID, int length)
+	{
+		int digestSize = digest.getDigestSize();
+		int blocks = (length > digestSize) ? (length + digestSize - 1) / digestSize : 1;
+		byte[] key = new byte[blocks * digestSize];
 		byte[] ssba = sharedSecret.toByteArray();
-		sha1.update(intToByteArray(ssba.length), 0, 4);
-		sha1.update(ssba, 0, ssba.length);
-		sha1.update(exchangeHash, 0, exchangeHash.length);
-		sha1.update(keyType);
-		sha1.update(sessionID, 0, sessionID.length);
-		sha1.doFinal(buf, 0);
-		
-		return buf;
+		
+		digest.update(intToByteArray(ssba.length), 0, 4);
+		digest.update(ssba, 0, ssba.length);
+		digest.update(exchangeHash, 0, exchangeHash.length);
+		digest.update(keyType);
+		digest.update(sessionID, 0, sessionID.length);
+		digest.doFinal(key, 0);
+		
+		for(int have = digestSize; have < key.length; have += digestSize)
+		{
+			digest.update(intToByteArray(ssba.length), 0, 4);
+			digest.update(ssba, 0, ssba.length);
+			digest.update(exchangeHash, 0, exchangeHash.length);
+			digest.update(key, 0, have);
+			digest.doFinal(key, have);
+		}
+		
+		return key;
 	}
 
 	/**
@@ -819,6 +1345,31 @@ public class SSH2
 	 * Turns this Packet into a KEX_INIT packet.
 	 */
 	public static void becomeKexInitPacket(SSH2.Packet p)
+	{
+		becomeKexInitPacket(p, SSH2Algorithms.COMPRESSION);
+	}
+	
+	/**
+	 * Same, with our compression methods in a different order of preference.
+	 * 
+	 * @param compression SSH2Algorithms.COMPRESSION or COMPRESSION_LAST
+	 */
+	public static void becomeKexInitPacket(SSH2.Packet p, String[] compression)
+	{
+		becomeKexInitPacket(p, SSH2Algorithms.KEX, SSH2Algorithms.HOST_KEY, compression, false);
+	}
+	
+	/**
+	 * Same, with every list we might want to reorder given explicitly.
+	 * 
+	 * @param kex SSH2Algorithms.KEX, in any order
+	 * @param hostKey SSH2Algorithms.HOST_KEY, in any order
+	 * @param compression SSH2Algorithms.COMPRESSION or COMPRESSION_LAST
+	 * @param firstKexPacketFollows Whether we're about to send the first packet of the
+	 * key exchange method at the front of kex without waiting for the server's KEXINIT
+	 */
+	public static void becomeKexInitPacket(SSH2.Packet p, String[] kex, String[] hostKey, String[] compression,
+			boolean firstKexPacketFollows)
 	{
 		p.reset();
 		p.putByte((byte) SSH2.MSG_KEXINIT);
@@ -829,18 +1380,18 @@ public class SSH2
 		p.putInt(random_.nextInt());
 
 		// Tell the other side about the protocols we support
-		p.putString("diffie-hellman-group-exchange-sha1"); // Key exchange algorithms
-		p.putString("ssh-dss"); // Server key algorithms
-		p.putString("aes128-cbc"); // Client-to-server encryption
-		p.putString("aes128-cbc"); // Server-to-client
-		p.putString("hmac-sha1"); // Client-to-server MAC
-		p.putString("hmac-sha1"); // Server-to-client MAC
-		p.putString("none"); // Client-to-server compression
-		p.putString("none"); // Server-to-client compression
+		p.putString(SSH2Algorithms.toNameList(kex)); // Key exchange algorithms
+		p.putString(SSH2Algorithms.toNameList(hostKey)); // Server key algorithms
+		p.putString(SSH2Algorithms.toNameList(SSH2Algorithms.CIPHERS)); // Client-to-server encryption
+		p.putString(SSH2Algorithms.toNameList(SSH2Algorithms.CIPHERS)); // Server-to-client
+		p.putString(SSH2Algorithms.toNameList(SSH2Algorithms.MACS)); // Client-to-server MAC
+		p.putString(SSH2Algorithms.toNameList(SSH2Algorithms.MACS)); // Server-to-client MAC
+		p.putString(SSH2Algorithms.toNameList(compression)); // Client-to-server compression
+		p.putString(SSH2Algorithms.toNameList(compression)); // Server-to-client compression
 		p.putString(""); // Client-to-server languages
 		p.putString(""); // Server-to-client languages
 	
-		p.putByte((byte) 0); // kex byte
+		p.putByte((byte) (firstKexPacketFollows ? 1 : 0)); // first_kex_packet_follows
 		p.putInt(0); // reserved field
 	}
 	
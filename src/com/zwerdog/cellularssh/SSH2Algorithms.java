@@ -0,0 +1,315 @@
+package com.zwerdog.cellularssh;
+import java.util.Vector;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.macs.UMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
+
+/**
+ * The algorithms we support, in the order we prefer them, and the negotiation rules
+ * for picking one of each kind during key exchange (RFC 4253 section 7.1).
+ *
+ * To add an algorithm, put its name in the right list and teach the matching
+ * factory method below how to make one.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see SSH2Connection
+ */
+public class SSH2Algorithms
+{
+	/**
+	 * Curve25519 first: it's far less work than any modPow.  Then the fixed groups, which
+	 * like Curve25519 don't need a round trip to agree on a group, smallest first because
+	 * a 4096-bit modPow takes a while on a phone.  Group exchange is the last resort.
+	 */
+	public static final String[] KEX = { "curve25519-sha256", "curve25519-sha256@libssh.org",
+		"diffie-hellman-group14-sha256", "diffie-hellman-group16-sha512",
+		"diffie-hellman-group-exchange-sha1" };
+	/**
+	 * We don't check the host key signature yet, so any of these will do.  The rsa-sha2
+	 * names (RFC 8332) are the same RSA keys signing with SHA-2, which is all that newer
+	 * servers offer for them, and what most servers put first.
+	 */
+	public static final String[] HOST_KEY = { "rsa-sha2-512", "rsa-sha2-256", "ssh-rsa", "ssh-dss" };
+	/**
+	 * AES-GCM first: it encrypts and authenticates in one pass over the packet, where the
+	 * others need a MAC as well.  Then CTR: it doesn't chain blocks together, and some
+	 * servers don't offer CBC anymore.
+	 */
+	public static final String[] CIPHERS = { "aes128-gcm@openssh.com", "aes256-gcm@openssh.com",
+		"aes128-ctr", "aes192-ctr", "aes256-ctr", "aes128-cbc" };
+	private static final int[] CIPHER_KEY_LENGTHS = { 16, 32, 16, 24, 32, 16 };
+	/**
+	 * Encrypt-then-MAC first, so a damaged or forged packet is thrown out before we spend
+	 * anything decrypting it.  UMAC before HMAC: it's a few multiplies per eight bytes
+	 * and one AES block per packet, against a full hash compression per 64 bytes.
+	 * SHA-256 before SHA-512, which is all 64-bit arithmetic and slow on a 32-bit phone.
+	 * SHA-1 is only for servers that offer nothing better.
+	 */
+	public static final String[] MACS = { "umac-64-etm@openssh.com", "umac-128-etm@openssh.com",
+		"hmac-sha2-256-etm@openssh.com", "hmac-sha2-512-etm@openssh.com",
+		"umac-64@openssh.com", "umac-128@openssh.com", "hmac-sha2-256", "hmac-sha2-512",
+		"hmac-sha1-etm@openssh.com", "hmac-sha1" };
+	private static final int[] MAC_KEY_LENGTHS = { 16, 16, 32, 64, 16, 16, 32, 64, 20, 20 };
+	/**
+	 * Compression saves a lot on terminal output, which is mostly text.  The delayed kind
+	 * first: it doesn't start until we've logged in, so it isn't a way in for anybody who
+	 * hasn't, and it's the one OpenSSH servers offer.
+	 */
+	public static final String[] COMPRESSION = { "zlib@openssh.com", "zlib", "none" };
+	/** For when compression has turned out to cost more time than it saves */
+	public static final String[] COMPRESSION_LAST = { "none", "zlib@openssh.com", "zlib" };
+
+	/**
+	 * Turns a list of names into an SSH name-list, which is the names separated by commas.
+	 *
+	 * @param names
+	 * @return The name-list
+	 */
+	public static String toNameList(String[] names)
+	{
+		StringBuffer list = new StringBuffer();
+		for(int i = 0; i < names.length; i++)
+		{
+			if(i > 0)
+				list.append(',');
+			list.append(names[i]);
+		}
+		return list.toString();
+	}
+
+	/**
+	 * Splits an SSH name-list into the names in it.
+	 *
+	 * @param list Comma-separated names, possibly empty
+	 * @return The names, in the order they appeared
+	 */
+	public static String[] parseNameList(String list)
+	{
+		Vector names = new Vector();
+		int start = 0;
+		while(start < list.length())
+		{
+			int end = list.indexOf(',', start);
+			if(end < 0)
+				end = list.length();
+			if(end > start)
+				names.addElement(list.substring(start, end));
+			start = end + 1;
+		}
+
+		String[] ret = new String[names.size()];
+		names.copyInto(ret);
+		return ret;
+	}
+
+	/**
+	 * Picks the first algorithm on the client's list that is also on the server's,
+	 * which is how SSH2 says to do it.
+	 *
+	 * @param client Our names, most preferred first
+	 * @param server The server's names
+	 * @return The chosen name, or null if there's nothing in common
+	 */
+	public static String choose(String[] client, String[] server)
+	{
+		for(int i = 0; i < client.length; i++)
+		{
+			for(int j = 0; j < server.length; j++)
+			{
+				if(client[i].equals(server[j]))
+					return client[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reorders one of our lists so a given name comes first, for when we want to match
+	 * what we expect the server to prefer.
+	 *
+	 * @param names One of our lists, which isn't changed
+	 * @param first The name to move to the front
+	 * @return A copy of names with first at the front, or null if first isn't in it
+	 */
+	public static String[] preferring(String[] names, String first)
+	{
+		for(int i = 0; i < names.length; i++)
+		{
+			if(names[i].equals(first))
+			{
+				String[] ret = new String[names.length];
+				ret[0] = first;
+				System.arraycopy(names, 0, ret, 1, i);
+				System.arraycopy(names, i + 1, ret, i + 1, names.length - i - 1);
+				return ret;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tells whether a key exchange method is one of the Curve25519 ones, which differ
+	 * only in name.
+	 *
+	 * @param name One of KEX
+	 */
+	public static boolean isCurve25519(String name)
+	{
+		return name.startsWith("curve25519-sha256");
+	}
+
+	/**
+	 * Makes the hash a key exchange method uses for the exchange hash and for deriving keys.
+	 *
+	 * @param name One of KEX
+	 * @return A fresh digest
+	 */
+	public static Digest newKexDigest(String name)
+	{
+		indexOf(KEX, name); // Make sure we know it
+		if(name.endsWith("-sha1"))
+			return new SHA1Digest();
+		else if(name.endsWith("-sha512"))
+			return new SHA512Digest();
+		else
+			return new SHA256Digest();
+	}
+
+	/**
+	 * Returns how many bytes of key the named cipher needs.
+	 *
+	 * @param name One of CIPHERS
+	 * @return Key length in bytes
+	 */
+	public static int getCipherKeyLength(String name)
+	{
+		return CIPHER_KEY_LENGTHS[indexOf(CIPHERS, name)];
+	}
+
+	/**
+	 * Returns how many bytes of IV the named cipher needs: one AES block, except for
+	 * AES-GCM, which takes a 12-byte nonce (RFC 5647).
+	 *
+	 * @param name One of CIPHERS
+	 * @return IV length in bytes
+	 */
+	public static int getCipherIvLength(String name)
+	{
+		return isAead(name) ? 12 : 16;
+	}
+
+	/**
+	 * Tells whether a cipher authenticates packets itself.  Then no MAC is used, and the
+	 * MAC negotiated alongside it is ignored, as OpenSSH does.
+	 *
+	 * @param name One of CIPHERS
+	 */
+	public static boolean isAead(String name)
+	{
+		indexOf(CIPHERS, name); // Make sure we know it
+		return name.endsWith("-gcm@openssh.com");
+	}
+
+	/**
+	 * Makes an uninitialized cipher.  All of ours are AES.
+	 *
+	 * @param name One of CIPHERS
+	 * @return The cipher, ready for init()
+	 */
+	public static BlockCipher newCipher(String name)
+	{
+		indexOf(CIPHERS, name); // Make sure we know it
+		if(name.endsWith("-gcm@openssh.com"))
+			return new GCMBlockCipher(new AESFastEngine());
+		else if(name.endsWith("-ctr"))
+			return new SICBlockCipher(new AESFastEngine());
+		else
+			return new CBCBlockCipher(new AESFastEngine());
+	}
+
+	/**
+	 * Returns how many bytes of key the named MAC needs.
+	 *
+	 * @param name One of MACS
+	 * @return Key length in bytes
+	 */
+	public static int getMacKeyLength(String name)
+	{
+		return MAC_KEY_LENGTHS[indexOf(MACS, name)];
+	}
+
+	/**
+	 * Makes an uninitialized MAC.  The UMACs need a nonce for each packet as well as
+	 * the key, which SSH2.Packet gives them.
+	 *
+	 * @param name One of MACS
+	 * @return The MAC
+	 */
+	public static Mac newMac(String name)
+	{
+		indexOf(MACS, name); // Make sure we know it
+		if(name.startsWith("umac-64"))
+			return new UMac(64);
+		else if(name.startsWith("umac-128"))
+			return new UMac(128);
+		else if(name.startsWith("hmac-sha2-256"))
+			return new HMac(new SHA256Digest());
+		else if(name.startsWith("hmac-sha2-512"))
+			return new HMac(new SHA512Digest());
+		else
+			return new HMac(new SHA1Digest());
+	}
+
+	/**
+	 * Tells whether a MAC is one of the encrypt-then-MAC ones, which leave the packet
+	 * length unencrypted and MAC the ciphertext instead of the plaintext.
+	 *
+	 * @param name One of MACS
+	 */
+	public static boolean isEncryptThenMac(String name)
+	{
+		indexOf(MACS, name); // Make sure we know it
+		return name.endsWith("-etm@openssh.com");
+	}
+
+	/**
+	 * Tells whether a compression method is one of the zlib ones.  They compress the same
+	 * way and differ only in when they start.
+	 *
+	 * @param name One of COMPRESSION
+	 * @param authenticated Whether the user has logged in yet
+	 * @return true if packets should be compressed
+	 */
+	public static boolean isCompressing(String name, boolean authenticated)
+	{
+		indexOf(COMPRESSION, name); // Make sure we know it
+		if(name.equals("zlib@openssh.com"))
+			return authenticated;
+		return name.equals("zlib");
+	}
+
+	/**
+	 * Finds a name in one of our lists.
+	 *
+	 * @throws IllegalArgumentException If it isn't there, since we never offered it
+	 */
+	private static int indexOf(String[] names, String name)
+	{
+		for(int i = 0; i < names.length; i++)
+		{
+			if(names[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("SSH2Algorithms: Don't know how to make " + name);
+	}
+}
@@ -1,15 +1,11 @@
 package com.zwerdog.cellularssh;
 import java.io.*;
+import java.util.Hashtable;
+import java.util.Vector;
+
 import org.bouncycastle.BigInteger;
-import org.bouncycastle.SecureRandom;
-import javax.microedition.io.SocketConnection;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
-import org.bouncycastle.crypto.digests.SHA1Digest;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.generators.DHBasicKeyPairGenerator;
-import org.bouncycastle.crypto.macs.HMac;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
-import org.bouncycastle.crypto.params.DHKeyGenerationParameters;
+import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.params.DHParameters;
 import org.bouncycastle.crypto.params.DHPrivateKeyParameters;
 import org.bouncycastle.crypto.params.DHPublicKeyParameters;
@@ -29,27 +25,100 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	private DataInputStream remoteIn_;
 	private DataOutputStream remoteOut_;
 	private String host_, username_, password_, serverVersionString_;
+	/** The server's version line as feed() collects it */
+	private StringBuffer serverVersionLine_ = new StringBuffer();
+	/** Made by feed() once the version line is out of the way */
+	private SSH2.PacketDecoder decoder_ = null;
 	private int port_;
 	private DHPublicKeyParameters dhMyPub_;
 	private DHPrivateKeyParameters dhMyPriv_;
 	private byte[] hostKey_;
 	private BigInteger prime_, generator_, dhServerPub_, sharedSecret_;
+	/** Our Curve25519 key pair and the server's public key, for curve25519-sha256 */
+	private byte[] curvePrivate_, curvePublic_, curveServerPublic_;
 	
 	/** Saved for computing the exchange hash */
 	private byte[] serverKexInitData_, clientKexInitData_;
 	private byte[] exchangeHash_, sessionID_;
 	private byte[] clientToServerInitVector_, clientToServerKey_, clientToServerHmacKey_;
 	private byte[] serverToClientInitVector_, serverToClientKey_, serverToClientHmacKey_;
-	private CBCBlockCipher aesEncryptor_, aesDecryptor_;
+	private BlockCipher encryptor_, decryptor_;
+	/** Algorithms agreed on with the server in Handle_KEXINIT */
+	private String kexAlgorithm_, clientToServerCipher_, serverToClientCipher_,
+		clientToServerMac_, serverToClientMac_, clientToServerCompression_, serverToClientCompression_;
+	/**
+	 * The zlib streams, made when compression first starts.  Like OpenSSH, we start new
+	 * streams at every NEWKEYS, but the objects and their totals carry on.
+	 */
+	private ZlibDeflater deflater_ = null;
+	private ZlibInflater inflater_ = null;
+	/** Set once compression has cost more time than it saved; see checkCompression() */
+	private boolean compressionUnprofitable_ = false;
+	/** Totals from big received packets, for estimating how fast the network is */
+	private long linkBytes_ = 0, linkMillis_ = 0;
+	
+	/**
+	 * Set from sending our KEXINIT until sending our NEWKEYS, when nothing but key exchange
+	 * messages may go out.  Anything else is kept in pendingPackets_ until then.
+	 * Guarded by sendPacket_, like pendingPackets_ and the counts below.
+	 */
+	private boolean keyExchanging_ = false;
+	/**
+	 * The key exchange method we sent the first packet of along with our KEXINIT, or null
+	 * if we didn't guess.  The host key algorithm that goes with it is hostKeyOffered_[0].
+	 */
+	private String kexGuess_ = null;
+	/** The key exchange, host key and compression algorithms on our last KEXINIT, in the order we sent them */
+	private String[] kexOffered_, hostKeyOffered_, compressionOffered_;
+	/**
+	 * Set when the server's KEXINIT said it was sending the first key exchange packet of
+	 * its own guess right behind, and the guess was wrong.  That packet gets thrown away.
+	 */
+	private boolean ignoreGuessedKexPacket_ = false;
+	/** Payloads of packets held back during a key exchange */
+	private Vector pendingPackets_ = new Vector();
+	/** How many key exchanges have finished.  The first one is followed by logging in. */
+	private int keyExchanges_ = 0;
+	/** Traffic both ways since we last switched keys, and when that was */
+	private long bytesSinceKex_ = 0, packetsSinceKex_ = 0, lastKexTime_ = 0;
+	/** When to start a key exchange ourselves; see setRekeyLimits() */
+	private long rekeyBytes_ = DEFAULT_REKEY_BYTES, rekeyPackets_ = DEFAULT_REKEY_PACKETS,
+		rekeyMillis_ = DEFAULT_REKEY_MILLIS;
 	
 	/** Continuously reused to save on garbage collection. */
 	private SSH2.Packet recvPacket_, sendPacket_;
 	/** Lookup table for received packet handling */
 	private PacketHandler[] packetHandlers_;
 	private boolean authenticated_;
+	/** Whether to send the whole login without waiting for replies.  See setPipelinedLogin(). */
+	private boolean pipelinedLogin_ = false;
 	public StatusListener listener_ = null;
 	
-	private ByteQueue receivedFromRemoteHostFifo_ = null;
+	/** Window we give the server on each channel.  XXX: BlackBerry usually has a 128kB/connection limit! */
+	private static final int LOCAL_WINDOW_SIZE = 128 * 1024;
+	/** Most channel data we'll take in one packet; well under SSH2.Packet's 32 kB sanity check */
+	private static final int LOCAL_MAX_PACKET = 4096;
+	/** Received packets smaller than this say more about latency than about speed */
+	private static final int LINK_SAMPLE_MIN = 1024;
+	/** How much has to go through compression before we judge whether it's worth it */
+	private static final int COMPRESSION_JUDGE_BYTES = 64 * 1024;
+	/** RFC 4253 section 9 suggests new keys after a gigabyte or an hour, whichever comes first */
+	private static final long DEFAULT_REKEY_BYTES = 1L << 30, DEFAULT_REKEY_MILLIS = 60 * 60 * 1000L;
+	/** RFC 4344 section 3.1: well before the 32-bit sequence numbers could wrap around */
+	private static final long DEFAULT_REKEY_PACKETS = 1L << 31;
+	/**
+	 * The first key exchange and host key algorithms on each server's last KEXINIT, as
+	 * { kex, host key } keyed by "host:port", so the next connection there can guess.
+	 * Only kept while the application runs.
+	 */
+	private static final Hashtable serverPreferences_ = new Hashtable();
+	
+	/** Channel table, indexed by our channel number.  Guarded by this. */
+	private Channel[] channels_ = new Channel[4];
+	/** The shell channel opened automatically after authentication */
+	private Channel defaultChannel_;
+	/** Only used if somebody asks for an InputStream */
+	private ByteRingBuffer receivedFromRemoteHostFifo_ = null;
 	
 	private int terminalWidth_ = 80, terminalHeight_ = 24, terminalCharWidth_ = 6, terminalCharHeight_ = 10;
 	
@@ -59,6 +128,25 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		public void onSSH2ConnectionEvent(int eventType, String message);
 	}
 	
+	/**
+	 * Receives channel data straight out of the decrypted packet, without it being copied
+	 * anywhere first.
+	 */
+	public interface ChannelDataSink
+	{
+		/**
+		 * Called from whichever thread is reading packets, once per MSG_CHANNEL_DATA.
+		 * The bytes belong to the received packet buffer and are only valid until this
+		 * returns; the next packet read overwrites them.  Copy them if you need to keep them.
+		 * 
+		 * @param buf Buffer holding the data
+		 * @param off Where the data starts in buf
+		 * @param len How many bytes of data
+		 * @throws IOException
+		 */
+		public void onChannelData(byte[] buf, int off, int len) throws IOException;
+	}
+	
 	/**
 	 * This type of IOException is thrown when an SSH2-specific error happens.
 	 * For example, a user authentication failure.
@@ -112,8 +200,12 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	{
 		public void handlePacket(SSH2.Packet p) throws IOException
 		{
-			// TODO: Actually look through this list to make sure we support something on it
-			// For now we'll assume hmac-sha1, aes128-cbc
+			// If the server is the one starting a new key exchange, we haven't sent ours yet
+			synchronized(sendPacket_)
+			{
+				if(keyExchanging_ == false)
+					sendKexInit();
+			}
 			
 			// Save the packet contents for later when we compute the exchange hash.
 			// We include everything after the padlen field but before the padding.
@@ -125,17 +217,127 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 			// Copy starting from after the padlen field
 			System.arraycopy(p.data, 5, serverKexInitData_, 0, len);
 			
-			// Construct and send a SSH_MSG_KEXDH_REQUEST to ask for the
-			// Diffie-Hellman group we want
-			SSH2.Packet kexDHRequest = new SSH2.Packet();
-			kexDHRequest.putByte(SSH2.MSG_KEXDH_REQUEST);
-			kexDHRequest.putInt(SSH2.GROUP_SIZE_MIN); // Minimum size in bits of prime number
-			kexDHRequest.putInt(SSH2.GROUP_SIZE_WANTED); // Preferred
-			kexDHRequest.putInt(SSH2.GROUP_SIZE_MAX); // Max size
-			sendPacket(kexDHRequest);
+			// Pick an algorithm of each kind from the server's name-lists
+			p.rewind();
+			p.skip(4 + 1 + 1 + 16); // length, padlen, type, cookie
+			String serverKex = p.getString(), serverHostKey = p.getString();
+			kexAlgorithm_ = negotiate("key exchange", kexOffered_, serverKex);
+			negotiate("host key", hostKeyOffered_, serverHostKey);
+			clientToServerCipher_ = negotiate("client-to-server cipher", SSH2Algorithms.CIPHERS, p.getString());
+			serverToClientCipher_ = negotiate("server-to-client cipher", SSH2Algorithms.CIPHERS, p.getString());
+			// AES-GCM authenticates packets itself, so there's no MAC to agree on with it
+			String serverMacs = p.getString();
+			clientToServerMac_ = SSH2Algorithms.isAead(clientToServerCipher_) ? null
+					: negotiate("client-to-server MAC", SSH2Algorithms.MACS, serverMacs);
+			serverMacs = p.getString();
+			serverToClientMac_ = SSH2Algorithms.isAead(serverToClientCipher_) ? null
+					: negotiate("server-to-client MAC", SSH2Algorithms.MACS, serverMacs);
+			clientToServerCompression_ = negotiate("client-to-server compression", compressionOffered_, p.getString());
+			serverToClientCompression_ = negotiate("server-to-client compression", compressionOffered_, p.getString());
+			p.getString(); // client-to-server languages, which we don't use
+			p.getString(); // server-to-client languages
+			boolean serverGuessed = (p.getByte() != 0);
+			System.err.println("Handle_KEXINIT: Using " + kexAlgorithm_ + ", " + clientToServerCipher_ + "/"
+					+ serverToClientCipher_ + ", " + clientToServerMac_ + "/" + serverToClientMac_ + ", "
+					+ clientToServerCompression_ + "/" + serverToClientCompression_);
+			
+			// RFC 4253 section 7: a guess is right when both sides put the same key exchange
+			// and host key algorithms first.  That goes for either side's guess.  A wrong
+			// guess of ours gets thrown away by the server and we start again with the method
+			// we just agreed on, and we do the same with a wrong one from the server.
+			String[] serverKexNames = SSH2Algorithms.parseNameList(serverKex);
+			String[] serverHostKeyNames = SSH2Algorithms.parseNameList(serverHostKey);
+			boolean sameFirstChoices = false;
+			if(serverKexNames.length > 0 && serverHostKeyNames.length > 0)
+			{
+				sameFirstChoices = serverKexNames[0].equals(kexOffered_[0])
+						&& serverHostKeyNames[0].equals(hostKeyOffered_[0]);
+				
+				// Only remember the server's favourite if it's what we'd have picked anyway.
+				// Guessing something slower, like a 4096-bit group instead of Curve25519,
+				// would cost more than the round trip it saves.
+				String key = host_ + ":" + port_;
+				if(serverKexNames[0].equals(SSH2Algorithms.choose(SSH2Algorithms.KEX, serverKexNames)))
+					serverPreferences_.put(key, new String[] { serverKexNames[0], serverHostKeyNames[0] });
+				else
+					serverPreferences_.remove(key);
+			}
+			boolean guessedRight = (kexGuess_ != null && sameFirstChoices);
+			if(kexGuess_ != null)
+				System.err.println("Handle_KEXINIT: Guessed " + kexGuess_ + (guessedRight ? " right" : " wrong"));
+			kexGuess_ = null;
+			ignoreGuessedKexPacket_ = (serverGuessed && sameFirstChoices == false);
+			if(ignoreGuessedKexPacket_)
+				System.err.println("Handle_KEXINIT: The server guessed wrong; ignoring its next packet");
+			
+			// If we guessed right, the first packet is already on its way and its reply
+			// handler is in place
+			if(guessedRight == false)
+				sendFirstKexPacket();
+		}
+	}
+	
+	/**
+	 * Sends the first packet of the key exchange method in kexAlgorithm_ and gets ready
+	 * for the reply.
+	 * 
+	 * @throws IOException
+	 */
+	private void sendFirstKexPacket() throws IOException
+	{
+		if(SSH2Algorithms.isCurve25519(kexAlgorithm_))
+		{
+			// There's no group to ask for, so we can send our public key straight away
+			byte[][] keyPair = KeyPairPool.getInstance().takeCurve25519KeyPair();
+			curvePrivate_ = keyPair[0];
+			curvePublic_ = keyPair[1];
+			
+			synchronized(sendPacket_)
+			{
+				sendPacket_.reset();
+				sendPacket_.putByte(SSH2.MSG_KEX_ECDH_INIT);
+				sendPacket_.putInt(curvePublic_.length);
+				sendPacket_.putBytes(curvePublic_);
+				sendPacket(sendPacket_);
+			}
+			
+			packetHandlers_[SSH2.MSG_KEX_ECDH_REPLY] = new Handle_KEX_ECDH();
+			return;
+		}
+		
+		DHParameters group = SSH2Groups.get(kexAlgorithm_);
+		if(group != null)
+		{
+			// We already know the group, so the same goes here
+			prime_ = group.getP();
+			generator_ = group.getG();
+			generateDHKeyPair(group);
+			
+			synchronized(sendPacket_)
+			{
+				sendPacket_.reset();
+				sendPacket_.putByte(SSH2.MSG_KEXDH_INIT);
+				sendPacket_.putBigInteger(dhMyPub_.getY());
+				sendPacket(sendPacket_);
+			}
 			
-			packetHandlers_[SSH2.MSG_KEXDH_GEX_GROUP] = new Handle_KEX_DH_GEX();
+			packetHandlers_[SSH2.MSG_KEXDH_REPLY] = new Handle_KEXDH();
+			return;
 		}
+		
+		// Construct and send a SSH_MSG_KEXDH_REQUEST to ask for the
+		// Diffie-Hellman group we want
+		synchronized(sendPacket_)
+		{
+			sendPacket_.reset();
+			sendPacket_.putByte(SSH2.MSG_KEXDH_REQUEST);
+			sendPacket_.putInt(SSH2.GROUP_SIZE_MIN); // Minimum size in bits of prime number
+			sendPacket_.putInt(SSH2.GROUP_SIZE_WANTED); // Preferred
+			sendPacket_.putInt(SSH2.GROUP_SIZE_MAX); // Max size
+			sendPacket(sendPacket_);
+		}
+		
+		packetHandlers_[SSH2.MSG_KEXDH_GEX_GROUP] = new Handle_KEX_DH_GEX();
 	}
 	
 	private class Handle_KEX_DH_GEX implements PacketHandler
@@ -153,18 +355,15 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 				// Now that we have the prime and generator, we can generate our DH key pair
 				// and send our DH public key to the server.
 				// XXX We are only generating 256 bits! I guess this isn't good enough?
-				DHParameters dhParams = new DHParameters(prime_, generator_, null, 256);
-				DHKeyGenerationParameters kgp = new DHKeyGenerationParameters(new SecureRandom(), dhParams);
-				DHBasicKeyPairGenerator kpgen = new DHBasicKeyPairGenerator();
-				kpgen.init(kgp);
-				AsymmetricCipherKeyPair keyPair = kpgen.generateKeyPair();
-				dhMyPub_ = (DHPublicKeyParameters) keyPair.getPublic();
-				dhMyPriv_ = (DHPrivateKeyParameters) keyPair.getPrivate();
+				generateDHKeyPair(new DHParameters(prime_, generator_, null, 256));
 
-				SSH2.Packet gexInit = new SSH2.Packet();
-				gexInit.putByte(SSH2.MSG_KEXDH_GEX_INIT);
-				gexInit.putBigInteger(dhMyPub_.getY()); // Y is our DH public key
-				sendPacket(gexInit);
+				synchronized(sendPacket_)
+				{
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_KEXDH_GEX_INIT);
+					sendPacket_.putBigInteger(dhMyPub_.getY()); // Y is our DH public key
+					sendPacket(sendPacket_);
+				}
 
 				packetHandlers_[SSH2.MSG_KEXDH_GEX_GROUP] = null; // Don't accept this packet twice in a row
 				packetHandlers_[SSH2.MSG_KEXDH_GEX_REPLY] = this;
@@ -184,14 +383,6 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 				BigInteger myX = dhMyPriv_.getX(); // client random number exponent
 				sharedSecret_ = dhServerPub_.modPow(myX, prime_);
 
-				// Compute exchange hash.  The first one of the session is also the session ID.
-				exchangeHash_ = computeExchangeHash();
-				if(sessionID_ == null)
-				{
-					sessionID_ = new byte[exchangeHash_.length];
-					System.arraycopy(exchangeHash_, 0, sessionID_, 0, exchangeHash_.length);
-				}
-
 				// Debugging output
 				System.err.println("Host key: ");
 				Hex.encode(hostKey_, System.err);
@@ -202,32 +393,136 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 				System.err.println("Exchange hash signature length is: " + exchangeHashSignature.length);
 
 				packetHandlers_[SSH2.MSG_KEXDH_GEX_REPLY] = null;
-				packetHandlers_[SSH2.MSG_NEWKEYS] = new Handle_NEWKEYS();
+				keyExchangeDone();
 				break;
 			}
 		}
 	}
-
-	private class Handle_NEWKEYS implements PacketHandler
+	
+	/**
+	 * Finishes a diffie-hellman-group14-sha256 or group16-sha512 key exchange.  Same as
+	 * the end of group exchange, with a different message number.
+	 */
+	private class Handle_KEXDH implements PacketHandler
 	{
 		public void handlePacket(SSH2.Packet p) throws IOException
 		{
-			synchronized (sendPacket_)
+			hostKey_ = p.getByteString();
+			dhServerPub_ = p.getBigInteger();
+			// XXX: We should verify this
+			p.getByteString(); // Exchange hash signature
+			
+			// RFC 4253 section 8 says f has to be in [1, p-1]; 1 and p-1 would give away the secret
+			if(dhServerPub_.compareTo(BigInteger.valueOf(1)) <= 0
+					|| dhServerPub_.compareTo(prime_.subtract(BigInteger.valueOf(1))) >= 0)
+				throw new SSH2Exception(SSH2.MSG_KEXDH_REPLY, "Server's Diffie-Hellman public key is no good.");
+			sharedSecret_ = dhServerPub_.modPow(dhMyPriv_.getX(), prime_);
+			
+			packetHandlers_[SSH2.MSG_KEXDH_REPLY] = null;
+			keyExchangeDone();
+		}
+	}
+	
+	/**
+	 * Finishes a curve25519-sha256 key exchange (RFC 8731).  The reply has the server's
+	 * host key and public key, and we already sent ours.
+	 */
+	private class Handle_KEX_ECDH implements PacketHandler
+	{
+		public void handlePacket(SSH2.Packet p) throws IOException
+		{
+			hostKey_ = p.getByteString();
+			curveServerPublic_ = p.getByteString();
+			// XXX: We should verify this
+			p.getByteString(); // Exchange hash signature
+			if(curveServerPublic_.length != Curve25519.KEY_SIZE)
+				throw new SSH2Exception(SSH2.MSG_KEX_ECDH_REPLY, "Server's Curve25519 key is the wrong size.");
+			
+			byte[] k = new byte[Curve25519.KEY_SIZE];
+			Curve25519.scalarMult(k, curvePrivate_, curveServerPublic_);
+			if(Curve25519.isZero(k))
+				throw new SSH2Exception(SSH2.MSG_KEX_ECDH_REPLY, "Server's Curve25519 key is no good.");
+			// The shared secret's bytes are used as a big-endian number, as they are
+			sharedSecret_ = new BigInteger(1, k);
+			
+			packetHandlers_[SSH2.MSG_KEX_ECDH_REPLY] = null;
+			keyExchangeDone();
+		}
+	}
+	
+	/**
+	 * Gets our Diffie-Hellman key pair for a group, from the pool if it has one ready.
+	 */
+	private void generateDHKeyPair(DHParameters group)
+	{
+		AsymmetricCipherKeyPair keyPair = KeyPairPool.getInstance().takeDHKeyPair(kexAlgorithm_, group);
+		dhMyPub_ = (DHPublicKeyParameters) keyPair.getPublic();
+		dhMyPriv_ = (DHPrivateKeyParameters) keyPair.getPrivate();
+	}
+	
+	/**
+	 * Computes the exchange hash once a key exchange has the shared secret, and switches
+	 * what we send over to the new keys.  What the server sends switches over when its
+	 * NEWKEYS turns up.
+	 */
+	private void keyExchangeDone() throws IOException
+	{
+		// The first exchange hash of the session is also the session ID
+		exchangeHash_ = computeExchangeHash();
+		if(sessionID_ == null)
+		{
+			sessionID_ = new byte[exchangeHash_.length];
+			System.arraycopy(exchangeHash_, 0, sessionID_, 0, exchangeHash_.length);
+		}
+		generateKeys();
+		
+		// Everything after our NEWKEYS has to use the new keys, so nobody else gets to send
+		// anything in between.  Then whatever was held back during the exchange can go.
+		synchronized(sendPacket_)
+		{
+			sendPacket_.reset();
+			sendPacket_.putByte(SSH2.MSG_NEWKEYS);
+			sendPacket(sendPacket_);
+			
+			sendPacket_.setEncryptor(encryptor_);
+			if(clientToServerMac_ != null)
+				sendPacket_.setEncryptionHMac(SSH2Algorithms.newMac(clientToServerMac_), clientToServerHmacKey_,
+						SSH2Algorithms.isEncryptThenMac(clientToServerMac_));
+			sendPacket_.setUseEncryption(true);
+			updateOutgoingCompression();
+			keyExchanging_ = false;
+			bytesSinceKex_ = packetsSinceKex_ = 0;
+			lastKexTime_ = System.currentTimeMillis();
+			
+			for(int i = 0; i < pendingPackets_.size(); i++)
 			{
-				// TODO: Verify that everything is really OK and we can start using the new keys
-				// Tell the server we're ready to use the new keys
+				byte[] payload = (byte[]) pendingPackets_.elementAt(i);
 				sendPacket_.reset();
-				sendPacket_.putByte(SSH2.MSG_NEWKEYS);
+				sendPacket_.putBytes(payload);
 				sendPacket(sendPacket_);
 			}
-			// Now we can generate our keys and set up our received packet to use them
-			generateKeys(); // This sets up the packet to use the new keys
+			pendingPackets_.removeAllElements();
+		}
+		
+		packetHandlers_[SSH2.MSG_NEWKEYS] = new Handle_NEWKEYS();
+	}
+
+	private class Handle_NEWKEYS implements PacketHandler
+	{
+		public void handlePacket(SSH2.Packet p) throws IOException
+		{
+			// Everything from the server after this uses the new keys
+			recvPacket_.setDecryptor(decryptor_);
+			if(serverToClientMac_ != null)
+				recvPacket_.setDecryptionHMac(SSH2Algorithms.newMac(serverToClientMac_), serverToClientHmacKey_,
+						SSH2Algorithms.isEncryptThenMac(serverToClientMac_));
 			recvPacket_.setUseEncryption(true);
-			sendPacket_.setUseEncryption(true);
+			updateIncomingCompression();
+			packetHandlers_[SSH2.MSG_NEWKEYS] = null;
 			
-			// Ask to authenticate the user
-			// Only do this if we aren't authenticated already
-			if(authenticated_ == false)
+			// After the first key exchange we ask to authenticate the user.  Later ones just
+			// change the keys.
+			if(keyExchanges_++ == 0)
 			{
 				synchronized(sendPacket_)
 				{
@@ -236,9 +531,29 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 					sendPacket_.putString("ssh-userauth");
 					sendPacket(sendPacket_);
 				}
+				
+				if(pipelinedLogin_)
+				{
+					// Don't wait for each answer.  The server deals with these in order, so by the
+					// time it gets to the channel opens we're either logged in or they get refused.
+					// Unless compression starts at login: then the server expects them compressed,
+					// and we can't do that until we know the login worked.
+					sendPasswordRequest();
+					if(clientToServerCompression_.equals("zlib@openssh.com") == false)
+					{
+						synchronized(SSH2Connection.this)
+						{
+							for(int i = 0; i < channels_.length; i++)
+							{
+								if(channels_[i] != null)
+									channels_[i].sendOpen();
+							}
+						}
+					}
+				}
+				
+				packetHandlers_[SSH2.MSG_SERVICE_ACCEPT] = new Handle_SERVICE_ACCEPT();
 			}
-
-			packetHandlers_[SSH2.MSG_SERVICE_ACCEPT] = new Handle_SERVICE_ACCEPT();
 		}
 	}
 	
@@ -250,26 +565,57 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 			System.err.println("Handle_SERVICE_ACCEPT: Service accept: " + service);
 			
 			// If the server is cool with authenticating the user, give it the
-			// authentication information
-			if(service.equals("ssh-userauth"))
+			// authentication information, unless we already did
+			if(service.equals("ssh-userauth") && pipelinedLogin_ == false)
+				sendPasswordRequest();
+		}
+	}
+	
+	/**
+	 * Sends the username and password, and gets ready for the answer.
+	 */
+	private void sendPasswordRequest() throws IOException
+	{
+		synchronized(sendPacket_)
+		{
+			sendPacket_.reset();
+			sendPacket_.putByte(SSH2.MSG_USERAUTH_REQUEST);
+			sendPacket_.putString(username_);
+			sendPacket_.putString("ssh-connection");
+			sendPacket_.putString("password");
+			sendPacket_.putByte((byte) 0);
+			sendPacket_.putString(password_);
+			sendPacket(sendPacket_);
+		}
+
+		packetHandlers_[SSH2.MSG_USERAUTH_SUCCESS] 
+		                = packetHandlers_[SSH2.MSG_USERAUTH_FAILURE]
+		                = new Handle_USERAUTH();
+	}
+	
+	/**
+	 * The server didn't understand one of our packets.  With a pipelined login that can
+	 * be a channel open that got there before we were logged in; if so, we try it again.
+	 */
+	private class Handle_UNIMPLEMENTED implements PacketHandler
+	{
+		public void handlePacket(SSH2.Packet p) throws IOException
+		{
+			int sequenceNumber = p.getInt();
+			synchronized(SSH2Connection.this)
 			{
-				synchronized(sendPacket_)
+				for(int i = 0; i < channels_.length; i++)
 				{
-					sendPacket_.reset();
-					sendPacket_.putByte(SSH2.MSG_USERAUTH_REQUEST);
-					sendPacket_.putString(username_);
-					sendPacket_.putString("ssh-connection");
-					sendPacket_.putString("password");
-					sendPacket_.putByte((byte) 0);
-					sendPacket_.putString(password_);
-					sendPacket(sendPacket_);
+					if(channels_[i] != null && channels_[i].openWasRejected(sequenceNumber))
+					{
+						System.err.println("Handle_UNIMPLEMENTED: Server wasn't ready to open channel " + i + " yet");
+						if(authenticated_)
+							channels_[i].sendOpen();
+						return;
+					}
 				}
-
-				packetHandlers_[SSH2.MSG_USERAUTH_SUCCESS] 
-				                = packetHandlers_[SSH2.MSG_USERAUTH_FAILURE]
-				                = new Handle_USERAUTH();
 			}
-
+			System.err.println("Handle_UNIMPLEMENTED: Server didn't understand our packet " + sequenceNumber);
 		}
 	}
 	
@@ -293,25 +639,32 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 				
 			case SSH2.MSG_USERAUTH_SUCCESS:
 				System.err.println("Handle_USERAUTH: User authentication success!");
-				authenticated_ = true;
-
-				synchronized (sendPacket_)
-				{
-					// Open a channel for a shell
-					sendPacket_.reset();
-					sendPacket_.putByte(SSH2.MSG_CHANNEL_OPEN);
-					sendPacket_.putString("session"); // We want a shell
-					sendPacket_.putInt(0); // Arbitrarily chosen channel number
-					sendPacket_.putInt(128 * 1024); // Initial window size, XXX: BlackBerry usually has a 128kB/connection limit!
-					sendPacket_.putInt(4096); // Maximum packet size
-					sendPacket(sendPacket_);
-				}
 				packetHandlers_[SSH2.MSG_CHANNEL_OPEN_CONFIRMATION] 
 				                = packetHandlers_[SSH2.MSG_CHANNEL_OPEN_FAILURE] 
+								= packetHandlers_[SSH2.MSG_CHANNEL_WINDOW_ADJUST] 
 								= packetHandlers_[SSH2.MSG_CHANNEL_DATA] 
+								= packetHandlers_[SSH2.MSG_CHANNEL_EXTENDED_DATA] 
+								= packetHandlers_[SSH2.MSG_CHANNEL_EOF] 
+								= packetHandlers_[SSH2.MSG_CHANNEL_CLOSE] 
 								= packetHandlers_[SSH2.MSG_CHANNEL_SUCCESS] 
 								= packetHandlers_[SSH2.MSG_CHANNEL_FAILURE] 
 				                = new Handle_CHANNEL();
+
+				// Open the shell channel, and any others somebody asked for while we were
+				// still authenticating.  If we agreed on zlib@openssh.com, this is where it starts.
+				synchronized(SSH2Connection.this)
+				{
+					authenticated_ = true;
+					if(clientToServerCompression_.equals("zlib@openssh.com"))
+						updateOutgoingCompression();
+					if(serverToClientCompression_.equals("zlib@openssh.com"))
+						updateIncomingCompression();
+					for(int i = 0; i < channels_.length; i++)
+					{
+						if(channels_[i] != null)
+							channels_[i].sendOpen();
+					}
+				}
 				break;
 			}
 			System.err.println("Handle_USERAUTH done");
@@ -320,50 +673,52 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	
 
 	/**
-	 * Handles SSH channels.  So far we only support one of them.
+	 * Handles SSH channel messages, passing each one on to the Channel it's for.
 	 */
 	private class Handle_CHANNEL implements PacketHandler
 	{
 		public void handlePacket(SSH2.Packet p) throws IOException
 		{
+			// Every channel message starts with our channel number
+			int localId = p.getInt();
+			Channel channel = getChannel(localId);
+			if(channel == null)
+			{
+				System.err.println("Handle_CHANNEL: Got " + p.getTypeName() + " for channel " + localId + ", which we don't have");
+				return;
+			}
+			
 			switch(p.getType())
 			{
 			case SSH2.MSG_CHANNEL_OPEN_CONFIRMATION:
-				System.err.println("Handle_CHANNEL: Channel opened.  Let's ask for a pty and shell.");
-				
-				synchronized (sendPacket_)
-				{
-					// Request a pty.  After this, we need to MSG_CHANNEL_REQUEST a shell
-					sendPacket_.reset();
-					sendPacket_.putByte(SSH2.MSG_CHANNEL_REQUEST);
-					sendPacket_.putInt(0); // server channel XXX
-					sendPacket_.putString("pty-req");
-					sendPacket_.putByte((byte) 0); // "want reply" field.  We don't want one
-					sendPacket_.putString("vt100"); // TERM variable
-					sendPacket_.putInt(terminalWidth_); // Terminal width
-					sendPacket_.putInt(terminalHeight_); // Terminal height
-					sendPacket_.putInt(terminalWidth_ * terminalCharWidth_); // Terminal width in pixels
-					sendPacket_.putInt(terminalHeight_ * terminalCharHeight_); // Terminal height in pixels
-					sendPacket_.putString(""); // Terminal modes.  I don't know what to put here, so left blank
-					sendPacket(sendPacket_);
-					// We just did a pty-req, so let's ask for a shell
-					sendPacket_.reset();
-					sendPacket_.putByte(SSH2.MSG_CHANNEL_REQUEST);
-					sendPacket_.putInt(0); // server channel
-					sendPacket_.putString("shell");
-					sendPacket_.putByte((byte) 0); // "want reply" field
-					sendPacket(sendPacket_);
-				}
+				System.err.println("Handle_CHANNEL: Channel " + localId + " opened.");
+				int remoteId = p.getInt();
+				int remoteWindow = p.getInt();
+				int remoteMaxPacket = p.getInt();
+				channel.onOpenConfirmation(remoteId, remoteWindow, remoteMaxPacket);
 				break;
 			
 			case SSH2.MSG_CHANNEL_OPEN_FAILURE:
-				System.err.println("Handle_CHANNEL: Server doesn't want to open a channel!");
-				throw new SSH2Exception(SSH2.MSG_CHANNEL_OPEN_FAILURE, "Channel open failure.");
+				System.err.println("Handle_CHANNEL: Server doesn't want to open channel " + localId + "!");
+				channel.onClose();
+				// Without the shell channel there's nothing to show the user
+				if(channel == defaultChannel_)
+					throw new SSH2Exception(SSH2.MSG_CHANNEL_OPEN_FAILURE, "Channel open failure.");
+				break;
+				
+			case SSH2.MSG_CHANNEL_WINDOW_ADJUST:
+				channel.onWindowAdjust(p.getInt());
+				break;
 
 			case SSH2.MSG_CHANNEL_DATA:
-				p.getInt(); // Channel ID, I think.  For us it's always 0
 				int dataLength = p.getInt();
-				receivedFromRemoteHostFifo_.write(p.data, p.offset_, dataLength);				
+				channel.onData(p.data, p.offset_, dataLength);
+				break;
+				
+			case SSH2.MSG_CHANNEL_EXTENDED_DATA:
+				p.getInt(); // Data type code, which is always 1 (stderr).  We show it like normal data
+				int extendedDataLength = p.getInt();
+				channel.onData(p.data, p.offset_, extendedDataLength);
 				break;
 
 			case SSH2.MSG_CHANNEL_SUCCESS:
@@ -374,7 +729,11 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 				System.err.println("Handle_CHANNEL: That last channel request failed.");
 				throw new SSH2Exception(SSH2.MSG_CHANNEL_FAILURE, "Channel request failed.");
 				
+			case SSH2.MSG_CHANNEL_EOF:
+				break;
+				
 			case SSH2.MSG_CHANNEL_CLOSE:
+				channel.onClose();
 				break;
 
 			}
@@ -382,85 +741,378 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	}
 
 	/**
-	 * The caller uses this to actually receive data through the connection. 
+	 * One SSH channel: an interactive shell, or a command run with "exec".  All channels
+	 * share one connection and one key exchange, and each has its own flow control windows.
+	 * 
+	 * Get one from openChannel() or getDefaultChannel().
 	 */
-	private class SSH2InputStream extends InputStream
+	public class Channel
 	{
-		public SSH2InputStream()
+		private final int localId_;
+		private final String command_;
+		private ChannelDataSink sink_;
+		/** How much more the server may send before we have to adjust the window.  Only the reading thread touches this. */
+		private int localWindow_ = LOCAL_WINDOW_SIZE;
+		/** The rest of these are guarded by this */
+		private int remoteId_ = -1, remoteWindow_ = 0, remoteMaxPacket_ = 0;
+		private boolean openSent_ = false, open_ = false, closed_ = false, closeSent_ = false;
+		/** Sequence number of our CHANNEL_OPEN, so we can tell if the server refuses it */
+		private int openSequenceNumber_ = -1;
+		
+		private Channel(int localId, String command, ChannelDataSink sink)
 		{
-			// TODO: Check that we've done enough of the handshaking and authentication
-			// that opening an input stream is actually a reasonable thing to do
-			if(receivedFromRemoteHostFifo_ == null)
-				receivedFromRemoteHostFifo_ = new ByteQueue(512);
-			
-			byte[] tmp = new byte[1];
-			// Apparently you need to try to receive something before you send,
-			// so we do it here so the caller doesn't have to worry about this.
-			// This is because trying to receive forces the completion of
-			// negotiation (KEX stuff), which needs to be done before you send
-			// anything.
-			try
-			{
-				read(tmp, 0, 0);
-			} catch (IOException e)
-			{
-				System.err.println("SSH2InputStream(): Couldn't read anything to start with.");				
-			}
-			
+			localId_ = localId;
+			command_ = command;
+			sink_ = sink;
 		}
 		
-		public int read(byte[] b, int off, int len) throws IOException
+		/**
+		 * Returns our number for this channel.
+		 */
+		public int getLocalId()
+		{ return localId_; }
+		
+		/**
+		 * Returns true once the server has confirmed the channel, until it's closed.
+		 */
+		public synchronized boolean isOpen()
+		{ return open_ && closed_ == false; }
+		
+		/**
+		 * Sets who gets the data that arrives on this channel.
+		 * 
+		 * @param sink
+		 */
+		public void setChannelDataSink(ChannelDataSink sink)
 		{
-			// Guarantee that we either get at least one byte of data or throw an exception
-			while (receivedFromRemoteHostFifo_.available() < 1)
-			{
-				// Received packet needs to know its sequence number to correctly
-				// compute the MAC
-				recvPacket_.setSequenceNumber(++receivedSequenceNumber_);
-				// fromNetwork() will read at least an entire SSH2 packet
-				recvPacket_.fromNetwork(remoteIn_);
-				dispatchPacketHandler(recvPacket_);
-			}
-			
-			// The packet handler added the data to the FIFO so let's get some
-			return receivedFromRemoteHostFifo_.read(b, off, len);
+			sink_ = sink;
 		}
-
+		
 		/**
-		 * This method is slow as hell; please don't use it.
+		 * Returns an OutputStream that writes to this channel.
 		 */
-		public int read() throws IOException
+		public OutputStream openOutputStream()
 		{
-			byte[] tmp = new byte[1];
-			read(tmp, 0, 1);
-			return tmp[0];
+			return new SSH2OutputStream(this);
 		}
-	}
-	
-	/**
-	 * An OutputStream that you can use to send data to the remote host. 
-	 */
-	private class SSH2OutputStream extends OutputStream
-	{
-		public SSH2OutputStream() {}
 		
+		/**
+		 * Sends data on this channel.  The data is split up to fit the server's maximum
+		 * packet size, and this waits whenever the server's window is used up.
+		 * It also waits for the channel to be opened, so it's OK to call this early.
+		 * 
+		 * Don't call this from the thread that reads packets: that's the thread that
+		 * would hear about the window opening back up.
+		 * 
+		 * @param b Buffer with the data in it
+		 * @param off Where the data starts in the buffer
+		 * @param len How many bytes
+		 * @throws IOException
+		 */
 		public void write(byte[] b, int off, int len) throws IOException
 		{
+			while(len > 0)
+			{
+				int n, remoteId;
+				synchronized(this)
+				{
+					try
+					{
+						while((open_ == false || remoteWindow_ == 0) && closed_ == false)
+							wait();
+					} catch (InterruptedException e)
+					{
+						throw new InterruptedIOException("Interrupted while waiting for the channel window");
+					}
+					if(closed_)
+						throw new SSH2Exception(SSH2.MSG_CHANNEL_CLOSE, "Channel is closed.");
+					
+					n = len;
+					if(n > remoteWindow_)
+						n = remoteWindow_;
+					if(n > remoteMaxPacket_)
+						n = remoteMaxPacket_;
+					remoteWindow_ -= n;
+					remoteId = remoteId_;
+				}
+				
+				// Don't hold this channel's lock while sending, so window adjusts can still get in
+				synchronized(sendPacket_)
+				{
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_CHANNEL_DATA);
+					sendPacket_.putInt(remoteId);
+					sendPacket_.putInt(n);
+					sendPacket_.putBytes(b, off, n);
+					sendPacket(sendPacket_);
+				}
+				off += n;
+				len -= n;
+			}
+		}
+		
+		/**
+		 * Closes this channel.  The connection and any other channels stay up.
+		 * 
+		 * @throws IOException
+		 */
+		public void close() throws IOException
+		{
+			int remoteId;
+			synchronized(this)
+			{
+				if(open_ == false || closeSent_)
+					return;
+				closeSent_ = true;
+				remoteId = remoteId_;
+			}
 			synchronized(sendPacket_)
 			{
 				sendPacket_.reset();
-				sendPacket_.putByte(SSH2.MSG_CHANNEL_DATA);
-				sendPacket_.putInt(0); // Channel ID
-				sendPacket_.putInt(len);
-				sendPacket_.putBytes(b, off, len);
-				sendPacket(sendPacket_);				
+				sendPacket_.putByte(SSH2.MSG_CHANNEL_CLOSE);
+				sendPacket_.putInt(remoteId);
+				sendPacket(sendPacket_);
 			}
 		}
 		
 		/**
-		 * Really slow way to send data - don't use.
+		 * Asks the server to open this channel, unless we already did.
 		 */
-		public void write(int b) throws IOException
+		private void sendOpen() throws IOException
+		{
+			synchronized(this)
+			{
+				if(openSent_)
+					return;
+				openSent_ = true;
+			}
+			synchronized(sendPacket_)
+			{
+				sendPacket_.reset();
+				sendPacket_.putByte(SSH2.MSG_CHANNEL_OPEN);
+				sendPacket_.putString("session"); // Shells and exec both happen in a session channel
+				sendPacket_.putInt(localId_);
+				sendPacket_.putInt(LOCAL_WINDOW_SIZE); // Initial window size
+				sendPacket_.putInt(LOCAL_MAX_PACKET); // Maximum packet size
+				sendPacket(sendPacket_);
+				synchronized(this)
+				{
+					openSequenceNumber_ = sentSequenceNumber_;
+				}
+			}
+		}
+		
+		/**
+		 * If the given packet was our CHANNEL_OPEN, forgets that we sent it, so the
+		 * next sendOpen() sends it again.
+		 * 
+		 * @param sequenceNumber Sequence number of a packet the server didn't understand
+		 * @return true if it was
+		 */
+		private synchronized boolean openWasRejected(int sequenceNumber)
+		{
+			if(openSent_ == false || open_ || sequenceNumber != openSequenceNumber_)
+				return false;
+			openSent_ = false;
+			return true;
+		}
+		
+		private void onOpenConfirmation(int remoteId, int remoteWindow, int remoteMaxPacket) throws IOException
+		{
+			synchronized(this)
+			{
+				remoteId_ = remoteId;
+				remoteWindow_ = remoteWindow;
+				// Guard against a silly server so write() can't get stuck sending nothing
+				remoteMaxPacket_ = (remoteMaxPacket > 0) ? remoteMaxPacket : 1;
+				open_ = true;
+				notifyAll();
+			}
+			
+			synchronized (sendPacket_)
+			{
+				if(command_ == null)
+				{
+					// Request a pty.  After this, we need to MSG_CHANNEL_REQUEST a shell
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_CHANNEL_REQUEST);
+					sendPacket_.putInt(remoteId);
+					sendPacket_.putString("pty-req");
+					sendPacket_.putByte((byte) 0); // "want reply" field.  We don't want one
+					sendPacket_.putString("vt100"); // TERM variable
+					sendPacket_.putInt(terminalWidth_); // Terminal width
+					sendPacket_.putInt(terminalHeight_); // Terminal height
+					sendPacket_.putInt(terminalWidth_ * terminalCharWidth_); // Terminal width in pixels
+					sendPacket_.putInt(terminalHeight_ * terminalCharHeight_); // Terminal height in pixels
+					sendPacket_.putString(""); // Terminal modes.  I don't know what to put here, so left blank
+					sendPacket(sendPacket_);
+					// We just did a pty-req, so let's ask for a shell
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_CHANNEL_REQUEST);
+					sendPacket_.putInt(remoteId);
+					sendPacket_.putString("shell");
+					sendPacket_.putByte((byte) 0); // "want reply" field
+					sendPacket(sendPacket_);
+				}
+				else
+				{
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_CHANNEL_REQUEST);
+					sendPacket_.putInt(remoteId);
+					sendPacket_.putString("exec");
+					sendPacket_.putByte((byte) 0); // "want reply" field
+					sendPacket_.putString(command_);
+					sendPacket(sendPacket_);
+				}
+			}
+		}
+		
+		private synchronized void onWindowAdjust(int bytes)
+		{
+			remoteWindow_ += bytes;
+			// The window is an unsigned 32-bit number, but we'll never have 2 GB in flight
+			if(remoteWindow_ < 0)
+				remoteWindow_ = Integer.MAX_VALUE;
+			notifyAll();
+		}
+		
+		/**
+		 * Hands received data to the sink, then gives the server more window once it has
+		 * used up half of what we gave it.
+		 */
+		private void onData(byte[] buf, int off, int len) throws IOException
+		{
+			localWindow_ -= len;
+			if(sink_ != null)
+				sink_.onChannelData(buf, off, len);
+			else
+				System.err.println("Channel " + localId_ + ": Nobody wants the " + len + " bytes of data we just got");
+			
+			if(localWindow_ <= LOCAL_WINDOW_SIZE / 2)
+			{
+				int remoteId;
+				synchronized(this)
+				{
+					remoteId = remoteId_;
+				}
+				synchronized(sendPacket_)
+				{
+					sendPacket_.reset();
+					sendPacket_.putByte(SSH2.MSG_CHANNEL_WINDOW_ADJUST);
+					sendPacket_.putInt(remoteId);
+					sendPacket_.putInt(LOCAL_WINDOW_SIZE - localWindow_);
+					sendPacket(sendPacket_);
+				}
+				localWindow_ = LOCAL_WINDOW_SIZE;
+			}
+		}
+		
+		/**
+		 * The server closed the channel, or wouldn't open it in the first place.
+		 */
+		private void onClose() throws IOException
+		{
+			synchronized(this)
+			{
+				closed_ = true;
+				notifyAll();
+			}
+			// We have to answer a close with a close
+			close();
+			
+			synchronized(SSH2Connection.this)
+			{
+				channels_[localId_] = null;
+			}
+		}
+	}
+
+	/**
+	 * The caller can use this to receive data through the connection, if it would rather
+	 * have a stream than a ChannelDataSink.  It is a ChannelDataSink itself that copies the
+	 * data into a FIFO for read() to take it out of.
+	 */
+	private class SSH2InputStream extends InputStream implements ChannelDataSink
+	{
+		public SSH2InputStream()
+		{
+			// TODO: Check that we've done enough of the handshaking and authentication
+			// that opening an input stream is actually a reasonable thing to do
+			// The packet length check in SSH2.Packet.fromNetwork() caps a packet at 32 kB,
+			// so a whole packet's worth of channel data always fits
+			if(receivedFromRemoteHostFifo_ == null)
+				receivedFromRemoteHostFifo_ = new ByteRingBuffer(32768);
+			getDefaultChannel().setChannelDataSink(this);
+			
+			byte[] tmp = new byte[1];
+			// Apparently you need to try to receive something before you send,
+			// so we do it here so the caller doesn't have to worry about this.
+			// This is because trying to receive forces the completion of
+			// negotiation (KEX stuff), which needs to be done before you send
+			// anything.
+			try
+			{
+				read(tmp, 0, 0);
+			} catch (IOException e)
+			{
+				System.err.println("SSH2InputStream(): Couldn't read anything to start with.");				
+			}
+			
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			// Guarantee that we either get at least one byte of data or throw an exception
+			while (receivedFromRemoteHostFifo_.available() < 1)
+				processNextPacket();
+			
+			// The packet handler added the data to the FIFO so let's get some
+			return receivedFromRemoteHostFifo_.read(b, off, len);
+		}
+		
+		public void onChannelData(byte[] buf, int off, int len) throws IOException
+		{
+			try
+			{
+				receivedFromRemoteHostFifo_.write(buf, off, len);
+			} catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Connection closed while delivering data");
+			}
+		}
+
+		/**
+		 * This method is slow as hell; please don't use it.
+		 */
+		public int read() throws IOException
+		{
+			byte[] tmp = new byte[1];
+			read(tmp, 0, 1);
+			return tmp[0];
+		}
+	}
+	
+	/**
+	 * An OutputStream that you can use to send data to the remote host over a channel.
+	 */
+	private class SSH2OutputStream extends OutputStream
+	{
+		private Channel channel_;
+		
+		public SSH2OutputStream(Channel channel)
+		{
+			channel_ = channel;
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			channel_.write(b, off, len);
+		}
+		
+		/**
+		 * Really slow way to send data - don't use.
+		 */
+		public void write(int b) throws IOException
 		{
 			byte[] tmp = new byte[1];
 			tmp[0] = (byte) b;
@@ -483,6 +1135,9 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		
 		initPacketHandlers();
 		
+		// There's always a shell; it gets opened as soon as we're authenticated
+		defaultChannel_ = newChannel(null, null);
+		
 		// Add a do-nothing status listener by default so we don't have to
 		// keep checking whether listener_ is null before using it
 		listener_ = new StatusListener()
@@ -496,6 +1151,77 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		listener_ = listener;
 	}
 	
+	/**
+	 * Sets who gets the data that arrives on the shell channel.  Opening an InputStream
+	 * replaces this with the stream, so use one or the other.
+	 * 
+	 * @param sink
+	 */
+	public void setChannelDataSink(ChannelDataSink sink)
+	{
+		defaultChannel_.setChannelDataSink(sink);
+	}
+	
+	/**
+	 * Returns the shell channel, which is opened automatically once we're authenticated.
+	 * 
+	 * @return The channel
+	 */
+	public Channel getDefaultChannel()
+	{
+		return defaultChannel_;
+	}
+	
+	/**
+	 * Opens another channel on this connection, without doing another key exchange.
+	 * If we aren't authenticated yet, the channel is opened as soon as we are.
+	 * 
+	 * @param command Command to run with "exec", or null for a shell with a pty
+	 * @param sink Who gets the data that arrives on the channel
+	 * @return The new channel.  Writing to it waits until the server has confirmed it.
+	 * @throws IOException
+	 */
+	public synchronized Channel openChannel(String command, ChannelDataSink sink) throws IOException
+	{
+		Channel channel = newChannel(command, sink);
+		if(authenticated_)
+			channel.sendOpen();
+		return channel;
+	}
+	
+	/**
+	 * Puts a new channel in the first free slot of the channel table.  Its slot is its
+	 * channel number.
+	 */
+	private synchronized Channel newChannel(String command, ChannelDataSink sink)
+	{
+		int id = 0;
+		while(id < channels_.length && channels_[id] != null)
+			id++;
+		
+		if(id == channels_.length)
+		{
+			Channel[] biggerTable = new Channel[channels_.length * 2];
+			System.arraycopy(channels_, 0, biggerTable, 0, channels_.length);
+			channels_ = biggerTable;
+		}
+		
+		channels_[id] = new Channel(id, command, sink);
+		return channels_[id];
+	}
+	
+	/**
+	 * Looks up a channel by our number for it.
+	 * 
+	 * @return The channel, or null if there's no such channel
+	 */
+	private synchronized Channel getChannel(int localId)
+	{
+		if(localId < 0 || localId >= channels_.length)
+			return null;
+		return channels_[localId];
+	}
+	
 	/**
 	 * Initialize packet handlers lookup table.
 	 */
@@ -506,6 +1232,26 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		packetHandlers_ = new PacketHandler[256];
 		
 		packetHandlers_[SSH2.MSG_KEXINIT] = new Handle_KEXINIT();
+		packetHandlers_[SSH2.MSG_UNIMPLEMENTED] = new Handle_UNIMPLEMENTED();
+	}
+	
+	/**
+	 * Turns pipelined login on or off.  Normally we wait for the server to accept the
+	 * userauth service before sending the password, and to accept the password before
+	 * opening channels; that's three round trips, which on a cellular network can take a
+	 * couple of seconds.  With this on, all of that goes out at once right after the key
+	 * exchange, so only the first round trip is spent waiting.  The pty and shell requests
+	 * still have to wait for the channel to be confirmed, because they need the server's
+	 * number for it.
+	 * 
+	 * If the password is wrong, the server just refuses the early channel opens and we
+	 * report the authentication failure as usual.  Off by default; set it before open().
+	 * 
+	 * @param enabled
+	 */
+	public void setPipelinedLogin(boolean enabled)
+	{
+		pipelinedLogin_ = enabled;
 	}
 	
 	/**
@@ -527,6 +1273,8 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	
 	/**
 	 * Returns an InputStream that you can use to read data from the server.
+	 * This costs a copy of every byte received; if you can, use a ChannelDataSink
+	 * and processNextPacket() instead.
 	 * 
 	 * @return
 	 * @throws IOException
@@ -537,31 +1285,33 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	}
 	
 	/**
-	 * Returns an OutputStream that you can use to send data to the server.
+	 * Returns an OutputStream that you can use to send data to the server's shell.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public OutputStream openOutputStream() throws IOException
 	{
-		return new SSH2OutputStream();
+		return defaultChannel_.openOutputStream();
 	}
 	
 	/**
-	 * Opens an SSH2 connection over the SocketConnection specified in the constructor.
+	 * Starts an SSH2 connection over the given streams, which are usually the two halves
+	 * of a TCP connection to host:port.
 	 * We leave the opening of the socket connection itself to the caller because BlackBerry
 	 * has a really brain-damaged hit-or-miss approach to opening a simple TCP connection
-	 * and we don't want to make this class less generic by worrying about it.
+	 * and we don't want to make this class less generic by worrying about it.  This way
+	 * nothing in here depends on the platform: Session does it with a SocketConnection on
+	 * the device, and anything with a pair of streams (a java.net.Socket, a recorded
+	 * session) works just as well.
 	 * 
+	 * @param in Bytes from the server
+	 * @param out Bytes to the server
 	 * @throws IOException
 	 */
-	public void open(SocketConnection remoteHost) throws IOException
+	public void open(InputStream in, OutputStream out) throws IOException
 	{
-		// TODO: On BlackBerry we need to use Connector.open() instead
-		//Socket s = new Socket(host_, port_);
-//		SocketConnection remoteHost = (SocketConnection) Connector.open("socket://" + host_ + ":" + port_ + ";deviceside=true");
-		remoteOut_ = remoteHost.openDataOutputStream();
-		remoteIn_ = remoteHost.openDataInputStream();
+		remoteIn_ = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
 		
 		// The first things sent and received are the version strings, which
 		// are not sent as SSH2 packets
@@ -571,27 +1321,114 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 			serverVersionString.append((char) b);
 		serverVersionString_ = serverVersionString.toString().trim();
 		System.err.println("Server ID string: " + serverVersionString);
+		
+		start(out);
+	}
+	
+	/**
+	 * Starts an SSH2 connection without reading anything: sends our version string and
+	 * KEXINIT, and leaves it to the caller to pass whatever the server sends to feed().
+	 * This is for callers that can't have a thread sitting in read() for each connection.
+	 * Use either this or open(), not both.
+	 * 
+	 * @param out Bytes to the server.  Packets are written from whatever thread causes
+	 * them to be sent, including the one calling feed(), so this shouldn't block for long.
+	 * @throws IOException
+	 * @see feed
+	 */
+	public void start(OutputStream out) throws IOException
+	{
+		remoteOut_ = (out instanceof DataOutputStream) ? (DataOutputStream) out : new DataOutputStream(out);
+		
 		// TODO: Make sure the default character encoding is something with 1 byte to a character
 		// so we can avoid the following nonsense of specifying the encoding we want every time
 		remoteOut_.write(SSH2.CLIENT_VERSION_STRING.getBytes("ISO-8859-1"));
 		remoteOut_.write("\n".getBytes("ISO-8859-1"));
 		
-		// Start things off by telling the server what ciphers we support
-		SSH2.Packet clientKexInit = new SSH2.Packet();
-		SSH2.becomeKexInitPacket(clientKexInit);
-		clientKexInit.rewind();
-		clientKexInit.skip(4 + 1 + 1 + 16); // length, padlen, type, cookie
-		sendPacket(clientKexInit);
-		
-		// Save this payload because we'll need it later to calculate the exchange hash
-		clientKexInit.rewind();
-		// We subtract 1 to exclude the length of the padlen field
-		// We explicitly want to include the packet type field right after the padlen field
-		int len = clientKexInit.getInt() - clientKexInit.getByte() - 1; // length - padlen - 1
-		clientKexInitData_ = new byte[len];
-		// Copy starting from after the padlen field
-		System.arraycopy(clientKexInit.data, 5, clientKexInitData_, 0, len);
-
+		// Start things off by telling the server what ciphers we support.  If we've been
+		// here before, guess that the server still wants the same key exchange method and
+		// send its first packet right behind, instead of waiting a round trip to find out.
+		String[] preferences = (String[]) serverPreferences_.get(host_ + ":" + port_);
+		String[] kex = null, hostKey = null;
+		if(preferences != null)
+		{
+			kex = SSH2Algorithms.preferring(SSH2Algorithms.KEX, preferences[0]);
+			hostKey = SSH2Algorithms.preferring(SSH2Algorithms.HOST_KEY, preferences[1]);
+		}
+		if(kex == null || hostKey == null)
+		{
+			sendKexInit();
+			return;
+		}
+		
+		synchronized(sendPacket_)
+		{
+			sendKexInit(kex, hostKey, true);
+			kexAlgorithm_ = kexGuess_ = kex[0];
+			sendFirstKexPacket();
+		}
+	}
+	
+	/**
+	 * Sends our KEXINIT, which starts a key exchange unless the server already has.  From
+	 * now until our NEWKEYS, sendPacket() holds back anything that isn't part of it.
+	 * 
+	 * @throws IOException
+	 */
+	private void sendKexInit() throws IOException
+	{
+		sendKexInit(SSH2Algorithms.KEX, SSH2Algorithms.HOST_KEY, false);
+	}
+	
+	/**
+	 * Same, with our key exchange and host key algorithms in a different order.
+	 * 
+	 * @param kex SSH2Algorithms.KEX, in any order
+	 * @param hostKey SSH2Algorithms.HOST_KEY, in any order
+	 * @param firstKexPacketFollows Whether the caller is sending the first packet of the
+	 * method at the front of kex next, before the server's KEXINIT
+	 * @throws IOException
+	 */
+	private void sendKexInit(String[] kex, String[] hostKey, boolean firstKexPacketFollows) throws IOException
+	{
+		synchronized(sendPacket_)
+		{
+			// The server picks from our lists in the order we sent them, so that's the order
+			// we have to negotiate with too
+			compressionOffered_ = compressionUnprofitable_ ? SSH2Algorithms.COMPRESSION_LAST : SSH2Algorithms.COMPRESSION;
+			SSH2.becomeKexInitPacket(sendPacket_, kex, hostKey, compressionOffered_, firstKexPacketFollows);
+			
+			// Save this payload because we'll need it later to calculate the exchange hash.
+			// It starts with the packet type field right after the padlen field, and has to be
+			// copied before bless() pads and encrypts it.
+			clientKexInitData_ = new byte[sendPacket_.getLength() - 5];
+			System.arraycopy(sendPacket_.data, 5, clientKexInitData_, 0, clientKexInitData_.length);
+			
+			kexOffered_ = kex;
+			hostKeyOffered_ = hostKey;
+			keyExchanging_ = true;
+			sendPacket(sendPacket_);
+		}
+	}
+	
+	/**
+	 * Sets when we start a new key exchange ourselves, to replace keys that have been used
+	 * for long enough.  The server may well do it sooner.  The defaults are a gigabyte,
+	 * 2^31 packets or an hour, counting both directions.
+	 * 
+	 * @param bytes Bytes sent and received, or 0 for no limit
+	 * @param packets Packets sent and received, or 0 for no limit
+	 * @param seconds Time since the last key exchange, or 0 for no limit.  It's only
+	 * checked when a packet arrives.
+	 */
+	public void setRekeyLimits(long bytes, long packets, long seconds)
+	{
+		synchronized(sendPacket_)
+		{
+			rekeyBytes_ = bytes;
+			rekeyPackets_ = packets;
+			rekeyMillis_ = seconds * 1000;
+		}
 	}
 	
 	/**
@@ -601,6 +1438,8 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	 */
 	public void close() throws IOException
 	{
+		if(receivedFromRemoteHostFifo_ != null)
+			receivedFromRemoteHostFifo_.close();
 		if(remoteOut_ != null)
 			remoteOut_.close();
 		if(remoteIn_ != null)
@@ -609,16 +1448,92 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	
 	/**
 	 * Sends an SSH2 packet, taking care of the encryption and sequence number stuff.
+	 * Hold sendPacket_'s lock while calling this.
 	 * 
 	 * @param p The packet to send
 	 * @throws IOException
 	 */
 	private void sendPacket(SSH2.Packet p) throws IOException
 	{
+		// Once we've sent KEXINIT, only transport and key exchange messages may follow
+		// until our NEWKEYS (RFC 4253 section 7.1).  Anything else waits for the new keys.
+		int type = p.getType();
+		if(keyExchanging_ && (type >= SSH2.MSG_USERAUTH_REQUEST || type == SSH2.MSG_SERVICE_REQUEST
+				|| type == SSH2.MSG_SERVICE_ACCEPT))
+		{
+			System.err.println("sendPacket: Holding on to packet of type " + p.getTypeName() + " until the key exchange is done");
+			byte[] payload = new byte[p.getLength() - 5];
+			System.arraycopy(p.data, 5, payload, 0, payload.length);
+			pendingPackets_.addElement(payload);
+			return;
+		}
+		
 		System.err.println("sendPacket: Sending packet of type " + p.getTypeName());
 		sentSequenceNumber_++;
 		p.setSequenceNumber(sentSequenceNumber_);
 		p.send(remoteOut_);
+		bytesSinceKex_ += p.getLength();
+		packetsSinceKex_++;
+	}
+	
+	/**
+	 * Reads one packet from the server and handles it.  If it carried channel data, the
+	 * ChannelDataSink has been given it by the time this returns.
+	 * Call this in a loop from a thread dedicated to receiving.
+	 * 
+	 * @throws IOException
+	 */
+	public void processNextPacket() throws IOException
+	{
+		// Received packet needs to know its sequence number to correctly
+		// compute the MAC
+		recvPacket_.setSequenceNumber(++receivedSequenceNumber_);
+		// fromNetwork() will read at least an entire SSH2 packet
+		recvPacket_.fromNetwork(remoteIn_);
+		dispatchPacketHandler(recvPacket_);
+	}
+	
+	/**
+	 * Handles bytes from the server, however few or many, for connections started with
+	 * start().  Every packet they complete is handled before this returns, and a packet
+	 * cut off at the end is picked up again by the next call.  If one carried channel data,
+	 * the ChannelDataSink has been given it, so the sink shouldn't block for long.
+	 * 
+	 * @param b Bytes from the server
+	 * @param off Where they start in b
+	 * @param len How many there are
+	 * @throws IOException
+	 */
+	public void feed(byte[] b, int off, int len) throws IOException
+	{
+		int end = off + len;
+		
+		// First comes the server's version string, which is a line of text
+		while(serverVersionString_ == null && off < end)
+		{
+			byte c = b[off++];
+			if(c == '\n')
+			{
+				serverVersionString_ = serverVersionLine_.toString().trim();
+				System.err.println("Server ID string: " + serverVersionString_);
+			}
+			else
+				serverVersionLine_.append((char) c);
+		}
+		
+		if(off == end)
+			return;
+		
+		if(decoder_ == null)
+		{
+			decoder_ = new SSH2.PacketDecoder(recvPacket_, receivedSequenceNumber_ + 1, new SSH2.PacketDecoder.Handler() {
+				public void handlePacket(SSH2.Packet p) throws IOException
+				{
+					dispatchPacketHandler(p);
+				}
+			});
+		}
+		decoder_.feed(b, off, end - off);
 	}
 	
 	/**
@@ -631,8 +1546,18 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	{
 		p.rewind();
 		p.skip(5); // Position pointer so next getByte will return packet type
-		int packetType = p.getByte();
+		int packetType = p.getByte() & 0xff; // Servers can send types up to 255
 		int packetLength = p.getLengthField();
+		checkCompression(p);
+		checkRekey(p.getLength());
+		
+		// RFC 4253 section 7: the packet after a KEXINIT with a wrong guess is silently ignored
+		if(ignoreGuessedKexPacket_)
+		{
+			ignoreGuessedKexPacket_ = false;
+			System.err.println("dispatchPacketHandler: Ignoring " + p.getTypeName() + " the server sent for its wrong guess");
+			return;
+		}
 		
 		if(packetHandlers_[packetType] != null)
 		{
@@ -648,43 +1573,199 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 	}
 
 	/**
-	 * Generate keys (IV, encryption, MAC).
+	 * Picks the algorithm of one kind that we'll use, given the server's name-list.
+	 * 
+	 * @param what What kind of algorithm this is, for the error message
+	 * @param ours Our list, most preferred first
+	 * @param serverNameList The server's name-list from its KEXINIT
+	 * @return The chosen algorithm
+	 * @throws SSH2Exception If there's nothing we both support
+	 */
+	private String negotiate(String what, String[] ours, String serverNameList) throws SSH2Exception
+	{
+		String chosen = SSH2Algorithms.choose(ours, SSH2Algorithms.parseNameList(serverNameList));
+		if(chosen == null)
+		{
+			System.err.println("negotiate: Server offered " + what + " algorithms " + serverNameList + ", none of which we support");
+			throw new SSH2Exception(SSH2.MSG_KEXINIT, "No " + what + " algorithm in common with the server.");
+		}
+		return chosen;
+	}
+	
+	/**
+	 * Generate keys (IV, encryption, MAC), and the ciphers that use them.  Nothing starts
+	 * using them until NEWKEYS.
 	 */
 	private void generateKeys()
 	{
+		int c2sKeyLength = SSH2Algorithms.getCipherKeyLength(clientToServerCipher_);
+		int s2cKeyLength = SSH2Algorithms.getCipherKeyLength(serverToClientCipher_);
+		
 		// Create IV and keys
-		clientToServerInitVector_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'A', sessionID_);
-		clientToServerKey_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'C', sessionID_);
-		clientToServerHmacKey_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'E', sessionID_);
-		serverToClientInitVector_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'B', sessionID_);
-		serverToClientKey_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'D', sessionID_);
-		serverToClientHmacKey_ = SSH2.generateKeyWithSHA1(sharedSecret_, exchangeHash_, (byte) 'F', sessionID_);
+		clientToServerInitVector_ = deriveKey('A', 0);
+		clientToServerKey_ = deriveKey('C', c2sKeyLength);
+		clientToServerHmacKey_ = (clientToServerMac_ == null) ? null
+				: deriveKey('E', SSH2Algorithms.getMacKeyLength(clientToServerMac_));
+		serverToClientInitVector_ = deriveKey('B', 0);
+		serverToClientKey_ = deriveKey('D', s2cKeyLength);
+		serverToClientHmacKey_ = (serverToClientMac_ == null) ? null
+				: deriveKey('F', SSH2Algorithms.getMacKeyLength(serverToClientMac_));
 		
 		//System.err.print("HMAC key:");
 		//hexDump(clientToServerHmacKey);
 		//System.err.print("serverToClientKey:");
 		//hexDump(serverToClientKey);
 		
-		// For now we only support AES-128
-		aesEncryptor_ = new CBCBlockCipher(new AESEngine());
+		encryptor_ = SSH2Algorithms.newCipher(clientToServerCipher_);
 		// The encryption key is a hash of the concatenation of some stuff
-		KeyParameter serverKeyParam = new KeyParameter(clientToServerKey_, 0, 128/8);
-		aesEncryptor_.init(true, new ParametersWithIV(serverKeyParam, clientToServerInitVector_, 0, 128/8));
-		aesDecryptor_ = new CBCBlockCipher(new AESEngine());
-		KeyParameter serverToClientKeyParam = new KeyParameter(serverToClientKey_, 0, 128/8);
-		aesDecryptor_.init(false, new ParametersWithIV(serverToClientKeyParam, serverToClientInitVector_, 0, 128/8));
-		recvPacket_.setDecryptor(aesDecryptor_);
-		recvPacket_.setDecryptionHMac(new HMac(new SHA1Digest()), serverToClientHmacKey_);
-
-		// TEMPORARY
-		recvPacket_.setEncryptor(aesEncryptor_);
-		recvPacket_.setEncryptionHMac(new HMac(new SHA1Digest()), clientToServerHmacKey_);
+		KeyParameter serverKeyParam = new KeyParameter(clientToServerKey_, 0, c2sKeyLength);
+		int ivLength = SSH2Algorithms.getCipherIvLength(clientToServerCipher_);
+		encryptor_.init(true, new ParametersWithIV(serverKeyParam, clientToServerInitVector_, 0, ivLength));
+		decryptor_ = SSH2Algorithms.newCipher(serverToClientCipher_);
+		KeyParameter serverToClientKeyParam = new KeyParameter(serverToClientKey_, 0, s2cKeyLength);
+		ivLength = SSH2Algorithms.getCipherIvLength(serverToClientCipher_);
+		decryptor_.init(false, new ParametersWithIV(serverToClientKeyParam, serverToClientInitVector_, 0, ivLength));
+	}
 
-		sendPacket_.setEncryptor(aesEncryptor_);
-		sendPacket_.setEncryptionHMac(new HMac(new SHA1Digest()), clientToServerHmacKey_);
+	/**
+	 * Starts or stops compressing what we send to match what was agreed on.  Compression
+	 * starts with a new stream.  This is called when we switch to new keys, and once we've
+	 * logged in, which is when zlib@openssh.com starts.
+	 */
+	private void updateOutgoingCompression()
+	{
+		synchronized(sendPacket_)
+		{
+			if(SSH2Algorithms.isCompressing(clientToServerCompression_, authenticated_))
+			{
+				if(deflater_ == null)
+					deflater_ = new ZlibDeflater();
+				else
+					deflater_.reset();
+				sendPacket_.setCompressor(deflater_);
+			}
+			else
+				sendPacket_.setCompressor(null);
+		}
+	}
+	
+	/**
+	 * Same for what we receive, which switches over at the server's NEWKEYS.
+	 */
+	private void updateIncomingCompression()
+	{
+		if(SSH2Algorithms.isCompressing(serverToClientCompression_, authenticated_))
+		{
+			if(inflater_ == null)
+				inflater_ = new ZlibInflater();
+			else
+				inflater_.reset();
+			recvPacket_.setDecompressor(inflater_);
+		}
+		else
+			recvPacket_.setDecompressor(null);
+	}
+	
+	/**
+	 * Starts a key exchange of our own once the keys have been used for long enough.  Most
+	 * servers do this themselves, but not all of them, and some hang up instead.
+	 * 
+	 * @param receivedLength Length of a packet that was just received
+	 * @throws IOException
+	 */
+	private void checkRekey(int receivedLength) throws IOException
+	{
+		synchronized(sendPacket_)
+		{
+			bytesSinceKex_ += receivedLength;
+			packetsSinceKex_++;
+			if(keyExchanges_ == 0 || keyExchanging_)
+				return;
+			
+			if((rekeyBytes_ > 0 && bytesSinceKex_ >= rekeyBytes_)
+					|| (rekeyPackets_ > 0 && packetsSinceKex_ >= rekeyPackets_)
+					|| (rekeyMillis_ > 0 && System.currentTimeMillis() - lastKexTime_ >= rekeyMillis_))
+			{
+				System.err.println("checkRekey: Starting a new key exchange after " + bytesSinceKex_ + " bytes, "
+						+ packetsSinceKex_ + " packets");
+				sendKexInit();
+			}
+		}
+	}
+	
+	/**
+	 * Keeps an eye on whether compression is worth it.  Inflating and deflating take a phone
+	 * a while, and on a fast network that can be longer than sending the bytes it saves would
+	 * have taken.  How fast the network is comes from how quickly big packets arrive.
+	 * 
+	 * Once compression stops paying, what we send goes in stored blocks straight away, since
+	 * that costs next to nothing, and the next key exchange asks for no compression.
+	 * 
+	 * @param p A packet that was just received
+	 */
+	private void checkCompression(SSH2.Packet p)
+	{
+		if(p.getArrivalBytes() >= LINK_SAMPLE_MIN)
+		{
+			linkBytes_ += p.getArrivalBytes();
+			linkMillis_ += p.getArrivalMillis();
+		}
+		if(compressionUnprofitable_ || (deflater_ == null && inflater_ == null) || linkBytes_ < COMPRESSION_JUDGE_BYTES)
+			return;
 		
+		long uncompressed = 0, compressed = 0, millis = 0;
+		if(deflater_ != null)
+		{
+			uncompressed += deflater_.getTotalIn();
+			compressed += deflater_.getTotalOut();
+			millis += deflater_.getMillis();
+		}
+		if(inflater_ != null)
+		{
+			uncompressed += inflater_.getTotalOut();
+			compressed += inflater_.getTotalIn();
+			millis += inflater_.getMillis();
+		}
+		if(uncompressed < COMPRESSION_JUDGE_BYTES)
+			return;
+		
+		// How long the bytes we didn't have to send would have taken
+		long savedMillis = (uncompressed - compressed) * linkMillis_ / linkBytes_;
+		if(millis > savedMillis)
+		{
+			System.err.println("checkCompression: Compression took " + millis + " ms to save " + savedMillis
+					+ " ms; turning it off");
+			compressionUnprofitable_ = true;
+			if(deflater_ != null)
+			{
+				synchronized(sendPacket_)
+				{
+					deflater_.setLevel(ZlibDeflater.STORE);
+				}
+			}
+		}
 	}
 
+	/**
+	 * Derives one of the IVs or keys from the shared secret and exchange hash, with the
+	 * key exchange method's hash.
+	 * 
+	 * @param keyType 'A' to 'F', as in RFC 4253 section 7.2
+	 * @param length How many bytes are needed, or 0 for one hash's worth
+	 * @return Exactly length bytes, since the MAC uses all of what it's given
+	 */
+	private byte[] deriveKey(char keyType, int length)
+	{
+		byte[] key = SSH2.generateKey(SSH2Algorithms.newKexDigest(kexAlgorithm_), sharedSecret_, exchangeHash_,
+				(byte) keyType, sessionID_, length);
+		if(length == 0 || key.length == length)
+			return key;
+		
+		byte[] trimmed = new byte[length];
+		System.arraycopy(key, 0, trimmed, 0, length);
+		return trimmed;
+	}
+	
 	/**
 	 * Computes the SSH2 exchange hash.
 	 * This is composed of version strings, KEXINIT payloads, host key, DH key exchange stuff, shared secret.
@@ -713,18 +1794,36 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		// server host key
 		tmp.putInt(hostKey_.length);
 		tmp.putBytes(hostKey_);
-		// minimum, preferred, maximum group size (each one is 4 bytes)
-		tmp.putInt(SSH2.GROUP_SIZE_MIN);
-		tmp.putInt(SSH2.GROUP_SIZE_WANTED);
-		tmp.putInt(SSH2.GROUP_SIZE_MAX);
-		
-		// prime and generator
-		tmp.putBigInteger(prime_);
-		tmp.putBigInteger(generator_);
-		// client's DH public key
-		tmp.putBigInteger(dhMyPub_.getY());
-		// server's DH public key
-		tmp.putBigInteger(dhServerPub_);
+		
+		if(SSH2Algorithms.isCurve25519(kexAlgorithm_))
+		{
+			// client's and server's public keys, as strings
+			tmp.putInt(curvePublic_.length);
+			tmp.putBytes(curvePublic_);
+			tmp.putInt(curveServerPublic_.length);
+			tmp.putBytes(curveServerPublic_);
+		}
+		else if(SSH2Groups.get(kexAlgorithm_) != null)
+		{
+			// client's and server's DH public keys
+			tmp.putBigInteger(dhMyPub_.getY());
+			tmp.putBigInteger(dhServerPub_);
+		}
+		else
+		{
+			// minimum, preferred, maximum group size (each one is 4 bytes)
+			tmp.putInt(SSH2.GROUP_SIZE_MIN);
+			tmp.putInt(SSH2.GROUP_SIZE_WANTED);
+			tmp.putInt(SSH2.GROUP_SIZE_MAX);
+			
+			// prime and generator
+			tmp.putBigInteger(prime_);
+			tmp.putBigInteger(generator_);
+			// client's DH public key
+			tmp.putBigInteger(dhMyPub_.getY());
+			// server's DH public key
+			tmp.putBigInteger(dhServerPub_);
+		}
 		// shared secret
 		tmp.putBigInteger(sharedSecret_);
 		
@@ -734,7 +1833,7 @@ public class SSH2Connection /* TODO implements javax.microedition.io.Connection
 		System.err.println("***** EXCHANGE HASH SOURCE *****");
 		hexDump(debug_ehsrc);*/
 		
-		return tmp.toExchangeHash();
+		return tmp.toExchangeHash(SSH2Algorithms.newKexDigest(kexAlgorithm_));
 	}
 	
 	/**
@@ -0,0 +1,77 @@
+package com.zwerdog.cellularssh;
+import org.bouncycastle.BigInteger;
+import org.bouncycastle.crypto.params.DHParameters;
+
+/**
+ * The fixed Diffie-Hellman groups from RFC 3526, for diffie-hellman-group14-sha256 and
+ * diffie-hellman-group16-sha512 (RFC 8268).  Since both sides already know the group,
+ * KEXDH_INIT can go out right behind our KEXINIT instead of waiting a round trip for the
+ * server to pick one, and anything worked out ahead of time for a group stays good.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see SSH2Algorithms#KEX
+ */
+public class SSH2Groups
+{
+	/** 2048-bit MODP group (group 14): 2^2048 - 2^1984 - 1 + 2^64 * { [2^1918 pi] + 124476 } */
+	private static final String GROUP14_PRIME =
+		"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+		+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+		+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+		+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+		+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+		+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+		+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+		+ "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF";
+
+	/** 4096-bit MODP group (group 16): 2^4096 - 2^4032 - 1 + 2^64 * { [2^3966 pi] + 240904 } */
+	private static final String GROUP16_PRIME =
+		"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74"
+		+ "020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B302B0A6DF25F1437"
+		+ "4FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+		+ "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF05"
+		+ "98DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB"
+		+ "9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+		+ "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+		+ "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33"
+		+ "A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7DB3970F85A6E1E4C7"
+		+ "ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864"
+		+ "D87602733EC86A64521F2B18177B200CBBE117577A615D6C770988C0BAD946E2"
+		+ "08E24FA074E5AB3143DB5BFCE0FD108E4B82D120A92108011A723C12A787E6D7"
+		+ "88719A10BDBA5B2699C327186AF4E23C1A946834B6150BDA2583E9CA2AD44CE8"
+		+ "DBBBC2DB04DE8EF92E8EFC141FBECAA6287C59474E6BC05D99B2964FA090C3A2"
+		+ "233BA186515BE7ED1F612970CEE2D7AFB81BDD762170481CD0069127D5B05AA9"
+		+ "93B4EA988D8FDDC186FFB7DC90A6C08F4DF435C934063199FFFFFFFFFFFFFFFF";
+
+	/**
+	 * Private exponent sizes in bits, about twice the strength of each group as
+	 * RFC 3526 estimates it.  A full-length exponent would only make the modPow slower.
+	 */
+	private static final int GROUP14_EXPONENT_BITS = 256, GROUP16_EXPONENT_BITS = 384;
+
+	private static DHParameters group14_ = null, group16_ = null;
+
+	/**
+	 * Returns the group a key exchange method uses, if it has a fixed one.
+	 *
+	 * @param kexName One of SSH2Algorithms.KEX
+	 * @return The group, with the private exponent size set, or null for methods
+	 * like group exchange that don't have one
+	 */
+	public static synchronized DHParameters get(String kexName)
+	{
+		if(kexName.startsWith("diffie-hellman-group14-"))
+		{
+			if(group14_ == null)
+				group14_ = new DHParameters(new BigInteger(GROUP14_PRIME, 16), BigInteger.valueOf(2), null, GROUP14_EXPONENT_BITS);
+			return group14_;
+		}
+		else if(kexName.startsWith("diffie-hellman-group16-"))
+		{
+			if(group16_ == null)
+				group16_ = new DHParameters(new BigInteger(GROUP16_PRIME, 16), BigInteger.valueOf(2), null, GROUP16_EXPONENT_BITS);
+			return group16_;
+		}
+		return null;
+	}
+}
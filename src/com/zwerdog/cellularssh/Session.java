@@ -1,12 +1,13 @@
 package com.zwerdog.cellularssh;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
 import javax.microedition.io.Connector;
 import javax.microedition.io.SocketConnection;
 
+import net.rim.device.api.system.DeviceInfo;
+
 /**
  * The Session class encapsulates a session with a remote host.
  * It contains an SSH2Connection as well as the authentication information.
@@ -18,7 +19,7 @@ import javax.microedition.io.SocketConnection;
  * 
  * @author T. Joseph <ttjoseph@gmail.com>
  */
-public class Session implements SSH2Connection.StatusListener
+public class Session implements SSH2Connection.StatusListener, SSH2Connection.ChannelDataSink
 {
 	public interface StatusListener
 	{
@@ -27,10 +28,21 @@ public class Session implements SSH2Connection.StatusListener
 			DISCONNECTED = 2,
 			CONNECTION_FAILURE = 3,
 			COULD_NOT_SEND = 4,
-			RECEIVED_DATA = 5,
-			SSH_MESSAGE = 6;	
+			RECEIVED_DATA = 5, // Not sent anymore; see onReceivedData()
+			SSH_MESSAGE = 6,
+			SEND_QUEUE_FULL = 7;	
 		
 		public void onSessionEvent(int type, String message, Object data, int parameter);
+		
+		/**
+		 * Called with data from the remote host, from the session's worker thread.
+		 * The buffer is only valid until this returns.
+		 * 
+		 * @param buf Buffer holding the data
+		 * @param off Where the data starts in buf
+		 * @param len How many bytes of data
+		 */
+		public void onReceivedData(byte[] buf, int off, int len);
 	}
 	
 	private class WorkerThread implements Runnable
@@ -40,9 +52,12 @@ public class Session implements SSH2Connection.StatusListener
 			// Do connection magic
 			try
 			{
-				SocketConnection remoteHost = (SocketConnection) Connector.open("socket://" + host_ + ":" + port_ + ";deviceside=true");
-				connection_.open(remoteHost);
-				remoteIn_ = new DataInputStream(connection_.openInputStream());
+				// Stir something device-specific into the KEXINIT cookie generator
+				SSH2.random_.setSeed(DeviceInfo.getDeviceId() * (DeviceInfo.getIdleTime() % 16));
+				
+				remoteHost_ = (SocketConnection) Connector.open("socket://" + host_ + ":" + port_ + ";deviceside=true");
+				connection_.setChannelDataSink(Session.this);
+				connection_.open(remoteHost_.openDataInputStream(), remoteHost_.openDataOutputStream());
 				remoteOut_ = new DataOutputStream(connection_.openOutputStream());
 			} catch (IOException e)
 			{
@@ -51,32 +66,93 @@ public class Session implements SSH2Connection.StatusListener
 				return;
 			}
 
-			byte[] buf = new byte[512];
-			
+			// Received data goes to onChannelData() as each packet is handled
+			try
+			{
+				while(true)
+					connection_.processNextPacket();
+			} catch (IOException e)
+			{
+				listener_.onSessionEvent(StatusListener.CONNECTION_FAILURE, "Disconnected.", null, 0);
+			}
+		}
+	}
+	
+	/**
+	 * Drains the send queue, so whoever calls send() (usually the UI event thread)
+	 * never blocks on the network.  Whatever piles up while a write is stuck on a slow
+	 * link goes out together as one packet, so a burst of keystrokes doesn't cost a
+	 * packet each.
+	 */
+	private class SenderThread implements Runnable
+	{
+		public void run()
+		{
 			try
 			{
 				while(true)
 				{
-					int len = remoteIn_.read(buf, 0, buf.length);
-					if(len > 0)
-						listener_.onSessionEvent(StatusListener.RECEIVED_DATA, null, buf, len);
-					Thread.yield();
+					byte[] buf;
+					int len;
+					synchronized(sendLock_)
+					{
+						while(pendingSendLength_ == 0 && senderRunning_)
+							sendLock_.wait();
+						if(senderRunning_ == false)
+							return;
+						
+						// Swap buffers so callers can keep queueing while we're stuck in write().
+						// A buffer send() had to grow for one big write isn't kept around.
+						buf = pendingSend_;
+						len = pendingSendLength_;
+						pendingSend_ = (sending_.length > MAX_PENDING_SEND) ? new byte[MAX_PENDING_SEND] : sending_;
+						pendingSendLength_ = 0;
+						sending_ = buf;
+					}
+					// One write here is one MSG_CHANNEL_DATA packet
+					remoteOut_.write(buf, 0, len);
 				}
+			} catch (InterruptedException e)
+			{
 			} catch (IOException e)
 			{
-				listener_.onSessionEvent(StatusListener.CONNECTION_FAILURE, "Disconnected.", null, 0);
+				// Nothing more can go out, so later send() calls should say so instead of
+				// filling the queue up
+				synchronized(sendLock_)
+				{
+					closed_ = true;
+					senderRunning_ = false;
+					pendingSendLength_ = 0;
+				}
+				listener_.onSessionEvent(StatusListener.COULD_NOT_SEND,
+						"There was an error sending data.", null, 0);
 			}
 		}
 	}
 	
+	/**
+	 * Most bytes we'll hold on to before telling callers of send() to back off.  A single
+	 * bigger send() is still taken when nothing is queued ahead of it.
+	 */
+	private static final int MAX_PENDING_SEND = 4096;
+	
 	private StatusListener listener_;
 	private SSH2Connection connection_;
-	private DataInputStream remoteIn_;
+	/** The BlackBerry socket under connection_, which only ever sees its streams */
+	private SocketConnection remoteHost_;
 	private DataOutputStream remoteOut_;
 	
 	private String host_, username_, password_;
 	private int port_;
 	
+	/** Guards the send queue below */
+	private final Object sendLock_ = new Object();
+	private byte[] pendingSend_ = new byte[MAX_PENDING_SEND], sending_ = new byte[MAX_PENDING_SEND];
+	private int pendingSendLength_ = 0;
+	private boolean senderRunning_ = false;
+	/** Set by disconnect() or a failed write.  Nothing is sent after that, and no new sender starts. */
+	private boolean closed_ = false;
+	
 	Session(String host, int port, String username, String password)
 	{
 		host_ = host;
@@ -85,10 +161,15 @@ public class Session implements SSH2Connection.StatusListener
 		password_ = password;
 		connection_ = new SSH2Connection(host_, port_, username_, password_);
 		connection_.setListener(this);
+		// Round trips are what make logging in slow over the air
+		connection_.setPipelinedLogin(true);
 		
 		// Do-nothing listener
 		setListener(new StatusListener() 
-			{ public void onSessionEvent(int type, String message, Object data, int parameter) {}} );
+			{
+				public void onSessionEvent(int type, String message, Object data, int parameter) {}
+				public void onReceivedData(byte[] buf, int off, int len) {}
+			} );
 	}
 	
 	public void setListener(StatusListener listener)
@@ -112,28 +193,63 @@ public class Session implements SSH2Connection.StatusListener
 	}
 
 	/**
-	 * Sends some bytes out to the remote host. This may or may not fail,
-	 * but if it does, the caller's StatusListener will be notified.
+	 * Queues some bytes to be sent out to the remote host, and returns right away.
+	 * If sending fails, the caller's StatusListener will be notified.
 	 * This way, the caller only has to handle errors in one place.
 	 * If we passed along the IOException, the caller would have to deal with
 	 * them in every place that send() is called, which is a hassle.
 	 * 
-	 * @param bytes Data to send.
+	 * Bytes sent before the connection is up are held until it is.
+	 * 
+	 * @param bytes Data to send.  It is copied, so the caller may reuse the array.
+	 * @return False if earlier data is still waiting to go out and this won't fit
+	 * behind it, so nothing was queued; the StatusListener gets a SEND_QUEUE_FULL
+	 * event too.  Also false once the session is closed, with a COULD_NOT_SEND event.
 	 */
-	public void send(byte[] bytes)
+	public boolean send(byte[] bytes)
 	{
-		// TODO: So, we should put those bytes in a queue for a worker thread to send, because
-		// everything downstream blocks on send.
-		// So, the worker thread does the touchy business of sending and receiving and updating
-		// the screen buffer. The UI thread redraws the screen when the buffer is dirty.
-		try {
-			remoteOut_.write(bytes);
-		} catch (IOException e)
+		return send(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Queues part of an array to be sent out to the remote host.
+	 * 
+	 * @see send(byte[])
+	 * @param bytes Buffer the data is in
+	 * @param off Where the data starts in the buffer
+	 * @param len How many bytes
+	 * @return False if the send queue is backed up or the session is closed, and
+	 * nothing was queued
+	 */
+	public boolean send(byte[] bytes, int off, int len)
+	{
+		int backlog;
+		boolean closed;
+		synchronized(sendLock_)
 		{
-			listener_.onSessionEvent(StatusListener.COULD_NOT_SEND,
-					"There was an error sending data.", null, 0);
+			backlog = pendingSendLength_;
+			closed = closed_;
+			if(closed == false && (backlog == 0 || backlog + len <= MAX_PENDING_SEND))
+			{
+				// Both buffers are always at least MAX_PENDING_SEND, so only a write
+				// into an empty queue can need more room
+				if(len > pendingSend_.length)
+					pendingSend_ = new byte[len];
+				System.arraycopy(bytes, off, pendingSend_, pendingSendLength_, len);
+				pendingSendLength_ += len;
+				sendLock_.notify();
+				return true;
+			}
 		}
 		
+		// Tell the listener outside the lock, in case it wants to send something itself
+		if(closed)
+			listener_.onSessionEvent(StatusListener.COULD_NOT_SEND,
+					"The connection is closed.", null, 0);
+		else
+			listener_.onSessionEvent(StatusListener.SEND_QUEUE_FULL,
+					"The network can't keep up with what you're sending.", null, backlog);
+		return false;
 	}
 
 	/**
@@ -141,14 +257,47 @@ public class Session implements SSH2Connection.StatusListener
 	 */
 	public void disconnect()
 	{
+		synchronized(sendLock_)
+		{
+			closed_ = true;
+			senderRunning_ = false;
+			sendLock_.notify();
+		}
+		
 		try {
 			connection_.close();
+			if(remoteHost_ != null)
+				remoteHost_.close();
 		} catch (IOException e) {} // How can closing a connection fail?
 		
 	}
 	
+	/**
+	 * Hands data from the remote host straight from the decrypted packet to our listener.
+	 */
+	public void onChannelData(byte[] buf, int off, int len)
+	{
+		listener_.onReceivedData(buf, off, len);
+	}
+	
 	public void onSSH2ConnectionEvent(int eventType, String message)
 	{
+		// Once the shell has been asked for, it's OK to start sending it stuff
+		if(eventType == SSH2.MSG_CHANNEL_OPEN_CONFIRMATION)
+		{
+			boolean startSender;
+			synchronized(sendLock_)
+			{
+				// Only the first channel to open gets us a sender, and only while we're
+				// still connected
+				startSender = (senderRunning_ == false && closed_ == false);
+				if(startSender)
+					senderRunning_ = true;
+			}
+			if(startSender)
+				new Thread(new SenderThread()).start();
+		}
+		
 		// Pass along SSH messages to the SessionScreen
 		listener_.onSessionEvent(StatusListener.SSH_MESSAGE, message, null, eventType);
 	}
@@ -114,9 +114,10 @@ public class SessionScreen extends MainScreen implements Session.StatusListener
 				{
 					if(key == Characters.ENTER) // User wants to send this out over the network
 					{
-						session_.send(inputField_.getText().getBytes());
-						close();
-						return false;
+						// If it couldn't be queued, leave the text there so Enter can try again
+						if(session_.send(inputField_.getText().getBytes()))
+							close();
+						return true;
 					} else if(key == Characters.ESCAPE) // Allow user to abort input
 					{
 						close();
@@ -353,6 +354,11 @@ public class SessionScreen extends MainScreen implements Session.StatusListener
 		});
 	}
 	
+	public void onReceivedData(byte[] buf, int off, int len)
+	{
+		terminal_.write(buf, off, len);
+	}
+	
 	private void notifyUserOfClosedConnection()
 	{
 		// We don't want to use Dialog.alert() because modal dialogs are annoying
@@ -363,10 +369,6 @@ public class SessionScreen extends MainScreen implements Session.StatusListener
 	{
 		switch(type)
 		{
-		case Session.StatusListener.RECEIVED_DATA:
-			terminal_.write((byte[]) data, 0, parameter);
-			break;
-			
 		case Session.StatusListener.SSH_MESSAGE:
 			System.err.println("SessionScreen.onSessionEvent: I got an SSH_MESSAGE: " + parameter);
 			if(parameter == SSH2.MSG_CHANNEL_OPEN_CONFIRMATION)
@@ -0,0 +1,382 @@
+package com.zwerdog.cellularssh;
+
+/**
+ * Compresses a zlib stream (RFC 1950 and 1951) a packet at a time, for SSH's zlib
+ * compression.  Each call to compress() ends with a sync flush, so the other side can
+ * inflate the packet as soon as it has it, and matches can refer back into earlier packets.
+ *
+ * This is made for a phone rather than for the best ratio: an 8 kB window, greedy matching
+ * with short hash chains, and only the fixed Huffman codes.  Terminal input is mostly
+ * keystrokes, and where it's anything bigger it's usually text that repeats itself, which
+ * that handles well enough.  A packet that would come out bigger goes as a stored block.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see ZlibInflater
+ */
+public class ZlibDeflater
+{
+	/** Levels for setLevel() */
+	public static final int STORE = 0, FAST = 1;
+
+	private static final int WINDOW_BITS = 13, WINDOW_SIZE = 1 << WINDOW_BITS, WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int HASH_BITS = 12, HASH_SIZE = 1 << HASH_BITS, HASH_MASK = HASH_SIZE - 1;
+	private static final int MIN_MATCH = 3, MAX_MATCH = 258;
+	/** How many earlier places with the same three bytes we try before settling */
+	private static final int MAX_CHAIN = 8;
+	/** The zlib header: deflate with an 8 kB window, no dictionary, and the check bits */
+	private static final int HEADER_CMF = ((WINDOW_BITS - 8) << 4) | 8;
+	private static final int HEADER_FLG = 31 - ((HEADER_CMF << 8) % 31);
+
+	/** Fixed Huffman code of each literal/length symbol, backwards as it goes in the stream */
+	private static final short[] LIT_CODE = new short[288];
+	private static final byte[] LIT_BITS = new byte[288];
+	/** Fixed distance codes, which are all 5 bits, backwards */
+	private static final byte[] DIST_CODE = new byte[30];
+	/** Length symbol minus 257, for each match length */
+	private static final byte[] LENGTH_SYMBOL = new byte[MAX_MATCH + 1];
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+		35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+		3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+		257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+		7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+
+	static
+	{
+		for(int i = 0; i < 288; i++)
+		{
+			int code, bits;
+			if(i < 144)
+			{
+				code = 0x30 + i;
+				bits = 8;
+			}
+			else if(i < 256)
+			{
+				code = 0x190 + i - 144;
+				bits = 9;
+			}
+			else if(i < 280)
+			{
+				code = i - 256;
+				bits = 7;
+			}
+			else
+			{
+				code = 0xc0 + i - 280;
+				bits = 8;
+			}
+			LIT_CODE[i] = (short) reverse(code, bits);
+			LIT_BITS[i] = (byte) bits;
+		}
+		for(int i = 0; i < 30; i++)
+			DIST_CODE[i] = (byte) reverse(i, 5);
+		for(int symbol = 0; symbol < 29; symbol++)
+		{
+			int last = symbol == 28 ? MAX_MATCH : LENGTH_BASE[symbol] + (1 << LENGTH_EXTRA[symbol]) - 1;
+			for(int length = LENGTH_BASE[symbol]; length <= last; length++)
+				LENGTH_SYMBOL[length] = (byte) symbol;
+		}
+		// 258 has a symbol of its own, even though 284's extra bits could say it too
+		LENGTH_SYMBOL[MAX_MATCH] = 28;
+	}
+
+	private int level_ = FAST;
+	private boolean headerSent_ = false;
+
+	/** What's been compressed lately: the last window's worth, then the data being compressed */
+	private final byte[] window_ = new byte[2 * WINDOW_SIZE];
+	private int windowEnd_ = 0;
+	/** Where in window_ each hash of three bytes was last seen, or -1 */
+	private final short[] head_ = new short[HASH_SIZE];
+	/** For each place in the window, the previous place with the same hash, or -1 */
+	private final short[] prev_ = new short[WINDOW_SIZE];
+
+	private byte[] out_ = new byte[1024];
+	private int outLength_;
+	private int bitBuf_, bitCount_;
+
+	private long totalIn_, totalOut_, millis_;
+
+	public ZlibDeflater()
+	{
+		reset();
+	}
+
+	/**
+	 * Starts a new stream, forgetting everything compressed so far.  SSH does this at every
+	 * NEWKEYS.  The level and the totals carry on.
+	 */
+	public void reset()
+	{
+		headerSent_ = false;
+		windowEnd_ = 0;
+		bitBuf_ = bitCount_ = 0;
+		for(int i = 0; i < HASH_SIZE; i++)
+			head_[i] = -1;
+	}
+
+	/**
+	 * Sets how hard to try.  At STORE the data just gets wrapped in stored blocks, which
+	 * costs next to nothing and keeps the stream going if compression isn't worth it.
+	 *
+	 * @param level STORE or FAST
+	 */
+	public void setLevel(int level)
+	{
+		level_ = level;
+	}
+
+	/**
+	 * Compresses the next piece of the stream and flushes it.
+	 *
+	 * @param b The bytes, e.g. a packet's payload
+	 * @param off Where they start in b
+	 * @param len How many there are
+	 * @return How many bytes they compressed to, which getOutput() has
+	 */
+	public int compress(byte[] b, int off, int len)
+	{
+		long start = System.currentTimeMillis();
+		outLength_ = 0;
+		// Fixed codes are never more than 9 bits a byte, and stored blocks are 5 bytes a block
+		ensureOutput(len + (len >> 3) + 5 * (len / 65535) + 16);
+		if(headerSent_ == false)
+		{
+			out_[outLength_++] = (byte) HEADER_CMF;
+			out_[outLength_++] = (byte) HEADER_FLG;
+			headerSent_ = true;
+		}
+
+		// Whatever we send, the other side's window will have it, so ours has to as well
+		int blockStart = outLength_;
+		if(level_ != STORE)
+			putBits(2, 3); // Not the last block; fixed codes
+		for(int p = off, end = off + len; p < end; )
+		{
+			int n = Math.min(end - p, WINDOW_SIZE);
+			slideIfNeeded(n);
+			System.arraycopy(b, p, window_, windowEnd_, n);
+			if(level_ != STORE)
+				putMatches(windowEnd_, windowEnd_ + n);
+			windowEnd_ += n;
+			p += n;
+		}
+
+		if(level_ == STORE)
+			putStored(b, off, len);
+		else
+		{
+			putBits(0, 7); // End of block
+			if(outLength_ - blockStart > len + 5)
+			{
+				// Didn't help, so send it as it is instead.  The block started on a byte
+				// boundary, since every packet ends on one.
+				outLength_ = blockStart;
+				bitBuf_ = bitCount_ = 0;
+				putStored(b, off, len);
+			}
+		}
+
+		// Sync flush: an empty stored block, which brings us to a byte boundary
+		putBits(0, 3);
+		flushBits();
+		out_[outLength_++] = 0;
+		out_[outLength_++] = 0;
+		out_[outLength_++] = (byte) 0xff;
+		out_[outLength_++] = (byte) 0xff;
+
+		totalIn_ += len;
+		totalOut_ += outLength_;
+		millis_ += System.currentTimeMillis() - start;
+		return outLength_;
+	}
+
+	/**
+	 * Returns the buffer the last call to compress() left its output in.  It's reused
+	 * by the next call.
+	 */
+	public byte[] getOutput()
+	{
+		return out_;
+	}
+
+	/** Returns how many bytes have been compressed altogether */
+	public long getTotalIn()
+	{
+		return totalIn_;
+	}
+
+	/** Returns how many bytes they've compressed to altogether */
+	public long getTotalOut()
+	{
+		return totalOut_;
+	}
+
+	/** Returns how long compress() has taken altogether, in milliseconds */
+	public long getMillis()
+	{
+		return millis_;
+	}
+
+	/**
+	 * Finds matches in window_[from..to) against what came before, and puts the matches
+	 * and literals in the output.
+	 */
+	private void putMatches(int from, int to)
+	{
+		int limit = to - MIN_MATCH;
+		int s = from;
+		while(s < to)
+		{
+			int bestLength = 0, bestDistance = 0;
+			if(s <= limit)
+			{
+				int hash = hash(s);
+				int p = head_[hash];
+				int maxLength = Math.min(MAX_MATCH, to - s);
+				int chain = MAX_CHAIN;
+				while(p >= 0 && s - p <= WINDOW_SIZE && chain-- > 0)
+				{
+					if(window_[p + bestLength] == window_[s + bestLength] && window_[p] == window_[s])
+					{
+						int length = 1;
+						while(length < maxLength && window_[p + length] == window_[s + length])
+							length++;
+						if(length > bestLength)
+						{
+							bestLength = length;
+							bestDistance = s - p;
+							if(length == maxLength)
+								break;
+						}
+					}
+					int next = prev_[p & WINDOW_MASK];
+					if(next >= p)
+						break;
+					p = next;
+				}
+				insert(s, hash);
+			}
+
+			if(bestLength >= MIN_MATCH)
+			{
+				putMatch(bestLength, bestDistance);
+				// Everything inside the match goes in the hash too, so later data can refer to it
+				int matchEnd = s + bestLength;
+				for(s++; s < matchEnd; s++)
+				{
+					if(s <= limit)
+						insert(s, hash(s));
+				}
+			}
+			else
+			{
+				int c = window_[s++] & 0xff;
+				putBits(LIT_CODE[c], LIT_BITS[c]);
+			}
+		}
+	}
+
+	private void putMatch(int length, int distance)
+	{
+		int symbol = LENGTH_SYMBOL[length];
+		putBits(LIT_CODE[257 + symbol], LIT_BITS[257 + symbol]);
+		putBits(length - LENGTH_BASE[symbol], LENGTH_EXTRA[symbol]);
+
+		int d = 0;
+		while(DIST_BASE[d + 1] <= distance)
+			d++;
+		putBits(DIST_CODE[d], 5);
+		putBits(distance - DIST_BASE[d], DIST_EXTRA[d]);
+	}
+
+	private int hash(int p)
+	{
+		return (((window_[p] & 0xff) << 8) ^ ((window_[p + 1] & 0xff) << 4) ^ (window_[p + 2] & 0xff)) & HASH_MASK;
+	}
+
+	private void insert(int p, int hash)
+	{
+		prev_[p & WINDOW_MASK] = head_[hash];
+		head_[hash] = (short) p;
+	}
+
+	/**
+	 * Makes room for n more bytes at the end of window_ by dropping the oldest window's
+	 * worth, if it has to.
+	 */
+	private void slideIfNeeded(int n)
+	{
+		if(windowEnd_ + n <= window_.length)
+			return;
+		System.arraycopy(window_, WINDOW_SIZE, window_, 0, WINDOW_SIZE);
+		windowEnd_ -= WINDOW_SIZE;
+		for(int i = 0; i < HASH_SIZE; i++)
+			head_[i] = (short) (head_[i] >= WINDOW_SIZE ? head_[i] - WINDOW_SIZE : -1);
+		for(int i = 0; i < WINDOW_SIZE; i++)
+			prev_[i] = (short) (prev_[i] >= WINDOW_SIZE ? prev_[i] - WINDOW_SIZE : -1);
+	}
+
+	/**
+	 * Puts stored blocks with the bytes in them.
+	 */
+	private void putStored(byte[] b, int off, int len)
+	{
+		do
+		{
+			int n = Math.min(len, 65535);
+			putBits(0, 3); // Not the last block; stored
+			flushBits();
+			out_[outLength_++] = (byte) n;
+			out_[outLength_++] = (byte) (n >> 8);
+			out_[outLength_++] = (byte) ~n;
+			out_[outLength_++] = (byte) (~n >> 8);
+			System.arraycopy(b, off, out_, outLength_, n);
+			outLength_ += n;
+			off += n;
+			len -= n;
+		} while(len > 0);
+	}
+
+	/**
+	 * Adds bits to the output, least significant first.
+	 */
+	private void putBits(int value, int n)
+	{
+		bitBuf_ |= value << bitCount_;
+		bitCount_ += n;
+		while(bitCount_ >= 8)
+		{
+			out_[outLength_++] = (byte) bitBuf_;
+			bitBuf_ >>>= 8;
+			bitCount_ -= 8;
+		}
+	}
+
+	/**
+	 * Pads the output to a byte boundary.
+	 */
+	private void flushBits()
+	{
+		if(bitCount_ > 0)
+			out_[outLength_++] = (byte) bitBuf_;
+		bitBuf_ = bitCount_ = 0;
+	}
+
+	private void ensureOutput(int n)
+	{
+		if(out_.length < n)
+			out_ = new byte[n * 2];
+	}
+
+	private static int reverse(int code, int bits)
+	{
+		int ret = 0;
+		for(int i = 0; i < bits; i++, code >>= 1)
+			ret = (ret << 1) | (code & 1);
+		return ret;
+	}
+}
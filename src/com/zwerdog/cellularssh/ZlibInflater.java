@@ -0,0 +1,576 @@
+package com.zwerdog.cellularssh;
+import java.io.IOException;
+
+/**
+ * Inflates a zlib stream (RFC 1950 and 1951) that arrives a packet at a time, which is
+ * how SSH's zlib compression works: one stream each way, with every packet's payload
+ * being the next piece of it.  CLDC has no java.util.zip, so this does it from scratch.
+ *
+ * The sender flushes at the end of each packet, so everything in a packet can be inflated
+ * straight away.  OpenSSH uses a partial flush, though, which can leave the last few bits
+ * of a packet for the next one.  So decoding goes a symbol at a time, and if the input
+ * runs out partway through one, it backs up to the start of that symbol and keeps the
+ * leftover bits for next time.
+ *
+ * The Adler-32 checksum at the end of the stream isn't checked.  SSH never ends the stream,
+ * and the MAC has already vouched for every byte.
+ *
+ * @author Tom Joseph <ttjoseph@gmail.com>
+ * @see ZlibDeflater
+ */
+public class ZlibInflater
+{
+	/** The biggest a packet can inflate to.  OpenSSH's own limit is 256 kB. */
+	public static final int MAX_OUTPUT = 256 * 1024;
+
+	private static final int WINDOW_SIZE = 32768, WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int MAX_BITS = 15;
+	/** Codes this long or shorter are looked up in one go; longer ones a bit at a time */
+	private static final int FAST_BITS = 9, FAST_MASK = (1 << FAST_BITS) - 1;
+
+	/** What we expect next in the stream */
+	private static final int HEADER = 0, BLOCK_HEADER = 1, STORED_LENGTH = 2, STORED = 3, CODES = 4, DONE = 5;
+
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+		35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+		3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	private static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+		257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+		7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	/** The order the code length code's lengths come in */
+	private static final int[] CLEN_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+	/** The codes for fixed Huffman blocks, which are the same for everybody */
+	private static final Huffman FIXED_LIT = new Huffman(288), FIXED_DIST = new Huffman(30);
+
+	static
+	{
+		byte[] lengths = new byte[288];
+		for(int i = 0; i < 288; i++)
+			lengths[i] = (byte) (i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8);
+		FIXED_LIT.build(lengths, 0, 288);
+		for(int i = 0; i < 30; i++)
+			lengths[i] = 5;
+		FIXED_DIST.build(lengths, 0, 30);
+	}
+
+	/**
+	 * A canonical Huffman code, set up for decoding.
+	 */
+	private static class Huffman
+	{
+		/** How many codes there are of each length */
+		final int[] count = new int[MAX_BITS + 1];
+		/** The symbols, sorted by code */
+		final short[] symbol;
+		/** Indexed by the next FAST_BITS bits: symbol << 4 | code length, or 0 if the code is longer */
+		final int[] fast = new int[1 << FAST_BITS];
+		private final int[] nextCode = new int[MAX_BITS + 2];
+
+		Huffman(int maxSymbols)
+		{
+			symbol = new short[maxSymbols];
+		}
+
+		/**
+		 * Sets up the code from each symbol's code length.
+		 *
+		 * @param lengths Code lengths, 0 for symbols that aren't used
+		 * @param off Where the first symbol's length is
+		 * @param n How many symbols
+		 * @return false if there are more codes of some length than can exist
+		 */
+		boolean build(byte[] lengths, int off, int n)
+		{
+			for(int len = 0; len <= MAX_BITS; len++)
+				count[len] = 0;
+			for(int i = 0; i < n; i++)
+				count[lengths[off + i]]++;
+
+			int left = 1;
+			for(int len = 1; len <= MAX_BITS; len++)
+			{
+				left <<= 1;
+				left -= count[len];
+				if(left < 0)
+					return false;
+			}
+
+			// Where each length's symbols start in symbol[], which is also their first code
+			// relative to the first code of that length
+			nextCode[1] = 0;
+			for(int len = 1; len < MAX_BITS; len++)
+				nextCode[len + 1] = nextCode[len] + count[len];
+			for(int i = 0; i < n; i++)
+			{
+				if(lengths[off + i] != 0)
+					symbol[nextCode[lengths[off + i]]++] = (short) i;
+			}
+
+			// Now hand out the actual codes, in canonical order, for the fast table.  Codes
+			// go into the stream starting from their top bit, so the table is indexed by the
+			// code backwards.
+			for(int i = 0; i < fast.length; i++)
+				fast[i] = 0;
+			int code = 0;
+			for(int len = 1; len <= FAST_BITS; len++)
+			{
+				code <<= 1;
+				nextCode[len] = code;
+				code += count[len];
+			}
+			for(int i = 0; i < n; i++)
+			{
+				int len = lengths[off + i];
+				if(len == 0 || len > FAST_BITS)
+					continue;
+				int reversed = 0;
+				for(int c = nextCode[len]++, j = 0; j < len; j++, c >>= 1)
+					reversed = (reversed << 1) | (c & 1);
+				for(int j = reversed; j < fast.length; j += 1 << len)
+					fast[j] = (i << 4) | len;
+			}
+			return true;
+		}
+	}
+
+	private int state_ = HEADER;
+	/** Whether the block we're in is the last one */
+	private boolean lastBlock_;
+	/** Codes for the block we're in */
+	private Huffman lit_, dist_;
+	private final Huffman dynamicLit_ = new Huffman(288), dynamicDist_ = new Huffman(30),
+		codeLengthCode_ = new Huffman(19);
+	private final byte[] lengths_ = new byte[288 + 32];
+	/** Bytes still to come in the stored block we're in */
+	private int storedLeft_;
+
+	/** Input not used yet, including whatever was left over from the last packet */
+	private byte[] in_ = new byte[512];
+	private int inPos_, inEnd_;
+	/** Bits taken from in_ but not used yet, least significant first */
+	private int bitBuf_, bitCount_;
+	/** Where the symbol being decoded started, in case the input runs out partway through it */
+	private int savedPos_, savedBitBuf_, savedBitCount_;
+
+	/** The last 32 kB of output, which back references copy from */
+	private final byte[] window_ = new byte[WINDOW_SIZE];
+	private int windowPos_;
+	/** How much this stream has output, so we can tell a reference to before the start */
+	private long streamOut_;
+	private long totalOut_, totalIn_;
+	private long millis_;
+
+	private byte[] out_ = new byte[1024];
+	private int outLength_;
+
+	/**
+	 * Inflates the next piece of the stream.
+	 *
+	 * @param b Compressed bytes, e.g. a packet's payload
+	 * @param off Where they start in b
+	 * @param len How many there are
+	 * @return How many bytes they inflated to, which getOutput() has
+	 * @throws IOException If the stream is garbled, or inflates to more than MAX_OUTPUT
+	 */
+	public int decompress(byte[] b, int off, int len) throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		// Whatever didn't make up a whole symbol last time goes in front
+		int left = inEnd_ - inPos_;
+		if(in_.length < left + len)
+		{
+			byte[] in2 = new byte[(left + len) * 2];
+			System.arraycopy(in_, inPos_, in2, 0, left);
+			in_ = in2;
+		}
+		else
+			System.arraycopy(in_, inPos_, in_, 0, left);
+		System.arraycopy(b, off, in_, left, len);
+		inPos_ = 0;
+		inEnd_ = left + len;
+		outLength_ = 0;
+
+		inflate();
+
+		totalIn_ += len;
+		millis_ += System.currentTimeMillis() - start;
+		return outLength_;
+	}
+
+	/**
+	 * Starts on a new stream, forgetting everything inflated so far.  SSH does this at every
+	 * NEWKEYS.  The totals carry on.
+	 */
+	public void reset()
+	{
+		state_ = HEADER;
+		inPos_ = inEnd_ = 0;
+		bitBuf_ = bitCount_ = 0;
+		streamOut_ = 0;
+	}
+
+	/**
+	 * Returns the buffer the last call to decompress() left its output in.  It's reused
+	 * by the next call.
+	 */
+	public byte[] getOutput()
+	{
+		return out_;
+	}
+
+	/** Returns how many compressed bytes have been inflated altogether */
+	public long getTotalIn()
+	{
+		return totalIn_;
+	}
+
+	/** Returns how many bytes have come out altogether */
+	public long getTotalOut()
+	{
+		return totalOut_;
+	}
+
+	/** Returns how long decompress() has taken altogether, in milliseconds */
+	public long getMillis()
+	{
+		return millis_;
+	}
+
+	/**
+	 * Decodes as much of the input as makes up whole symbols.
+	 */
+	private void inflate() throws IOException
+	{
+		while(true)
+		{
+			switch(state_)
+			{
+			case HEADER:
+				if(need(16) == false)
+					return;
+				int cmf = bitBuf_ & 0xff, flg = (bitBuf_ >>> 8) & 0xff;
+				if((cmf & 0x0f) != 8 || (cmf >>> 4) > 7 || ((cmf << 8) | flg) % 31 != 0 || (flg & 0x20) != 0)
+					throw new IOException("Compressed data isn't a zlib stream");
+				drop(16);
+				state_ = BLOCK_HEADER;
+				break;
+
+			case BLOCK_HEADER:
+				if(need(3) == false)
+					return;
+				lastBlock_ = (bitBuf_ & 1) != 0;
+				int type = (bitBuf_ >>> 1) & 3;
+				if(type == 0)
+				{
+					drop(3);
+					drop(bitCount_ & 7); // Stored blocks start on a byte boundary
+					state_ = STORED_LENGTH;
+				}
+				else if(type == 1)
+				{
+					drop(3);
+					lit_ = FIXED_LIT;
+					dist_ = FIXED_DIST;
+					state_ = CODES;
+				}
+				else if(type == 2)
+				{
+					save();
+					drop(3);
+					if(readDynamicCodes() == false)
+					{
+						restore();
+						return;
+					}
+					state_ = CODES;
+				}
+				else
+					throw new IOException("Bad compressed block type");
+				break;
+
+			case STORED_LENGTH:
+				save();
+				if(need(16) == false)
+					return;
+				int length = bits(16);
+				if(need(16) == false)
+				{
+					restore();
+					return;
+				}
+				if(bits(16) != (~length & 0xffff))
+					throw new IOException("Bad stored block length");
+				storedLeft_ = length;
+				state_ = STORED;
+				break;
+
+			case STORED:
+				// There can still be a few whole bytes in the bit buffer
+				while(storedLeft_ > 0 && bitCount_ > 0)
+				{
+					output((byte) bits(8));
+					storedLeft_--;
+				}
+				while(storedLeft_ > 0 && inPos_ < inEnd_)
+				{
+					output(in_[inPos_++]);
+					storedLeft_--;
+				}
+				if(storedLeft_ > 0)
+					return;
+				state_ = lastBlock_ ? DONE : BLOCK_HEADER;
+				break;
+
+			case CODES:
+				if(decodeCodes() == false)
+					return;
+				state_ = lastBlock_ ? DONE : BLOCK_HEADER;
+				break;
+
+			default:
+				// Only the checksum is left, which we don't check
+				inPos_ = inEnd_;
+				bitCount_ = 0;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decodes the symbols in a Huffman block until the end of the block or of the input.
+	 *
+	 * @return true at the end of the block, false if the input ran out first
+	 */
+	private boolean decodeCodes() throws IOException
+	{
+		while(true)
+		{
+			save();
+			int symbol = decode(lit_);
+			if(symbol < 0)
+				break;
+			if(symbol < 256)
+			{
+				output((byte) symbol);
+				continue;
+			}
+			if(symbol == 256)
+				return true;
+
+			// A back reference: length, then distance
+			symbol -= 257;
+			if(symbol >= 29)
+				throw new IOException("Bad compressed length code");
+			if(need(LENGTH_EXTRA[symbol]) == false)
+				break;
+			int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+
+			symbol = decode(dist_);
+			if(symbol < 0)
+				break;
+			if(symbol >= 30)
+				throw new IOException("Bad compressed distance code");
+			if(need(DIST_EXTRA[symbol]) == false)
+				break;
+			int distance = DIST_BASE[symbol] + bits(DIST_EXTRA[symbol]);
+			if(distance > streamOut_)
+				throw new IOException("Compressed data refers to before the start of the stream");
+
+			ensureOutput(length);
+			int from = windowPos_ - distance;
+			for(int i = 0; i < length; i++)
+			{
+				byte c = window_[(from + i) & WINDOW_MASK];
+				window_[windowPos_] = c;
+				windowPos_ = (windowPos_ + 1) & WINDOW_MASK;
+				out_[outLength_++] = c;
+			}
+			streamOut_ += length;
+			totalOut_ += length;
+		}
+
+		restore();
+		return false;
+	}
+
+	/**
+	 * Reads the code length code and then the literal/length and distance codes a dynamic
+	 * block starts with.
+	 *
+	 * @return false if the input ran out first
+	 */
+	private boolean readDynamicCodes() throws IOException
+	{
+		if(need(14) == false)
+			return false;
+		int nlen = bits(5) + 257, ndist = bits(5) + 1, ncode = bits(4) + 4;
+		if(nlen > 286 || ndist > 30)
+			throw new IOException("Bad compressed block header");
+
+		for(int i = 0; i < 19; i++)
+			lengths_[i] = 0;
+		for(int i = 0; i < ncode; i++)
+		{
+			if(need(3) == false)
+				return false;
+			lengths_[CLEN_ORDER[i]] = (byte) bits(3);
+		}
+		if(codeLengthCode_.build(lengths_, 0, 19) == false)
+			throw new IOException("Bad compressed block header");
+
+		int n = 0;
+		while(n < nlen + ndist)
+		{
+			int symbol = decode(codeLengthCode_);
+			if(symbol < 0)
+				return false;
+			if(symbol < 16)
+			{
+				lengths_[n++] = (byte) symbol;
+				continue;
+			}
+
+			byte length = 0;
+			int repeat;
+			if(symbol == 16)
+			{
+				if(n == 0)
+					throw new IOException("Bad compressed block header");
+				length = lengths_[n - 1];
+				if(need(2) == false)
+					return false;
+				repeat = 3 + bits(2);
+			}
+			else if(symbol == 17)
+			{
+				if(need(3) == false)
+					return false;
+				repeat = 3 + bits(3);
+			}
+			else
+			{
+				if(need(7) == false)
+					return false;
+				repeat = 11 + bits(7);
+			}
+			if(n + repeat > nlen + ndist)
+				throw new IOException("Bad compressed block header");
+			while(repeat-- > 0)
+				lengths_[n++] = length;
+		}
+
+		if(lengths_[256] == 0 || dynamicLit_.build(lengths_, 0, nlen) == false
+				|| dynamicDist_.build(lengths_, nlen, ndist) == false)
+			throw new IOException("Bad compressed block header");
+		lit_ = dynamicLit_;
+		dist_ = dynamicDist_;
+		return true;
+	}
+
+	/**
+	 * Decodes one symbol.
+	 *
+	 * @return The symbol, or -1 if the input ran out first
+	 */
+	private int decode(Huffman h) throws IOException
+	{
+		if(need(FAST_BITS))
+		{
+			int entry = h.fast[bitBuf_ & FAST_MASK];
+			if(entry != 0)
+			{
+				drop(entry & 15);
+				return entry >>> 4;
+			}
+		}
+
+		// A long code, or we're near the end of the input: go a bit at a time
+		int code = 0, first = 0, index = 0;
+		for(int len = 1; len <= MAX_BITS; len++)
+		{
+			if(need(len) == false)
+				return -1;
+			code |= (bitBuf_ >>> (len - 1)) & 1;
+			int count = h.count[len];
+			if(code - count < first)
+			{
+				drop(len);
+				return h.symbol[index + code - first];
+			}
+			index += count;
+			first = (first + count) << 1;
+			code <<= 1;
+		}
+		throw new IOException("Bad compressed data");
+	}
+
+	/**
+	 * Makes sure there are at least n bits in the bit buffer, if the input has them.
+	 */
+	private boolean need(int n)
+	{
+		while(bitCount_ < n)
+		{
+			if(inPos_ == inEnd_)
+				return false;
+			bitBuf_ |= (in_[inPos_++] & 0xff) << bitCount_;
+			bitCount_ += 8;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes n bits that need() has made sure of.
+	 */
+	private int bits(int n)
+	{
+		int ret = bitBuf_ & ((1 << n) - 1);
+		drop(n);
+		return ret;
+	}
+
+	private void drop(int n)
+	{
+		bitBuf_ >>>= n;
+		bitCount_ -= n;
+	}
+
+	private void save()
+	{
+		savedPos_ = inPos_;
+		savedBitBuf_ = bitBuf_;
+		savedBitCount_ = bitCount_;
+	}
+
+	private void restore()
+	{
+		inPos_ = savedPos_;
+		bitBuf_ = savedBitBuf_;
+		bitCount_ = savedBitCount_;
+	}
+
+	private void output(byte c) throws IOException
+	{
+		ensureOutput(1);
+		window_[windowPos_] = c;
+		windowPos_ = (windowPos_ + 1) & WINDOW_MASK;
+		out_[outLength_++] = c;
+		streamOut_++;
+		totalOut_++;
+	}
+
+	private void ensureOutput(int n) throws IOException
+	{
+		if(outLength_ + n <= out_.length)
+			return;
+		if(outLength_ + n > MAX_OUTPUT)
+			throw new IOException("Compressed packet inflates to more than " + MAX_OUTPUT + " bytes");
+		byte[] out2 = new byte[Math.min(Math.max(out_.length * 2, outLength_ + n), MAX_OUTPUT)];
+		System.arraycopy(out_, 0, out2, 0, outLength_);
+		out_ = out2;
+	}
+}
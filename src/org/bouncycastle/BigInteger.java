@@ -1243,7 +1243,7 @@ public class BigInteger
                         return false;
                     }
 
-                    y = y.modPow(TWO, n);
+                    y = y.multiply(y).mod(n);
 
                     if (y.equals(ONE))
                     {
@@ -1438,7 +1438,6 @@ public class BigInteger
 
             if (useMonty)
             {
-                yAccum = new int[m.magnitude.length + 1];
                 if (zVal.length < m.magnitude.length)
                 {
                     int[] longZ = new int[m.magnitude.length];
@@ -1475,58 +1474,48 @@ public class BigInteger
             yAccum = new int[m.magnitude.length * 2];
         }
 
-        yVal = new int[m.magnitude.length];
-
-        //
-        // from LSW to MSW
-        //
-        for (int i = 0; i < exponent.magnitude.length; i++)
+        if (useMonty)
+        {
+            yVal = modPowMonty(zVal, exponent.magnitude, m.magnitude, mQ);
+        }
+        else
         {
-            int v = exponent.magnitude[i];
-            int bits = 0;
+            yVal = new int[m.magnitude.length];
 
-            if (i == 0)
+            //
+            // from LSW to MSW
+            //
+            for (int i = 0; i < exponent.magnitude.length; i++)
             {
-                while (v > 0)
+                int v = exponent.magnitude[i];
+                int bits = 0;
+
+                if (i == 0)
                 {
+                    while (v > 0)
+                    {
+                        v <<= 1;
+                        bits++;
+                    }
+
+                    //
+                    // first time in initialise y
+                    //
+                    System.arraycopy(zVal, 0, yVal, 0, zVal.length);
+
                     v <<= 1;
                     bits++;
                 }
 
-                //
-                // first time in initialise y
-                //
-                System.arraycopy(zVal, 0, yVal, 0, zVal.length);
-
-                v <<= 1;
-                bits++;
-            }
-
-            while (v != 0)
-            {
-                if (useMonty)
-                {
-                    // Montgomery square algo doesn't exist, and a normal
-                    // square followed by a Montgomery reduction proved to
-                    // be almost as heavy as a Montgomery mulitply.
-                    multiplyMonty(yAccum, yVal, yVal, m.magnitude, mQ);
-                }
-                else
+                while (v != 0)
                 {
                     square(yAccum, yVal);
                     remainder(yAccum, m.magnitude);
                     System.arraycopy(yAccum, yAccum.length - yVal.length, yVal, 0, yVal.length);
                     zero(yAccum);
-                }
-                bits++;
+                    bits++;
 
-                if (v < 0)
-                {
-                    if (useMonty)
-                    {
-                        multiplyMonty(yAccum, yVal, zVal, m.magnitude, mQ);
-                    }
-                    else
+                    if (v < 0)
                     {
                         multiply(yAccum, yVal, zVal);
                         remainder(yAccum, m.magnitude);
@@ -1534,36 +1523,21 @@ public class BigInteger
                                 yVal.length);
                         zero(yAccum);
                     }
-                }
-
-                v <<= 1;
-            }
 
-            while (bits < 32)
-            {
-                if (useMonty)
-                {
-                    multiplyMonty(yAccum, yVal, yVal, m.magnitude, mQ);
+                    v <<= 1;
                 }
-                else
+
+                while (bits < 32)
                 {
                     square(yAccum, yVal);
                     remainder(yAccum, m.magnitude);
                     System.arraycopy(yAccum, yAccum.length - yVal.length, yVal, 0, yVal.length);
                     zero(yAccum);
+                    bits++;
                 }
-                bits++;
             }
         }
 
-        if (useMonty)
-        {
-            // Return y * R^(-1) mod m by doing y * 1 * R^(-1) mod m
-            zero(zVal);
-            zVal[zVal.length - 1] = 1;
-            multiplyMonty(yAccum, yVal, zVal, m.magnitude, mQ);
-        }
-
         BigInteger result = new BigInteger(1, yVal);
 
         return exponent.sign > 0
@@ -1571,6 +1545,235 @@ public class BigInteger
             :   result.modInverse(m);
     }
 
+    /**
+     * Window sizes for modPowMonty: an exponent of up to EXP_WINDOW_THRESHOLDS[k - 1]
+     * bits gets a window of k bits.  Bigger windows mean fewer multiplications, but
+     * a table of 2^(k-1) powers has to be made first.
+     */
+    private static final int[] EXP_WINDOW_THRESHOLDS = { 7, 25, 81, 241, 673, 1793, Integer.MAX_VALUE };
+
+    /**
+     * Sliding window exponentiation in Montgomery form.  Everything it works in is
+     * allocated up front, so the squarings and multiplications don't make garbage.
+     *
+     * @param zVal the base times R mod m, the same length as m
+     * @param exp the exponent's magnitude
+     * @param m the modulus, which must be odd
+     * @param mQ m.getMQuote()
+     * @return base^exp mod m, the same length as m.  zVal is overwritten.
+     */
+    private int[] modPowMonty(int[] zVal, int[] exp, int[] m, long mQ)
+    {
+        int n = m.length;
+        int expBits = bitLength(0, exp);
+
+        int k = 1;
+        while (expBits > EXP_WINDOW_THRESHOLDS[k - 1])
+        {
+            k++;
+        }
+
+        // a is multiplyMonty's workspace, t holds a whole product for reduceMonty and
+        // s is scratch for the Karatsuba routines.  yVal is the running result.
+        int[] a = new int[n + 1];
+        int[] t = new int[2 * n + 1];
+        int[] s = new int[karatsubaScratchSize(n)];
+        int[] yVal = new int[n];
+
+        // oddPowers[i] = z^(2i + 1), all in Montgomery form
+        int[][] oddPowers = new int[1 << (k - 1)][];
+        oddPowers[0] = zVal;
+        if (oddPowers.length > 1)
+        {
+            int[] zSquared = new int[n];
+            System.arraycopy(zVal, 0, zSquared, 0, n);
+            squareMonty(a, t, s, zSquared, m, mQ);
+
+            for (int i = 1; i < oddPowers.length; i++)
+            {
+                oddPowers[i] = new int[n];
+                System.arraycopy(oddPowers[i - 1], 0, oddPowers[i], 0, n);
+                multiplyMonty(a, t, s, oddPowers[i], zSquared, m, mQ);
+            }
+        }
+
+        //
+        // from the top bit down, a window at a time
+        //
+        boolean first = true;
+        int i = expBits - 1;
+        while (i >= 0)
+        {
+            if (!testBit(exp, i))
+            {
+                squareMonty(a, t, s, yVal, m, mQ);
+                i--;
+                continue;
+            }
+
+            // the window is the longest run of at most k bits from here that ends in a 1
+            int low = Math.max(i - k + 1, 0);
+            while (!testBit(exp, low))
+            {
+                low++;
+            }
+
+            int window = 0;
+            for (int j = i; j >= low; j--)
+            {
+                window <<= 1;
+                if (testBit(exp, j))
+                {
+                    window |= 1;
+                }
+            }
+
+            if (first)
+            {
+                System.arraycopy(oddPowers[window >>> 1], 0, yVal, 0, n);
+                first = false;
+            }
+            else
+            {
+                for (int j = i; j >= low; j--)
+                {
+                    squareMonty(a, t, s, yVal, m, mQ);
+                }
+                multiplyMonty(a, t, s, yVal, oddPowers[window >>> 1], m, mQ);
+            }
+
+            i = low - 1;
+        }
+
+        // Return y * R^(-1) mod m by doing y * 1 * R^(-1) mod m
+        zero(zVal);
+        zVal[n - 1] = 1;
+        multiplyMonty(a, yVal, zVal, m, mQ);
+
+        return yVal;
+    }
+
+    /**
+     * Bit n of a magnitude, counting from the least significant.
+     */
+    private static boolean testBit(int[] mag, int n)
+    {
+        return ((mag[mag.length - 1 - (n >>> 5)] >>> (n & 31)) & 1) != 0;
+    }
+
+    /**
+     * x = x * x * R^(-1) mod m.  Squares with squarePart(), which is cheaper than a
+     * general multiplication, and then reduces.
+     *
+     * @param a workspace of m.length + 1 words
+     * @param t workspace of 2 * m.length + 1 words
+     * @param s workspace of karatsubaScratchSize(m.length) words
+     */
+    private void squareMonty(int[] a, int[] t, int[] s, int[] x, int[] m, long mQuote)
+    {
+        t[0] = 0;
+        squarePart(t, 1, x, 0, m.length, s, 0);
+        reduceMonty(a, t, x, m, mQuote);
+    }
+
+    /**
+     * x = x * y * R^(-1) mod m, with Karatsuba for the product if m is big enough
+     * for that to pay off.  Takes the same workspaces as squareMonty().
+     */
+    private void multiplyMonty(int[] a, int[] t, int[] s, int[] x, int[] y, int[] m, long mQuote)
+    {
+        if (m.length < KARATSUBA_THRESHOLD)
+        {
+            multiplyMonty(a, x, y, m, mQuote);
+            return;
+        }
+        t[0] = 0;
+        multiplyPart(t, 1, x, 0, y, 0, m.length, s, 0);
+        reduceMonty(a, t, x, m, mQuote);
+    }
+
+    /**
+     * Montgomery reduction: x = t * R^(-1) mod m, for t < m * R.  t is
+     * 2 * m.length + 1 words and is overwritten; a is m.length + 1 words of
+     * workspace.
+     * <br>
+     * Based on algorithm 14.32 of Handbook of Applied Cryptography.
+     */
+    private void reduceMonty(int[] a, int[] t, int[] x, int[] m, long mQuote)
+    {
+        int n = m.length;
+
+        // clear the bottom word each time round by adding a multiple of m.  Two words
+        // at a time where we can, like multiplyMonty(), so each pass does two
+        // multiplications: m[j] * u0 and m[j + 1] * u1 both land in t[tBase + j].
+        int i = 2 * n;
+        while (i > n)
+        {
+            long u0 = ((t[i] & IMASK) * mQuote) & IMASK;
+            int tBase = i - n + 1;
+            long c0;
+            int k;
+
+            if (i - n == 1)
+            {
+                c0 = 0;
+                for (int j = n - 1; j >= 0; j--)
+                {
+                    c0 += u0 * (m[j] & IMASK) + (t[tBase + j] & IMASK);
+                    t[tBase + j] = (int)c0;
+                    c0 >>>= 32;
+                }
+                k = tBase - 1;
+                i--;
+            }
+            else
+            {
+                // the word above is only known once u0 * m has been added to it
+                c0 = u0 * (m[n - 1] & IMASK) + (t[i] & IMASK);
+                c0 >>>= 32;
+                c0 += u0 * (m[n - 2] & IMASK) + (t[i - 1] & IMASK);
+                long u1 = ((c0 & IMASK) * mQuote) & IMASK;
+                long c1 = u1 * (m[n - 1] & IMASK) + (c0 & IMASK);
+                c0 >>>= 32;
+                c1 >>>= 32;
+
+                long mPrev = m[n - 2] & IMASK;
+                for (int j = n - 3; j >= 0; j--)
+                {
+                    long m_j = m[j] & IMASK;
+                    c0 += u0 * m_j + (t[tBase + j] & IMASK);
+                    c1 += u1 * mPrev + (c0 & IMASK);
+                    t[tBase + j] = (int)c1;
+                    c0 >>>= 32;
+                    c1 >>>= 32;
+                    mPrev = m_j;
+                }
+
+                k = tBase - 1;
+                c0 += t[k] & IMASK;
+                c1 += u1 * mPrev + (c0 & IMASK);
+                t[k--] = (int)c1;
+                c0 = (c0 >>> 32) + (c1 >>> 32);
+                i -= 2;
+            }
+
+            while (c0 != 0)
+            {
+                c0 += t[k] & IMASK;
+                t[k--] = (int)c0;
+                c0 >>>= 32;
+            }
+        }
+
+        // the result is in t[0..n]; if it's >= m then subtract m
+        System.arraycopy(t, 0, a, 0, n + 1);
+        if (compareTo(0, a, 0, m) >= 0)
+        {
+            subtract(0, a, 0, m);
+        }
+        System.arraycopy(a, 1, x, 0, n);
+    }
+
     /**
      * return w with w = x * x - w is assumed to have enough space.
      */
@@ -1681,6 +1884,249 @@ public class BigInteger
         return x;
     }
 
+    /**
+     * Products of magnitudes at least this many words long are split in half
+     * (Karatsuba) rather than done word by word.  Chosen with MultiplyBenchmark
+     * and ModPowBenchmark: below it the extra additions cost more than the
+     * multiplications saved.
+     */
+    private static final int KARATSUBA_THRESHOLD = 48;
+
+    /**
+     * How much scratch space multiplyPart() and squarePart() need for an
+     * n word product.
+     */
+    private static int karatsubaScratchSize(int n)
+    {
+        if (n < KARATSUBA_THRESHOLD)
+        {
+            return 0;
+        }
+        int h = n - n / 2;
+        return 4 * (h + 1) + karatsubaScratchSize(h + 1);
+    }
+
+    /**
+     * z[zOff..zOff + 2n) = x[xOff..xOff + n) * y[yOff..yOff + n), most significant
+     * word first like everything else here.
+     *
+     * @param s scratch space of at least karatsubaScratchSize(n) words from sOff
+     */
+    private static void multiplyPart(int[] z, int zOff, int[] x, int xOff, int[] y, int yOff, int n,
+        int[] s, int sOff)
+    {
+        if (n < KARATSUBA_THRESHOLD)
+        {
+            for (int i = zOff + n; i < zOff + 2 * n; i++)
+            {
+                z[i] = 0;
+            }
+            for (int i = n - 1; i >= 0; i--)
+            {
+                long a = x[xOff + i] & IMASK;
+                long c = 0;
+                // y[yOff + j] * a lands in z[zBase + j]
+                int zBase = zOff + i + 1;
+                for (int j = n - 1; j >= 0; j--)
+                {
+                    c += a * (y[yOff + j] & IMASK) + (z[zBase + j] & IMASK);
+                    z[zBase + j] = (int)c;
+                    c >>>= 32;
+                }
+                z[zOff + i] = (int)c;
+            }
+            return;
+        }
+
+        //
+        // x = xh * b^l + xl, y = yh * b^l + yl
+        // x * y = xh * yh * b^2l + ((xh + xl)(yh + yl) - xh * yh - xl * yl) * b^l + xl * yl
+        //
+        int l = n / 2;
+        int h = n - l;
+        int xs = sOff;
+        int ys = xs + h + 1;
+        int p = ys + h + 1;
+        int next = p + 2 * (h + 1);
+
+        multiplyPart(z, zOff, x, xOff, y, yOff, h, s, next);
+        multiplyPart(z, zOff + 2 * h, x, xOff + h, y, yOff + h, l, s, next);
+
+        addPart(s, xs, x, xOff, h, x, xOff + h, l);
+        addPart(s, ys, y, yOff, h, y, yOff + h, l);
+        multiplyPart(s, p, s, xs, s, ys, h + 1, s, next);
+
+        combineKaratsuba(z, zOff, n, s, p, h);
+    }
+
+    /**
+     * z[zOff..zOff + 2n) = x[xOff..xOff + n)^2.  Only about half the word products
+     * of a multiplication are needed, since x[i] * x[j] = x[j] * x[i].
+     *
+     * @param s scratch space of at least karatsubaScratchSize(n) words from sOff
+     */
+    private static void squarePart(int[] z, int zOff, int[] x, int xOff, int n, int[] s, int sOff)
+    {
+        if (n < KARATSUBA_THRESHOLD)
+        {
+            for (int i = zOff; i < zOff + 2 * n; i++)
+            {
+                z[i] = 0;
+            }
+
+            // the products below the diagonal, once each.  Two rows at a time, so each
+            // pass does two multiplications: x[i] * x[j] and x[i - 1] * x[j + 1] both
+            // land in z[zBase + j].
+            int i = n - 1;
+            for (; i >= 2; i -= 2)
+            {
+                long a0 = x[xOff + i] & IMASK;
+                long a1 = x[xOff + i - 1] & IMASK;
+                int zBase = zOff + i + 1;
+
+                long c0 = a0 * (x[xOff + i - 1] & IMASK) + (z[zBase + i - 1] & IMASK);
+                z[zBase + i - 1] = (int)c0;
+                c0 >>>= 32;
+                c0 += a0 * (x[xOff + i - 2] & IMASK) + (z[zBase + i - 2] & IMASK);
+                z[zBase + i - 2] = (int)c0;
+                c0 >>>= 32;
+
+                long c1 = 0;
+                long xPrev = x[xOff + i - 2] & IMASK;
+                for (int j = i - 3; j >= 0; j--)
+                {
+                    long x_j = x[xOff + j] & IMASK;
+                    c0 += a0 * x_j + (z[zBase + j] & IMASK);
+                    c1 += a1 * xPrev + (c0 & IMASK);
+                    z[zBase + j] = (int)c1;
+                    c0 >>>= 32;
+                    c1 >>>= 32;
+                    xPrev = x_j;
+                }
+
+                c1 += a1 * xPrev + c0;
+                z[zOff + i] = (int)c1;
+                z[zOff + i - 1] = (int)(c1 >>> 32);
+            }
+            if (i == 1)
+            {
+                long c = (x[xOff + 1] & IMASK) * (x[xOff] & IMASK) + (z[zOff + 2] & IMASK);
+                z[zOff + 2] = (int)c;
+                z[zOff + 1] = (int)(c >>> 32);
+            }
+
+            // double them, and add the squares on the diagonal
+            long c = 0;
+            int top = 0;
+            for (i = n - 1; i >= 0; i--)
+            {
+                long a = x[xOff + i] & IMASK;
+                long sq = a * a;
+                int k = zOff + 2 * i + 1;
+
+                int w = z[k];
+                c += (sq & IMASK) + (((w << 1) | top) & IMASK);
+                top = w >>> 31;
+                z[k] = (int)c;
+                c >>>= 32;
+
+                w = z[k - 1];
+                c += (sq >>> 32) + (((w << 1) | top) & IMASK);
+                top = w >>> 31;
+                z[k - 1] = (int)c;
+                c >>>= 32;
+            }
+            return;
+        }
+
+        int l = n / 2;
+        int h = n - l;
+        int xs = sOff;
+        int p = xs + 2 * (h + 1);
+        int next = p + 2 * (h + 1);
+
+        squarePart(z, zOff, x, xOff, h, s, next);
+        squarePart(z, zOff + 2 * h, x, xOff + h, l, s, next);
+
+        addPart(s, xs, x, xOff, h, x, xOff + h, l);
+        squarePart(s, p, s, xs, h + 1, s, next);
+
+        combineKaratsuba(z, zOff, n, s, p, h);
+    }
+
+    /**
+     * The last step of a Karatsuba multiplication.  z holds the high half's product
+     * (2h words) followed by the low half's (the rest), and p (2h + 2 words) the
+     * product of the sums.  Adds p minus both into the middle of z.
+     */
+    private static void combineKaratsuba(int[] z, int zOff, int n, int[] s, int p, int h)
+    {
+        int pLen = 2 * (h + 1);
+        int l = n - h;
+
+        subtractPart(s, p, pLen, z, zOff, 2 * h);
+        subtractPart(s, p, pLen, z, zOff + 2 * h, 2 * l);
+
+        // the last word of p lines up with word l from the end of z
+        long c = 0;
+        int k = zOff + 2 * n - l - 1;
+        for (int i = p + pLen - 1; i >= p && k >= zOff; i--, k--)
+        {
+            c += (z[k] & IMASK) + (s[i] & IMASK);
+            z[k] = (int)c;
+            c >>>= 32;
+        }
+        while (c != 0 && k >= zOff)
+        {
+            c += z[k] & IMASK;
+            z[k--] = (int)c;
+            c >>>= 32;
+        }
+    }
+
+    /**
+     * z[zOff..zOff + aLen + 1) = a + b, where b is no longer than a.
+     */
+    private static void addPart(int[] z, int zOff, int[] a, int aOff, int aLen, int[] b, int bOff,
+        int bLen)
+    {
+        long c = 0;
+        int k = zOff + aLen;
+        int j = bOff + bLen - 1;
+        for (int i = aOff + aLen - 1; i >= aOff; i--, j--, k--)
+        {
+            c += a[i] & IMASK;
+            if (j >= bOff)
+            {
+                c += b[j] & IMASK;
+            }
+            z[k] = (int)c;
+            c >>>= 32;
+        }
+        z[k] = (int)c;
+    }
+
+    /**
+     * x[xOff..xOff + xLen) -= y[yOff..yOff + yLen), which must not go negative.
+     */
+    private static void subtractPart(int[] x, int xOff, int xLen, int[] y, int yOff, int yLen)
+    {
+        long m = 0;
+        int i = xOff + xLen - 1;
+        for (int j = yOff + yLen - 1; j >= yOff; j--, i--)
+        {
+            m += (x[i] & IMASK) - (y[j] & IMASK);
+            x[i] = (int)m;
+            m >>= 32;
+        }
+        while (m != 0)
+        {
+            m += x[i] & IMASK;
+            x[i--] = (int)m;
+            m >>= 32;
+        }
+    }
+
     private long _extEuclid(long a, long b, long[] uOut)
     {
         long res;
@@ -1780,8 +2226,8 @@ public class BigInteger
     // mQuote = -m^(-1) mod b
     {
         int n = m.length;
-        int nMinus1 = n - 1;
         long y_0 = y[n - 1] & IMASK;
+        long m_0 = m[n - 1] & IMASK;
 
         // 1. a = 0 (Notation: a = (a_{n} a_{n-1} ... a_{0})_{b} )
         for (int i = 0; i <= n; i++)
@@ -1790,30 +2236,31 @@ public class BigInteger
         }
 
         // 2. for i from 0 to (n - 1) do the following:
-        for (int i = n; i > 0; i--)
+        for (int i = n - 1; i >= 0; i--)
         {
-
-            long x_i = x[i - 1] & IMASK;
+            long x_i = x[i] & IMASK;
 
             // 2.1 u = ((a[0] + (x[i] * y[0]) * mQuote) mod b
-            long u = ((((a[n] & IMASK) + ((x_i * y_0) & IMASK)) & IMASK) * mQuote) & IMASK;
+            long c1 = x_i * y_0 + (a[n] & IMASK);
+            long u = ((c1 & IMASK) * mQuote) & IMASK;
 
             // 2.2 a = (a + x_i * y + u * m) / b
-            long prod1 = x_i * y_0;
-            long prod2 = u * (m[n - 1] & IMASK);
-            long tmp = (a[n] & IMASK) + (prod1 & IMASK) + (prod2 & IMASK);
-            long carry = (prod1 >>> 32) + (prod2 >>> 32) + (tmp >>> 32);
-            for (int j = nMinus1; j > 0; j--)
+            // c1 carries x_i * y and c2 carries u * m.  Neither can overflow an
+            // unsigned long: (b - 1)^2 + 2(b - 1) = b^2 - 1.
+            long c2 = u * m_0 + (c1 & IMASK);
+            c1 >>>= 32;
+            c2 >>>= 32;
+            for (int j = n - 1; j > 0; j--)
             {
-                prod1 = x_i * (y[j - 1] & IMASK);
-                prod2 = u * (m[j - 1] & IMASK);
-                tmp = (a[j] & IMASK) + (prod1 & IMASK) + (prod2 & IMASK) + (carry & IMASK);
-                carry = (carry >>> 32) + (prod1 >>> 32) + (prod2 >>> 32) + (tmp >>> 32);
-                a[j + 1] = (int)tmp; // division by b
+                c1 += x_i * (y[j - 1] & IMASK) + (a[j] & IMASK);
+                c2 += u * (m[j - 1] & IMASK) + (c1 & IMASK);
+                a[j + 1] = (int)c2; // division by b
+                c1 >>>= 32;
+                c2 >>>= 32;
             }
-            carry += (a[0] & IMASK);
-            a[1] = (int)carry;
-            a[0] = (int)(carry >>> 32);
+            c1 += c2 + (a[0] & IMASK);
+            a[1] = (int)c1;
+            a[0] = (int)(c1 >>> 32);
         }
 
         // 3. if x >= m the x = x - m
@@ -1834,6 +2281,25 @@ public class BigInteger
         int maxBitLength = this.bitLength() + val.bitLength();
         int resLength = (maxBitLength + 31) / 32;
 
+        int n = Math.max(magnitude.length, val.magnitude.length);
+        if (Math.min(magnitude.length, val.magnitude.length) >= KARATSUBA_THRESHOLD
+            && Math.min(magnitude.length, val.magnitude.length) * 2 > n)
+        {
+            int[] s = new int[karatsubaScratchSize(n)];
+            int[] res = new int[2 * n];
+
+            if (val == this)
+            {
+                squarePart(res, 0, magnitude, 0, n, s, 0);
+            }
+            else
+            {
+                multiplyPart(res, 0, padTo(magnitude, n), 0, padTo(val.magnitude, n), 0, n, s, 0);
+            }
+
+            return new BigInteger(sign * val.sign, res);
+        }
+
         int[] res = new int[resLength];
 
         if (val == this)
@@ -1848,6 +2314,20 @@ public class BigInteger
         return new BigInteger(sign * val.sign, res);
     }
 
+    /**
+     * mag with leading zeroes added to make it n words long
+     */
+    private static int[] padTo(int[] mag, int n)
+    {
+        if (mag.length == n)
+        {
+            return mag;
+        }
+        int[] padded = new int[n];
+        System.arraycopy(mag, 0, padded, n - mag.length, mag.length);
+        return padded;
+    }
+
     public BigInteger negate()
     {
         if (sign == 0)
@@ -2778,4 +3258,184 @@ public class BigInteger
         int word = magnitude[magnitude.length - 1 - wordNum];
         return ((word >> (n % 32)) & 1) > 0;
     }
+
+    /**
+     * Powers of one base modulo one modulus, worked out ahead of time so that
+     * base^e mod m can be done for lots of different e with far fewer
+     * multiplications than modPow() needs.  This is the Lim-Lee comb method:
+     * the exponent is cut into TEETH rows of spacing bits each, and for each
+     * combination of rows the product of base^(2^(row * spacing)) is kept, so
+     * one pass down the columns takes spacing squarings and at most spacing
+     * multiplications.
+     * <br>
+     * The table takes 2^TEETH numbers the size of the modulus.  Once made it's
+     * only read, so one instance can be used by any number of threads.
+     */
+    public static class FixedBase
+    {
+        private static final int TEETH = 6;
+
+        private final BigInteger base;
+        private final BigInteger modulus;
+        private final int maxExponentBits;
+        private final int spacing;
+        private final long mQuote;
+
+        // table[j] = the product of base^(2^(i * spacing)) over the bits i set in j,
+        // in Montgomery form.  null if the modulus is even.
+        private final int[][] table;
+
+        /**
+         * @param base the base
+         * @param modulus the modulus; only odd ones get a table, and even ones
+         * go to modPow() every time
+         * @param maxExponentBits the longest exponent the table will be used for.
+         * Longer ones go to modPow().
+         */
+        public FixedBase(BigInteger base, BigInteger modulus, int maxExponentBits)
+        {
+            this.base = base;
+            this.modulus = modulus;
+            this.maxExponentBits = maxExponentBits;
+            this.spacing = (maxExponentBits + TEETH - 1) / TEETH;
+
+            if (modulus.sign < 1 || !modulus.testBit(0) || modulus.equals(ONE) || maxExponentBits < 1)
+            {
+                this.mQuote = 0;
+                this.table = null;
+                return;
+            }
+
+            this.mQuote = modulus.getMQuote();
+
+            int[] m = modulus.magnitude;
+            int n = m.length;
+            int[] a = new int[n + 1];
+            int[] t = new int[2 * n + 1];
+            int[] s = new int[karatsubaScratchSize(n)];
+
+            // base * R mod m
+            int[] zVal = base.shiftLeft(32 * n).mod(modulus).magnitude;
+            int[] row = new int[n];
+            System.arraycopy(zVal, 0, row, n - zVal.length, zVal.length);
+
+            table = new int[1 << TEETH][];
+            for (int i = 0; i < TEETH; i++)
+            {
+                if (i > 0)
+                {
+                    row = copy(row);
+                    for (int j = 0; j < spacing; j++)
+                    {
+                        modulus.squareMonty(a, t, s, row, m, mQuote);
+                    }
+                }
+                table[1 << i] = row;
+            }
+
+            for (int j = 3; j < table.length; j++)
+            {
+                if ((j & (j - 1)) != 0)
+                {
+                    // the top bit of j times the rest, which is already done
+                    int top = table.length >>> 1;
+                    while ((j & top) == 0)
+                    {
+                        top >>>= 1;
+                    }
+                    table[j] = copy(table[j - top]);
+                    modulus.multiplyMonty(a, t, s, table[j], table[top], m, mQuote);
+                }
+            }
+        }
+
+        public BigInteger getBase()
+        {
+            return base;
+        }
+
+        public BigInteger getModulus()
+        {
+            return modulus;
+        }
+
+        public int getMaxExponentBits()
+        {
+            return maxExponentBits;
+        }
+
+        /**
+         * @return base^exponent mod m, the same as base.modPow(exponent, m)
+         */
+        public BigInteger modPow(BigInteger exponent)
+        {
+            if (table == null || exponent.sign < 0 || exponent.bitLength() > maxExponentBits)
+            {
+                return base.modPow(exponent, modulus);
+            }
+            if (exponent.sign == 0)
+            {
+                return ONE;
+            }
+
+            int[] m = modulus.magnitude;
+            int n = m.length;
+            int[] exp = exponent.magnitude;
+            int expBits = exponent.bitLength();
+            int[] a = new int[n + 1];
+            int[] t = new int[2 * n + 1];
+            int[] s = new int[karatsubaScratchSize(n)];
+            int[] yVal = new int[n];
+
+            //
+            // one column of the comb at a time, from the top
+            //
+            boolean first = true;
+            for (int col = spacing - 1; col >= 0; col--)
+            {
+                if (!first)
+                {
+                    modulus.squareMonty(a, t, s, yVal, m, mQuote);
+                }
+
+                int index = 0;
+                for (int i = TEETH - 1; i >= 0; i--)
+                {
+                    int bit = i * spacing + col;
+                    index <<= 1;
+                    if (bit < expBits && BigInteger.testBit(exp, bit))
+                    {
+                        index |= 1;
+                    }
+                }
+
+                if (index != 0)
+                {
+                    if (first)
+                    {
+                        System.arraycopy(table[index], 0, yVal, 0, n);
+                        first = false;
+                    }
+                    else
+                    {
+                        modulus.multiplyMonty(a, t, s, yVal, table[index], m, mQuote);
+                    }
+                }
+            }
+
+            // Return y * R^(-1) mod m by doing y * 1 * R^(-1) mod m
+            int[] one = new int[n];
+            one[n - 1] = 1;
+            modulus.multiplyMonty(a, t, s, yVal, one, m, mQuote);
+
+            return new BigInteger(1, yVal);
+        }
+
+        private static int[] copy(int[] x)
+        {
+            int[] y = new int[x.length];
+            System.arraycopy(x, 0, y, 0, x.length);
+            return y;
+        }
+    }
 }
@@ -48,6 +48,26 @@ public interface BlockCipher
     public int processBlock(byte[] in, int inOff, byte[] out, int outOff)
         throws DataLengthException, IllegalStateException;
 
+    /**
+     * Process blockCount consecutive blocks of input from the array in and
+     * write them to the out array. This gives the same result as calling
+     * processBlock() once per block, but lets the cipher keep its state in
+     * locals across the whole run. in and out may be the same array at the
+     * same offset, in which case the data is processed in place.
+     *
+     * @param in the array containing the input data.
+     * @param inOff offset into the in array the data starts at.
+     * @param out the array the output data will be copied into.
+     * @param outOff the offset into the out array the output will start at.
+     * @param blockCount the number of blocks to process.
+     * @exception DataLengthException if there isn't enough data in in, or
+     * space in out.
+     * @exception IllegalStateException if the cipher isn't initialised.
+     * @return the number of bytes processed and produced.
+     */
+    public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount)
+        throws DataLengthException, IllegalStateException;
+
     /**
      * Reset the cipher. After resetting the cipher is in the same state
      * as it was after the last init (if there was one).
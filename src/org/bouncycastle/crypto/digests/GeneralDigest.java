@@ -1,13 +1,14 @@
 package org.bouncycastle.crypto.digests;
 
 import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.util.Memoable;
 
 /**
  * base implementation of MD4 family style digest as outlined in
  * "Handbook of Applied Cryptography", pages 344 - 347.
  */
 public abstract class GeneralDigest
-    implements ExtendedDigest
+    implements ExtendedDigest, Memoable
 {
     private static final int BYTE_LENGTH = 64;
     private byte[]  xBuf;
@@ -32,6 +33,15 @@ public abstract class GeneralDigest
     protected GeneralDigest(GeneralDigest t)
     {
         xBuf = new byte[t.xBuf.length];
+
+        copyIn(t);
+    }
+
+    /**
+     * Copy the state held here from another digest, without allocating anything.
+     */
+    protected void copyIn(GeneralDigest t)
+    {
         System.arraycopy(t.xBuf, 0, xBuf, 0, t.xBuf.length);
 
         xBufOff = t.xBufOff;
@@ -68,10 +78,34 @@ public abstract class GeneralDigest
             len--;
         }
 
+        //
+        // process whole words up to the start of a block.
+        //
+        while ((len >= xBuf.length) && ((byteCount & (BYTE_LENGTH - 1)) != 0))
+        {
+            processWord(in, inOff);
+
+            inOff += xBuf.length;
+            len -= xBuf.length;
+            byteCount += xBuf.length;
+        }
+
+        //
+        // process whole blocks straight from the input.
+        //
+        while (len >= BYTE_LENGTH)
+        {
+            processBlock(in, inOff);
+
+            inOff += BYTE_LENGTH;
+            len -= BYTE_LENGTH;
+            byteCount += BYTE_LENGTH;
+        }
+
         //
         // process whole words.
         //
-        while (len > xBuf.length)
+        while (len >= xBuf.length)
         {
             processWord(in, inOff);
 
@@ -132,4 +166,17 @@ public abstract class GeneralDigest
     protected abstract void processLength(long bitLength);
 
     protected abstract void processBlock();
+
+    /**
+     * Process a whole block of input, which update() only asks for when the
+     * previous block is finished.  This does it a word at a time; override it
+     * if the block can be loaded faster than that.
+     */
+    protected void processBlock(byte[] in, int inOff)
+    {
+        for (int i = 0; i < BYTE_LENGTH; i += 4)
+        {
+            processWord(in, inOff + i);
+        }
+    }
 }
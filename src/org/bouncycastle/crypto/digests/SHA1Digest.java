@@ -1,5 +1,7 @@
 package org.bouncycastle.crypto.digests;
 
+import org.bouncycastle.util.Memoable;
+
 /**
  * implementation of SHA-1 as outlined in "Handbook of Applied Cryptography", pages 346 - 349.
  *
@@ -13,7 +15,7 @@ public class SHA1Digest
 
     private int     H1, H2, H3, H4, H5;
 
-    private int[]   X = new int[80];
+    private int[]   X = new int[16];
     private int     xOff;
 
     /**
@@ -32,6 +34,13 @@ public class SHA1Digest
     {
         super(t);
 
+        copyIn(t);
+    }
+
+    private void copyIn(SHA1Digest t)
+    {
+        super.copyIn(t);
+
         H1 = t.H1;
         H2 = t.H2;
         H3 = t.H3;
@@ -133,144 +142,366 @@ public class SHA1Digest
     private static final int    Y3 = 0x8f1bbcdc;
     private static final int    Y4 = 0xca62c1d6;
    
-    private int f(
-        int    u,
-        int    v,
-        int    w)
-    {
-        return ((u & v) | ((~u) & w));
-    }
-
-    private int h(
-        int    u,
-        int    v,
-        int    w)
+    protected void processBlock(
+        byte[]  in,
+        int     inOff)
     {
-        return (u ^ v ^ w);
-    }
+        for (int i = 0; i < 16; i++, inOff += 4)
+        {
+            X[i] = (in[inOff] & 0xff) << 24 | (in[inOff + 1] & 0xff) << 16
+                    | (in[inOff + 2] & 0xff) << 8 | in[inOff + 3] & 0xff;
+        }
 
-    private int g(
-        int    u,
-        int    v,
-        int    w)
-    {
-        return ((u & v) | (u & w) | (v & w));
+        processBlock();
     }
 
+    /**
+     * The compression function, fully unrolled.  Each step is
+     * E += rotateLeft(A, 5) + f(B, C, D) + W[i] + Y, B = rotateLeft(B, 30)
+     * with the variables renamed rather than shuffled along.  The message schedule is
+     * kept as a rolling 16 words in locals instead of being expanded into an 80 word array.
+     */
     protected void processBlock()
     {
-        //
-        // expand 16 word block into 80 word block.
-        //
-        for (int i = 16; i < 80; i++)
-        {
-            int t = X[i - 3] ^ X[i - 8] ^ X[i - 14] ^ X[i - 16];
-            X[i] = t << 1 | t >>> 31;
-        }
-
-        //
-        // set up working variables.
-        //
         int     A = H1;
         int     B = H2;
         int     C = H3;
         int     D = H4;
         int     E = H5;
+        int     t;
+
+        int     w0 = X[0];
+        int     w1 = X[1];
+        int     w2 = X[2];
+        int     w3 = X[3];
+        int     w4 = X[4];
+        int     w5 = X[5];
+        int     w6 = X[6];
+        int     w7 = X[7];
+        int     w8 = X[8];
+        int     w9 = X[9];
+        int     w10 = X[10];
+        int     w11 = X[11];
+        int     w12 = X[12];
+        int     w13 = X[13];
+        int     w14 = X[14];
+        int     w15 = X[15];
 
         //
-        // round 1
+        // round 1: f(B, C, D) = B & C | ~B & D
         //
-        int idx = 0;
-        
-        for (int j = 0; j < 4; j++)
-        {
-            // E = rotateLeft(A, 5) + f(B, C, D) + E + X[idx++] + Y1
-            // B = rotateLeft(B, 30)
-            E += (A << 5 | A >>> 27) + f(B, C, D) + X[idx++] + Y1;
-            B = B << 30 | B >>> 2;
-        
-            D += (E << 5 | E >>> 27) + f(A, B, C) + X[idx++] + Y1;
-            A = A << 30 | A >>> 2;
-       
-            C += (D << 5 | D >>> 27) + f(E, A, B) + X[idx++] + Y1;
-            E = E << 30 | E >>> 2;
-       
-            B += (C << 5 | C >>> 27) + f(D, E, A) + X[idx++] + Y1;
-            D = D << 30 | D >>> 2;
-
-            A += (B << 5 | B >>> 27) + f(C, D, E) + X[idx++] + Y1;
-            C = C << 30 | C >>> 2;
-        }
-        
+        E += (A << 5 | A >>> 27) + (B & C | ~B & D) + w0 + Y1;
+        B = B << 30 | B >>> 2;
+        D += (E << 5 | E >>> 27) + (A & B | ~A & C) + w1 + Y1;
+        A = A << 30 | A >>> 2;
+        C += (D << 5 | D >>> 27) + (E & A | ~E & B) + w2 + Y1;
+        E = E << 30 | E >>> 2;
+        B += (C << 5 | C >>> 27) + (D & E | ~D & A) + w3 + Y1;
+        D = D << 30 | D >>> 2;
+        A += (B << 5 | B >>> 27) + (C & D | ~C & E) + w4 + Y1;
+        C = C << 30 | C >>> 2;
+
+        E += (A << 5 | A >>> 27) + (B & C | ~B & D) + w5 + Y1;
+        B = B << 30 | B >>> 2;
+        D += (E << 5 | E >>> 27) + (A & B | ~A & C) + w6 + Y1;
+        A = A << 30 | A >>> 2;
+        C += (D << 5 | D >>> 27) + (E & A | ~E & B) + w7 + Y1;
+        E = E << 30 | E >>> 2;
+        B += (C << 5 | C >>> 27) + (D & E | ~D & A) + w8 + Y1;
+        D = D << 30 | D >>> 2;
+        A += (B << 5 | B >>> 27) + (C & D | ~C & E) + w9 + Y1;
+        C = C << 30 | C >>> 2;
+
+        E += (A << 5 | A >>> 27) + (B & C | ~B & D) + w10 + Y1;
+        B = B << 30 | B >>> 2;
+        D += (E << 5 | E >>> 27) + (A & B | ~A & C) + w11 + Y1;
+        A = A << 30 | A >>> 2;
+        C += (D << 5 | D >>> 27) + (E & A | ~E & B) + w12 + Y1;
+        E = E << 30 | E >>> 2;
+        B += (C << 5 | C >>> 27) + (D & E | ~D & A) + w13 + Y1;
+        D = D << 30 | D >>> 2;
+        A += (B << 5 | B >>> 27) + (C & D | ~C & E) + w14 + Y1;
+        C = C << 30 | C >>> 2;
+
+        E += (A << 5 | A >>> 27) + (B & C | ~B & D) + w15 + Y1;
+        B = B << 30 | B >>> 2;
+        t = w13 ^ w8 ^ w2 ^ w0;
+        w0 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A & B | ~A & C) + w0 + Y1;
+        A = A << 30 | A >>> 2;
+        t = w14 ^ w9 ^ w3 ^ w1;
+        w1 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E & A | ~E & B) + w1 + Y1;
+        E = E << 30 | E >>> 2;
+        t = w15 ^ w10 ^ w4 ^ w2;
+        w2 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D & E | ~D & A) + w2 + Y1;
+        D = D << 30 | D >>> 2;
+        t = w0 ^ w11 ^ w5 ^ w3;
+        w3 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C & D | ~C & E) + w3 + Y1;
+        C = C << 30 | C >>> 2;
+
         //
-        // round 2
+        // round 2: h(B, C, D) = B ^ C ^ D
         //
-        for (int j = 0; j < 4; j++)
-        {
-            // E = rotateLeft(A, 5) + h(B, C, D) + E + X[idx++] + Y2
-            // B = rotateLeft(B, 30)
-            E += (A << 5 | A >>> 27) + h(B, C, D) + X[idx++] + Y2;
-            B = B << 30 | B >>> 2;   
-            
-            D += (E << 5 | E >>> 27) + h(A, B, C) + X[idx++] + Y2;
-            A = A << 30 | A >>> 2;
-            
-            C += (D << 5 | D >>> 27) + h(E, A, B) + X[idx++] + Y2;
-            E = E << 30 | E >>> 2;
-            
-            B += (C << 5 | C >>> 27) + h(D, E, A) + X[idx++] + Y2;
-            D = D << 30 | D >>> 2;
-
-            A += (B << 5 | B >>> 27) + h(C, D, E) + X[idx++] + Y2;
-            C = C << 30 | C >>> 2;
-        }
-        
+        t = w1 ^ w12 ^ w6 ^ w4;
+        w4 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w4 + Y2;
+        B = B << 30 | B >>> 2;
+        t = w2 ^ w13 ^ w7 ^ w5;
+        w5 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w5 + Y2;
+        A = A << 30 | A >>> 2;
+        t = w3 ^ w14 ^ w8 ^ w6;
+        w6 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w6 + Y2;
+        E = E << 30 | E >>> 2;
+        t = w4 ^ w15 ^ w9 ^ w7;
+        w7 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w7 + Y2;
+        D = D << 30 | D >>> 2;
+        t = w5 ^ w0 ^ w10 ^ w8;
+        w8 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w8 + Y2;
+        C = C << 30 | C >>> 2;
+
+        t = w6 ^ w1 ^ w11 ^ w9;
+        w9 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w9 + Y2;
+        B = B << 30 | B >>> 2;
+        t = w7 ^ w2 ^ w12 ^ w10;
+        w10 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w10 + Y2;
+        A = A << 30 | A >>> 2;
+        t = w8 ^ w3 ^ w13 ^ w11;
+        w11 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w11 + Y2;
+        E = E << 30 | E >>> 2;
+        t = w9 ^ w4 ^ w14 ^ w12;
+        w12 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w12 + Y2;
+        D = D << 30 | D >>> 2;
+        t = w10 ^ w5 ^ w15 ^ w13;
+        w13 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w13 + Y2;
+        C = C << 30 | C >>> 2;
+
+        t = w11 ^ w6 ^ w0 ^ w14;
+        w14 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w14 + Y2;
+        B = B << 30 | B >>> 2;
+        t = w12 ^ w7 ^ w1 ^ w15;
+        w15 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w15 + Y2;
+        A = A << 30 | A >>> 2;
+        t = w13 ^ w8 ^ w2 ^ w0;
+        w0 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w0 + Y2;
+        E = E << 30 | E >>> 2;
+        t = w14 ^ w9 ^ w3 ^ w1;
+        w1 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w1 + Y2;
+        D = D << 30 | D >>> 2;
+        t = w15 ^ w10 ^ w4 ^ w2;
+        w2 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w2 + Y2;
+        C = C << 30 | C >>> 2;
+
+        t = w0 ^ w11 ^ w5 ^ w3;
+        w3 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w3 + Y2;
+        B = B << 30 | B >>> 2;
+        t = w1 ^ w12 ^ w6 ^ w4;
+        w4 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w4 + Y2;
+        A = A << 30 | A >>> 2;
+        t = w2 ^ w13 ^ w7 ^ w5;
+        w5 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w5 + Y2;
+        E = E << 30 | E >>> 2;
+        t = w3 ^ w14 ^ w8 ^ w6;
+        w6 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w6 + Y2;
+        D = D << 30 | D >>> 2;
+        t = w4 ^ w15 ^ w9 ^ w7;
+        w7 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w7 + Y2;
+        C = C << 30 | C >>> 2;
+
         //
-        // round 3
+        // round 3: g(B, C, D) = B & C | B & D | C & D
         //
-        for (int j = 0; j < 4; j++)
-        {
-            // E = rotateLeft(A, 5) + g(B, C, D) + E + X[idx++] + Y3
-            // B = rotateLeft(B, 30)
-            E += (A << 5 | A >>> 27) + g(B, C, D) + X[idx++] + Y3;
-            B = B << 30 | B >>> 2;
-            
-            D += (E << 5 | E >>> 27) + g(A, B, C) + X[idx++] + Y3;
-            A = A << 30 | A >>> 2;
-            
-            C += (D << 5 | D >>> 27) + g(E, A, B) + X[idx++] + Y3;
-            E = E << 30 | E >>> 2;
-            
-            B += (C << 5 | C >>> 27) + g(D, E, A) + X[idx++] + Y3;
-            D = D << 30 | D >>> 2;
-
-            A += (B << 5 | B >>> 27) + g(C, D, E) + X[idx++] + Y3;
-            C = C << 30 | C >>> 2;
-        }
+        t = w5 ^ w0 ^ w10 ^ w8;
+        w8 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B & C | B & D | C & D) + w8 + Y3;
+        B = B << 30 | B >>> 2;
+        t = w6 ^ w1 ^ w11 ^ w9;
+        w9 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A & B | A & C | B & C) + w9 + Y3;
+        A = A << 30 | A >>> 2;
+        t = w7 ^ w2 ^ w12 ^ w10;
+        w10 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E & A | E & B | A & B) + w10 + Y3;
+        E = E << 30 | E >>> 2;
+        t = w8 ^ w3 ^ w13 ^ w11;
+        w11 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D & E | D & A | E & A) + w11 + Y3;
+        D = D << 30 | D >>> 2;
+        t = w9 ^ w4 ^ w14 ^ w12;
+        w12 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C & D | C & E | D & E) + w12 + Y3;
+        C = C << 30 | C >>> 2;
+
+        t = w10 ^ w5 ^ w15 ^ w13;
+        w13 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B & C | B & D | C & D) + w13 + Y3;
+        B = B << 30 | B >>> 2;
+        t = w11 ^ w6 ^ w0 ^ w14;
+        w14 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A & B | A & C | B & C) + w14 + Y3;
+        A = A << 30 | A >>> 2;
+        t = w12 ^ w7 ^ w1 ^ w15;
+        w15 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E & A | E & B | A & B) + w15 + Y3;
+        E = E << 30 | E >>> 2;
+        t = w13 ^ w8 ^ w2 ^ w0;
+        w0 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D & E | D & A | E & A) + w0 + Y3;
+        D = D << 30 | D >>> 2;
+        t = w14 ^ w9 ^ w3 ^ w1;
+        w1 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C & D | C & E | D & E) + w1 + Y3;
+        C = C << 30 | C >>> 2;
+
+        t = w15 ^ w10 ^ w4 ^ w2;
+        w2 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B & C | B & D | C & D) + w2 + Y3;
+        B = B << 30 | B >>> 2;
+        t = w0 ^ w11 ^ w5 ^ w3;
+        w3 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A & B | A & C | B & C) + w3 + Y3;
+        A = A << 30 | A >>> 2;
+        t = w1 ^ w12 ^ w6 ^ w4;
+        w4 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E & A | E & B | A & B) + w4 + Y3;
+        E = E << 30 | E >>> 2;
+        t = w2 ^ w13 ^ w7 ^ w5;
+        w5 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D & E | D & A | E & A) + w5 + Y3;
+        D = D << 30 | D >>> 2;
+        t = w3 ^ w14 ^ w8 ^ w6;
+        w6 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C & D | C & E | D & E) + w6 + Y3;
+        C = C << 30 | C >>> 2;
+
+        t = w4 ^ w15 ^ w9 ^ w7;
+        w7 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B & C | B & D | C & D) + w7 + Y3;
+        B = B << 30 | B >>> 2;
+        t = w5 ^ w0 ^ w10 ^ w8;
+        w8 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A & B | A & C | B & C) + w8 + Y3;
+        A = A << 30 | A >>> 2;
+        t = w6 ^ w1 ^ w11 ^ w9;
+        w9 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E & A | E & B | A & B) + w9 + Y3;
+        E = E << 30 | E >>> 2;
+        t = w7 ^ w2 ^ w12 ^ w10;
+        w10 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D & E | D & A | E & A) + w10 + Y3;
+        D = D << 30 | D >>> 2;
+        t = w8 ^ w3 ^ w13 ^ w11;
+        w11 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C & D | C & E | D & E) + w11 + Y3;
+        C = C << 30 | C >>> 2;
 
         //
-        // round 4
+        // round 4: h(B, C, D) = B ^ C ^ D
         //
-        for (int j = 0; j <= 3; j++)
-        {
-            // E = rotateLeft(A, 5) + h(B, C, D) + E + X[idx++] + Y4
-            // B = rotateLeft(B, 30)
-            E += (A << 5 | A >>> 27) + h(B, C, D) + X[idx++] + Y4;
-            B = B << 30 | B >>> 2;
-            
-            D += (E << 5 | E >>> 27) + h(A, B, C) + X[idx++] + Y4;
-            A = A << 30 | A >>> 2;
-            
-            C += (D << 5 | D >>> 27) + h(E, A, B) + X[idx++] + Y4;
-            E = E << 30 | E >>> 2;
-            
-            B += (C << 5 | C >>> 27) + h(D, E, A) + X[idx++] + Y4;
-            D = D << 30 | D >>> 2;
-
-            A += (B << 5 | B >>> 27) + h(C, D, E) + X[idx++] + Y4;
-            C = C << 30 | C >>> 2;
-        }
-
+        t = w9 ^ w4 ^ w14 ^ w12;
+        w12 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w12 + Y4;
+        B = B << 30 | B >>> 2;
+        t = w10 ^ w5 ^ w15 ^ w13;
+        w13 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w13 + Y4;
+        A = A << 30 | A >>> 2;
+        t = w11 ^ w6 ^ w0 ^ w14;
+        w14 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w14 + Y4;
+        E = E << 30 | E >>> 2;
+        t = w12 ^ w7 ^ w1 ^ w15;
+        w15 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w15 + Y4;
+        D = D << 30 | D >>> 2;
+        t = w13 ^ w8 ^ w2 ^ w0;
+        w0 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w0 + Y4;
+        C = C << 30 | C >>> 2;
+
+        t = w14 ^ w9 ^ w3 ^ w1;
+        w1 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w1 + Y4;
+        B = B << 30 | B >>> 2;
+        t = w15 ^ w10 ^ w4 ^ w2;
+        w2 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w2 + Y4;
+        A = A << 30 | A >>> 2;
+        t = w0 ^ w11 ^ w5 ^ w3;
+        w3 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w3 + Y4;
+        E = E << 30 | E >>> 2;
+        t = w1 ^ w12 ^ w6 ^ w4;
+        w4 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w4 + Y4;
+        D = D << 30 | D >>> 2;
+        t = w2 ^ w13 ^ w7 ^ w5;
+        w5 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w5 + Y4;
+        C = C << 30 | C >>> 2;
+
+        t = w3 ^ w14 ^ w8 ^ w6;
+        w6 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w6 + Y4;
+        B = B << 30 | B >>> 2;
+        t = w4 ^ w15 ^ w9 ^ w7;
+        w7 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w7 + Y4;
+        A = A << 30 | A >>> 2;
+        t = w5 ^ w0 ^ w10 ^ w8;
+        w8 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w8 + Y4;
+        E = E << 30 | E >>> 2;
+        t = w6 ^ w1 ^ w11 ^ w9;
+        w9 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w9 + Y4;
+        D = D << 30 | D >>> 2;
+        t = w7 ^ w2 ^ w12 ^ w10;
+        w10 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w10 + Y4;
+        C = C << 30 | C >>> 2;
+
+        t = w8 ^ w3 ^ w13 ^ w11;
+        w11 = t << 1 | t >>> 31;
+        E += (A << 5 | A >>> 27) + (B ^ C ^ D) + w11 + Y4;
+        B = B << 30 | B >>> 2;
+        t = w9 ^ w4 ^ w14 ^ w12;
+        w12 = t << 1 | t >>> 31;
+        D += (E << 5 | E >>> 27) + (A ^ B ^ C) + w12 + Y4;
+        A = A << 30 | A >>> 2;
+        t = w10 ^ w5 ^ w15 ^ w13;
+        w13 = t << 1 | t >>> 31;
+        C += (D << 5 | D >>> 27) + (E ^ A ^ B) + w13 + Y4;
+        E = E << 30 | E >>> 2;
+        t = w11 ^ w6 ^ w0 ^ w14;
+        w14 = t << 1 | t >>> 31;
+        B += (C << 5 | C >>> 27) + (D ^ E ^ A) + w14 + Y4;
+        D = D << 30 | D >>> 2;
+        t = w12 ^ w7 ^ w1 ^ w15;
+        w15 = t << 1 | t >>> 31;
+        A += (B << 5 | B >>> 27) + (C ^ D ^ E) + w15 + Y4;
+        C = C << 30 | C >>> 2;
 
         H1 += A;
         H2 += B;
@@ -287,8 +518,14 @@ public class SHA1Digest
             X[i] = 0;
         }
     }
-}
-
-
 
+    public Memoable copy()
+    {
+        return new SHA1Digest(this);
+    }
 
+    public void reset(Memoable other)
+    {
+        copyIn((SHA1Digest)other);
+    }
+}
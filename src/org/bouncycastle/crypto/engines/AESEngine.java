@@ -332,7 +332,6 @@ private static final int[] Tinv0 =
 
     private int         ROUNDS;
     private int[][]     WorkingKey = null;
-    private int         C0, C1, C2, C3;
     private boolean     forEncryption;
 
 	public int numBlocksProcessed_ = 0;
@@ -383,170 +382,187 @@ private static final int[] Tinv0 =
         int inOff,
         byte[] out,
         int outOff)
+    {
+        return processBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public int processBlocks(
+        byte[] in,
+        int inOff,
+        byte[] out,
+        int outOff,
+        int blockCount)
     {
         if (WorkingKey == null)
         {
             throw new IllegalStateException("AES engine not initialised");
         }
 
-        if ((inOff + (32 / 2)) > in.length)
+        int len = blockCount * BLOCK_SIZE;
+
+        if ((inOff + len) > in.length)
         {
             throw new DataLengthException("input buffer too short");
         }
 
-        if ((outOff + (32 / 2)) > out.length)
+        if ((outOff + len) > out.length)
         {
             throw new DataLengthException("output buffer too short");
         }
 
         if (forEncryption)
         {
-            unpackBlock(in, inOff);
-            encryptBlock(WorkingKey);
-            packBlock(out, outOff);
+            encryptBlocks(WorkingKey, in, inOff, out, outOff, blockCount);
         }
         else
         {
-            unpackBlock(in, inOff);
-            decryptBlock(WorkingKey);
-            packBlock(out, outOff);
-
+            decryptBlocks(WorkingKey, in, inOff, out, outOff, blockCount);
         }
-    	numBlocksProcessed_++;
-    	//System.err.println("AESEngine: Blocks processed so far: " + numBlocksProcessed_);
 
-        return BLOCK_SIZE;
+        numBlocksProcessed_ += blockCount;
+
+        return len;
     }
     
     public void reset()
     {
     }
 
-    private final void unpackBlock(
-        byte[]      bytes,
-        int         off)
-    {
-        int     index = off;
-
-        C0 = (bytes[index++] & 0xff);
-        C0 |= (bytes[index++] & 0xff) << 8;
-        C0 |= (bytes[index++] & 0xff) << 16;
-        C0 |= bytes[index++] << 24;
-
-        C1 = (bytes[index++] & 0xff);
-        C1 |= (bytes[index++] & 0xff) << 8;
-        C1 |= (bytes[index++] & 0xff) << 16;
-        C1 |= bytes[index++] << 24;
-
-        C2 = (bytes[index++] & 0xff);
-        C2 |= (bytes[index++] & 0xff) << 8;
-        C2 |= (bytes[index++] & 0xff) << 16;
-        C2 |= bytes[index++] << 24;
-
-        C3 = (bytes[index++] & 0xff);
-        C3 |= (bytes[index++] & 0xff) << 8;
-        C3 |= (bytes[index++] & 0xff) << 16;
-        C3 |= bytes[index++] << 24;
-    }
-
-    private final void packBlock(
-        byte[]      bytes,
-        int         off)
+    /**
+     * Encrypts blockCount consecutive blocks, keeping the state in locals the whole way.
+     * in and out may be the same array at the same offset.
+     */
+    private final void encryptBlocks(int[][] KW, byte[] in, int inOff, byte[] out, int outOff, int blockCount)
     {
-        int     index = off;
-
-        bytes[index++] = (byte)C0;
-        bytes[index++] = (byte)(C0 >> 8);
-        bytes[index++] = (byte)(C0 >> 16);
-        bytes[index++] = (byte)(C0 >> 24);
-
-        bytes[index++] = (byte)C1;
-        bytes[index++] = (byte)(C1 >> 8);
-        bytes[index++] = (byte)(C1 >> 16);
-        bytes[index++] = (byte)(C1 >> 24);
-
-        bytes[index++] = (byte)C2;
-        bytes[index++] = (byte)(C2 >> 8);
-        bytes[index++] = (byte)(C2 >> 16);
-        bytes[index++] = (byte)(C2 >> 24);
-
-        bytes[index++] = (byte)C3;
-        bytes[index++] = (byte)(C3 >> 8);
-        bytes[index++] = (byte)(C3 >> 16);
-        bytes[index++] = (byte)(C3 >> 24);
-    }
+        int C0, C1, C2, C3;
+        int r, r0, r1, r2, r3;
 
+        while (blockCount-- > 0)
+        {
+            C0 = (in[inOff] & 0xff) | ((in[inOff + 1] & 0xff) << 8) | ((in[inOff + 2] & 0xff) << 16) | (in[inOff + 3] << 24);
+            C1 = (in[inOff + 4] & 0xff) | ((in[inOff + 5] & 0xff) << 8) | ((in[inOff + 6] & 0xff) << 16) | (in[inOff + 7] << 24);
+            C2 = (in[inOff + 8] & 0xff) | ((in[inOff + 9] & 0xff) << 8) | ((in[inOff + 10] & 0xff) << 16) | (in[inOff + 11] << 24);
+            C3 = (in[inOff + 12] & 0xff) | ((in[inOff + 13] & 0xff) << 8) | ((in[inOff + 14] & 0xff) << 16) | (in[inOff + 15] << 24);
 
-    private final void encryptBlock(int[][] KW)
-    {
-        int r, r0, r1, r2, r3;
+            C0 ^= KW[0][0];
+            C1 ^= KW[0][1];
+            C2 ^= KW[0][2];
+            C3 ^= KW[0][3];
 
-        C0 ^= KW[0][0];
-        C1 ^= KW[0][1];
-        C2 ^= KW[0][2];
-        C3 ^= KW[0][3];
+            r = 1;
 
-        r = 1;
+            while (r < ROUNDS - 1)
+            {
+                r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255],16) ^ shift(T0[(C3>>24)&255],8) ^ KW[r][0];
+                r1 = T0[C1&255] ^ shift(T0[(C2>>8)&255], 24) ^ shift(T0[(C3>>16)&255], 16) ^ shift(T0[(C0>>24)&255], 8) ^ KW[r][1];
+                r2 = T0[C2&255] ^ shift(T0[(C3>>8)&255], 24) ^ shift(T0[(C0>>16)&255], 16) ^ shift(T0[(C1>>24)&255], 8) ^ KW[r][2];
+                r3 = T0[C3&255] ^ shift(T0[(C0>>8)&255], 24) ^ shift(T0[(C1>>16)&255], 16) ^ shift(T0[(C2>>24)&255], 8) ^ KW[r++][3];
+                C0 = T0[r0&255] ^ shift(T0[(r1>>8)&255], 24) ^ shift(T0[(r2>>16)&255], 16) ^ shift(T0[(r3>>24)&255], 8) ^ KW[r][0];
+                C1 = T0[r1&255] ^ shift(T0[(r2>>8)&255], 24) ^ shift(T0[(r3>>16)&255], 16) ^ shift(T0[(r0>>24)&255], 8) ^ KW[r][1];
+                C2 = T0[r2&255] ^ shift(T0[(r3>>8)&255], 24) ^ shift(T0[(r0>>16)&255], 16) ^ shift(T0[(r1>>24)&255], 8) ^ KW[r][2];
+                C3 = T0[r3&255] ^ shift(T0[(r0>>8)&255], 24) ^ shift(T0[(r1>>16)&255], 16) ^ shift(T0[(r2>>24)&255], 8) ^ KW[r++][3];
+            }
 
-        while (r < ROUNDS - 1)
-        {
-            r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255],16) ^ shift(T0[(C3>>24)&255],8) ^ KW[r][0];
+            r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255], 16) ^ shift(T0[(C3>>24)&255], 8) ^ KW[r][0];
             r1 = T0[C1&255] ^ shift(T0[(C2>>8)&255], 24) ^ shift(T0[(C3>>16)&255], 16) ^ shift(T0[(C0>>24)&255], 8) ^ KW[r][1];
             r2 = T0[C2&255] ^ shift(T0[(C3>>8)&255], 24) ^ shift(T0[(C0>>16)&255], 16) ^ shift(T0[(C1>>24)&255], 8) ^ KW[r][2];
             r3 = T0[C3&255] ^ shift(T0[(C0>>8)&255], 24) ^ shift(T0[(C1>>16)&255], 16) ^ shift(T0[(C2>>24)&255], 8) ^ KW[r++][3];
-            C0 = T0[r0&255] ^ shift(T0[(r1>>8)&255], 24) ^ shift(T0[(r2>>16)&255], 16) ^ shift(T0[(r3>>24)&255], 8) ^ KW[r][0];
-            C1 = T0[r1&255] ^ shift(T0[(r2>>8)&255], 24) ^ shift(T0[(r3>>16)&255], 16) ^ shift(T0[(r0>>24)&255], 8) ^ KW[r][1];
-            C2 = T0[r2&255] ^ shift(T0[(r3>>8)&255], 24) ^ shift(T0[(r0>>16)&255], 16) ^ shift(T0[(r1>>24)&255], 8) ^ KW[r][2];
-            C3 = T0[r3&255] ^ shift(T0[(r0>>8)&255], 24) ^ shift(T0[(r1>>16)&255], 16) ^ shift(T0[(r2>>24)&255], 8) ^ KW[r++][3];
-        }
-
-        r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255], 16) ^ shift(T0[(C3>>24)&255], 8) ^ KW[r][0];
-        r1 = T0[C1&255] ^ shift(T0[(C2>>8)&255], 24) ^ shift(T0[(C3>>16)&255], 16) ^ shift(T0[(C0>>24)&255], 8) ^ KW[r][1];
-        r2 = T0[C2&255] ^ shift(T0[(C3>>8)&255], 24) ^ shift(T0[(C0>>16)&255], 16) ^ shift(T0[(C1>>24)&255], 8) ^ KW[r][2];
-        r3 = T0[C3&255] ^ shift(T0[(C0>>8)&255], 24) ^ shift(T0[(C1>>16)&255], 16) ^ shift(T0[(C2>>24)&255], 8) ^ KW[r++][3];
-
-        // the final round's table is a simple function of S so we don't use a whole other four tables for it
-
-        C0 = (S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[(r3>>24)&255]<<24) ^ KW[r][0];
-        C1 = (S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[(r0>>24)&255]<<24) ^ KW[r][1];
-        C2 = (S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[(r1>>24)&255]<<24) ^ KW[r][2];
-        C3 = (S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[(r2>>24)&255]<<24) ^ KW[r][3];
 
+            // the final round's table is a simple function of S so we don't use a whole other four tables for it
+
+            C0 = (S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[(r3>>24)&255]<<24) ^ KW[r][0];
+            C1 = (S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[(r0>>24)&255]<<24) ^ KW[r][1];
+            C2 = (S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[(r1>>24)&255]<<24) ^ KW[r][2];
+            C3 = (S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[(r2>>24)&255]<<24) ^ KW[r][3];
+
+            out[outOff] = (byte)C0;
+            out[outOff + 1] = (byte)(C0 >> 8);
+            out[outOff + 2] = (byte)(C0 >> 16);
+            out[outOff + 3] = (byte)(C0 >> 24);
+            out[outOff + 4] = (byte)C1;
+            out[outOff + 5] = (byte)(C1 >> 8);
+            out[outOff + 6] = (byte)(C1 >> 16);
+            out[outOff + 7] = (byte)(C1 >> 24);
+            out[outOff + 8] = (byte)C2;
+            out[outOff + 9] = (byte)(C2 >> 8);
+            out[outOff + 10] = (byte)(C2 >> 16);
+            out[outOff + 11] = (byte)(C2 >> 24);
+            out[outOff + 12] = (byte)C3;
+            out[outOff + 13] = (byte)(C3 >> 8);
+            out[outOff + 14] = (byte)(C3 >> 16);
+            out[outOff + 15] = (byte)(C3 >> 24);
+
+            inOff += BLOCK_SIZE;
+            outOff += BLOCK_SIZE;
+        }
     }
 
-    private final void decryptBlock(int[][] KW)
+    /**
+     * Decrypts blockCount consecutive blocks, keeping the state in locals the whole way.
+     * in and out may be the same array at the same offset.
+     */
+    private final void decryptBlocks(int[][] KW, byte[] in, int inOff, byte[] out, int outOff, int blockCount)
     {
+        int C0, C1, C2, C3;
         int r, r0, r1, r2, r3;
 
-        C0 ^= KW[ROUNDS][0];
-        C1 ^= KW[ROUNDS][1];
-        C2 ^= KW[ROUNDS][2];
-        C3 ^= KW[ROUNDS][3];
+        while (blockCount-- > 0)
+        {
+            C0 = (in[inOff] & 0xff) | ((in[inOff + 1] & 0xff) << 8) | ((in[inOff + 2] & 0xff) << 16) | (in[inOff + 3] << 24);
+            C1 = (in[inOff + 4] & 0xff) | ((in[inOff + 5] & 0xff) << 8) | ((in[inOff + 6] & 0xff) << 16) | (in[inOff + 7] << 24);
+            C2 = (in[inOff + 8] & 0xff) | ((in[inOff + 9] & 0xff) << 8) | ((in[inOff + 10] & 0xff) << 16) | (in[inOff + 11] << 24);
+            C3 = (in[inOff + 12] & 0xff) | ((in[inOff + 13] & 0xff) << 8) | ((in[inOff + 14] & 0xff) << 16) | (in[inOff + 15] << 24);
 
-        r = ROUNDS-1;
+            C0 ^= KW[ROUNDS][0];
+            C1 ^= KW[ROUNDS][1];
+            C2 ^= KW[ROUNDS][2];
+            C3 ^= KW[ROUNDS][3];
+
+            r = ROUNDS-1;
+
+            while (r>1)
+            {
+                r0 = Tinv0[C0&255] ^ shift(Tinv0[(C3>>8)&255], 24) ^ shift(Tinv0[(C2>>16)&255], 16) ^ shift(Tinv0[(C1>>24)&255], 8) ^ KW[r][0];
+                r1 = Tinv0[C1&255] ^ shift(Tinv0[(C0>>8)&255], 24) ^ shift(Tinv0[(C3>>16)&255], 16) ^ shift(Tinv0[(C2>>24)&255], 8) ^ KW[r][1];
+                r2 = Tinv0[C2&255] ^ shift(Tinv0[(C1>>8)&255], 24) ^ shift(Tinv0[(C0>>16)&255], 16) ^ shift(Tinv0[(C3>>24)&255], 8) ^ KW[r][2];
+                r3 = Tinv0[C3&255] ^ shift(Tinv0[(C2>>8)&255], 24) ^ shift(Tinv0[(C1>>16)&255], 16) ^ shift(Tinv0[(C0>>24)&255], 8) ^ KW[r--][3];
+                C0 = Tinv0[r0&255] ^ shift(Tinv0[(r3>>8)&255], 24) ^ shift(Tinv0[(r2>>16)&255], 16) ^ shift(Tinv0[(r1>>24)&255], 8) ^ KW[r][0];
+                C1 = Tinv0[r1&255] ^ shift(Tinv0[(r0>>8)&255], 24) ^ shift(Tinv0[(r3>>16)&255], 16) ^ shift(Tinv0[(r2>>24)&255], 8) ^ KW[r][1];
+                C2 = Tinv0[r2&255] ^ shift(Tinv0[(r1>>8)&255], 24) ^ shift(Tinv0[(r0>>16)&255], 16) ^ shift(Tinv0[(r3>>24)&255], 8) ^ KW[r][2];
+                C3 = Tinv0[r3&255] ^ shift(Tinv0[(r2>>8)&255], 24) ^ shift(Tinv0[(r1>>16)&255], 16) ^ shift(Tinv0[(r0>>24)&255], 8) ^ KW[r--][3];
+            }
 
-        while (r>1)
-        {
             r0 = Tinv0[C0&255] ^ shift(Tinv0[(C3>>8)&255], 24) ^ shift(Tinv0[(C2>>16)&255], 16) ^ shift(Tinv0[(C1>>24)&255], 8) ^ KW[r][0];
             r1 = Tinv0[C1&255] ^ shift(Tinv0[(C0>>8)&255], 24) ^ shift(Tinv0[(C3>>16)&255], 16) ^ shift(Tinv0[(C2>>24)&255], 8) ^ KW[r][1];
             r2 = Tinv0[C2&255] ^ shift(Tinv0[(C1>>8)&255], 24) ^ shift(Tinv0[(C0>>16)&255], 16) ^ shift(Tinv0[(C3>>24)&255], 8) ^ KW[r][2];
-            r3 = Tinv0[C3&255] ^ shift(Tinv0[(C2>>8)&255], 24) ^ shift(Tinv0[(C1>>16)&255], 16) ^ shift(Tinv0[(C0>>24)&255], 8) ^ KW[r--][3];
-            C0 = Tinv0[r0&255] ^ shift(Tinv0[(r3>>8)&255], 24) ^ shift(Tinv0[(r2>>16)&255], 16) ^ shift(Tinv0[(r1>>24)&255], 8) ^ KW[r][0];
-            C1 = Tinv0[r1&255] ^ shift(Tinv0[(r0>>8)&255], 24) ^ shift(Tinv0[(r3>>16)&255], 16) ^ shift(Tinv0[(r2>>24)&255], 8) ^ KW[r][1];
-            C2 = Tinv0[r2&255] ^ shift(Tinv0[(r1>>8)&255], 24) ^ shift(Tinv0[(r0>>16)&255], 16) ^ shift(Tinv0[(r3>>24)&255], 8) ^ KW[r][2];
-            C3 = Tinv0[r3&255] ^ shift(Tinv0[(r2>>8)&255], 24) ^ shift(Tinv0[(r1>>16)&255], 16) ^ shift(Tinv0[(r0>>24)&255], 8) ^ KW[r--][3];
+            r3 = Tinv0[C3&255] ^ shift(Tinv0[(C2>>8)&255], 24) ^ shift(Tinv0[(C1>>16)&255], 16) ^ shift(Tinv0[(C0>>24)&255], 8) ^ KW[r][3];
+
+            // the final round's table is a simple function of Si so we don't use a whole other four tables for it
+
+            C0 = (Si[r0&255]&255) ^ ((Si[(r3>>8)&255]&255)<<8) ^ ((Si[(r2>>16)&255]&255)<<16) ^ (Si[(r1>>24)&255]<<24) ^ KW[0][0];
+            C1 = (Si[r1&255]&255) ^ ((Si[(r0>>8)&255]&255)<<8) ^ ((Si[(r3>>16)&255]&255)<<16) ^ (Si[(r2>>24)&255]<<24) ^ KW[0][1];
+            C2 = (Si[r2&255]&255) ^ ((Si[(r1>>8)&255]&255)<<8) ^ ((Si[(r0>>16)&255]&255)<<16) ^ (Si[(r3>>24)&255]<<24) ^ KW[0][2];
+            C3 = (Si[r3&255]&255) ^ ((Si[(r2>>8)&255]&255)<<8) ^ ((Si[(r1>>16)&255]&255)<<16) ^ (Si[(r0>>24)&255]<<24) ^ KW[0][3];
+
+            out[outOff] = (byte)C0;
+            out[outOff + 1] = (byte)(C0 >> 8);
+            out[outOff + 2] = (byte)(C0 >> 16);
+            out[outOff + 3] = (byte)(C0 >> 24);
+            out[outOff + 4] = (byte)C1;
+            out[outOff + 5] = (byte)(C1 >> 8);
+            out[outOff + 6] = (byte)(C1 >> 16);
+            out[outOff + 7] = (byte)(C1 >> 24);
+            out[outOff + 8] = (byte)C2;
+            out[outOff + 9] = (byte)(C2 >> 8);
+            out[outOff + 10] = (byte)(C2 >> 16);
+            out[outOff + 11] = (byte)(C2 >> 24);
+            out[outOff + 12] = (byte)C3;
+            out[outOff + 13] = (byte)(C3 >> 8);
+            out[outOff + 14] = (byte)(C3 >> 16);
+            out[outOff + 15] = (byte)(C3 >> 24);
+
+            inOff += BLOCK_SIZE;
+            outOff += BLOCK_SIZE;
         }
-
-        r0 = Tinv0[C0&255] ^ shift(Tinv0[(C3>>8)&255], 24) ^ shift(Tinv0[(C2>>16)&255], 16) ^ shift(Tinv0[(C1>>24)&255], 8) ^ KW[r][0];
-        r1 = Tinv0[C1&255] ^ shift(Tinv0[(C0>>8)&255], 24) ^ shift(Tinv0[(C3>>16)&255], 16) ^ shift(Tinv0[(C2>>24)&255], 8) ^ KW[r][1];
-        r2 = Tinv0[C2&255] ^ shift(Tinv0[(C1>>8)&255], 24) ^ shift(Tinv0[(C0>>16)&255], 16) ^ shift(Tinv0[(C3>>24)&255], 8) ^ KW[r][2];
-        r3 = Tinv0[C3&255] ^ shift(Tinv0[(C2>>8)&255], 24) ^ shift(Tinv0[(C1>>16)&255], 16) ^ shift(Tinv0[(C0>>24)&255], 8) ^ KW[r][3];
-        
-        // the final round's table is a simple function of Si so we don't use a whole other four tables for it
-
-        C0 = (Si[r0&255]&255) ^ ((Si[(r3>>8)&255]&255)<<8) ^ ((Si[(r2>>16)&255]&255)<<16) ^ (Si[(r1>>24)&255]<<24) ^ KW[0][0];
-        C1 = (Si[r1&255]&255) ^ ((Si[(r0>>8)&255]&255)<<8) ^ ((Si[(r3>>16)&255]&255)<<16) ^ (Si[(r2>>24)&255]<<24) ^ KW[0][1];
-        C2 = (Si[r2&255]&255) ^ ((Si[(r1>>8)&255]&255)<<8) ^ ((Si[(r0>>16)&255]&255)<<16) ^ (Si[(r3>>24)&255]<<24) ^ KW[0][2];
-        C3 = (Si[r3&255]&255) ^ ((Si[(r2>>8)&255]&255)<<8) ^ ((Si[(r1>>16)&255]&255)<<16) ^ (Si[(r0>>24)&255]<<24) ^ KW[0][3];
     }
 }
@@ -311,6 +311,21 @@ public class AESLightEngine
         return BLOCK_SIZE;
     }
 
+    public int processBlocks(
+        byte[] in,
+        int inOff,
+        byte[] out,
+        int outOff,
+        int blockCount)
+    {
+        for (int i = 0; i < blockCount; i++)
+        {
+            processBlock(in, inOff + i * BLOCK_SIZE, out, outOff + i * BLOCK_SIZE);
+        }
+
+        return blockCount * BLOCK_SIZE;
+    }
+
     public void reset()
     {
     }
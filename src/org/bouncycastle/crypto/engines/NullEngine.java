@@ -74,6 +74,37 @@ public class NullEngine implements BlockCipher
             return BLOCK_SIZE;
     }
 
+    /* (non-Javadoc)
+     * @see org.bouncycastle.crypto.BlockCipher#processBlocks(byte[], int, byte[], int, int)
+     */
+    public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount)
+        throws DataLengthException, IllegalStateException
+    {
+        if (!initialised)
+        {
+            throw new IllegalStateException("Null engine not initialised");
+        }
+
+        int len = blockCount * BLOCK_SIZE;
+
+        if ((inOff + len) > in.length)
+        {
+            throw new DataLengthException("input buffer too short");
+        }
+
+        if ((outOff + len) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        if (in != out || inOff != outOff)
+        {
+            System.arraycopy(in, inOff, out, outOff, len);
+        }
+
+        return len;
+    }
+
     /* (non-Javadoc)
      * @see org.bouncycastle.crypto.BlockCipher#reset()
      */
@@ -1,5 +1,7 @@
 package org.bouncycastle.crypto.generators;
 
+import java.util.Vector;
+
 import org.bouncycastle.BigInteger;
 import org.bouncycastle.SecureRandom;
 
@@ -7,10 +9,21 @@ class DHKeyGeneratorHelper
 {
     private static final int MAX_ITERATIONS = 1000;
 
+    /**
+     * How many groups to keep comb tables for.  Each one is 64 numbers the size
+     * of p.
+     */
+    private static final int CACHE_SIZE = 4;
+
     static final DHKeyGeneratorHelper INSTANCE = new DHKeyGeneratorHelper();
     
     private static final BigInteger ZERO = BigInteger.valueOf(0);
     private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    // groups we've made keys for lately, most recently used first: a
+    // BigInteger.FixedBase once a group has been used twice, and before that
+    // just { p, g }
+    private final Vector recentGroups = new Vector();
     
     private DHKeyGeneratorHelper()
     {
@@ -63,6 +76,79 @@ class DHKeyGeneratorHelper
     
     BigInteger calculatePublic(BigInteger p, BigInteger g, BigInteger x)
     {
-        return g.modPow(x, p);
+        BigInteger.FixedBase fixedBase = getFixedBase(p, g, x.bitLength());
+        if (fixedBase == null)
+        {
+            return g.modPow(x, p);
+        }
+        return fixedBase.modPow(x);
+    }
+
+    /**
+     * Find the comb table for a group, making it if this is the second time
+     * we've seen the group.  The first time it isn't worth it: a server doing
+     * group exchange may well pick a different group next time.
+     *
+     * @return the table, or null to just use modPow()
+     */
+    private BigInteger.FixedBase getFixedBase(BigInteger p, BigInteger g, int exponentBits)
+    {
+        boolean seen = false;
+
+        synchronized (recentGroups)
+        {
+            for (int i = 0; i != recentGroups.size(); i++)
+            {
+                Object entry = recentGroups.elementAt(i);
+                BigInteger.FixedBase fixedBase = null;
+                BigInteger entryP, entryG;
+
+                if (entry instanceof BigInteger.FixedBase)
+                {
+                    fixedBase = (BigInteger.FixedBase)entry;
+                    entryP = fixedBase.getModulus();
+                    entryG = fixedBase.getBase();
+                }
+                else
+                {
+                    entryP = ((BigInteger[])entry)[0];
+                    entryG = ((BigInteger[])entry)[1];
+                }
+
+                if (entryP.equals(p) && entryG.equals(g))
+                {
+                    recentGroups.removeElementAt(i);
+                    if (fixedBase != null && exponentBits <= fixedBase.getMaxExponentBits())
+                    {
+                        recentGroups.insertElementAt(fixedBase, 0);
+                        return fixedBase;
+                    }
+                    seen = true;
+                    break;
+                }
+            }
+        }
+
+        // Made outside the lock, since it takes as long as a modPow().  Exponents
+        // are rounded up so that one x being a few bits short doesn't leave the
+        // table too small for the next.
+        BigInteger.FixedBase fixedBase = null;
+        Object entry = new BigInteger[] { p, g };
+        if (seen)
+        {
+            fixedBase = new BigInteger.FixedBase(g, p, (exponentBits + 31) & ~31);
+            entry = fixedBase;
+        }
+
+        synchronized (recentGroups)
+        {
+            recentGroups.insertElementAt(entry, 0);
+            if (recentGroups.size() > CACHE_SIZE)
+            {
+                recentGroups.removeElementAt(CACHE_SIZE);
+            }
+        }
+
+        return fixedBase;
     }
 }
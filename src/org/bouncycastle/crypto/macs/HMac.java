@@ -7,6 +7,7 @@ import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.ExtendedDigest;
 import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Memoable;
 
 /**
  * HMAC implementation based on RFC2104
@@ -23,8 +24,11 @@ public class HMac
     private int digestSize;
     private int blockLength;
     
+    private Memoable ipadState;
+    private Memoable opadState;
+
     private byte[] inputPad;
-    private byte[] outputPad;
+    private byte[] outputBuf;
 
     private static Hashtable blockLengths;
     
@@ -91,7 +95,7 @@ public class HMac
         this.blockLength = byteLength;
 
         inputPad = new byte[blockLength];
-        outputPad = new byte[blockLength];
+        outputBuf = new byte[blockLength + digestSize];
     }
     
     public String getAlgorithmName()
@@ -129,20 +133,36 @@ public class HMac
             }
         }
 
-        outputPad = new byte[inputPad.length];
-        System.arraycopy(inputPad, 0, outputPad, 0, inputPad.length);
+        System.arraycopy(inputPad, 0, outputBuf, 0, blockLength);
+
+        xorPad(inputPad, blockLength, IPAD);
+        xorPad(outputBuf, blockLength, OPAD);
 
-        for (int i = 0; i < inputPad.length; i++)
+        //
+        // if the digest can save its state, hash each pad once here rather
+        // than once per message in doFinal() and reset().
+        //
+        if (digest instanceof Memoable)
         {
-            inputPad[i] ^= IPAD;
+            digest.update(outputBuf, 0, blockLength);
+            opadState = ((Memoable)digest).copy();
+            digest.reset();
         }
-
-        for (int i = 0; i < outputPad.length; i++)
+        else
         {
-            outputPad[i] ^= OPAD;
+            opadState = null;
         }
 
         digest.update(inputPad, 0, inputPad.length);
+
+        if (digest instanceof Memoable)
+        {
+            ipadState = ((Memoable)digest).copy();
+        }
+        else
+        {
+            ipadState = null;
+        }
     }
 
     public int getMacSize()
@@ -168,14 +188,25 @@ public class HMac
         byte[] out,
         int outOff)
     {
-        byte[] tmp = new byte[digestSize];
-        digest.doFinal(tmp, 0);
+        digest.doFinal(outputBuf, blockLength);
 
-        digest.update(outputPad, 0, outputPad.length);
-        digest.update(tmp, 0, tmp.length);
+        if (opadState != null)
+        {
+            ((Memoable)digest).reset(opadState);
+            digest.update(outputBuf, blockLength, digestSize);
+        }
+        else
+        {
+            digest.update(outputBuf, 0, outputBuf.length);
+        }
 
         int     len = digest.doFinal(out, outOff);
 
+        for (int i = blockLength; i < outputBuf.length; i++)
+        {
+            outputBuf[i] = 0;
+        }
+
         reset();
 
         return len;
@@ -186,6 +217,15 @@ public class HMac
      */
     public void reset()
     {
+        if (ipadState != null)
+        {
+            /*
+             * go straight back to the state after the input pad.
+             */
+            ((Memoable)digest).reset(ipadState);
+            return;
+        }
+
         /*
          * reset the underlying digest.
          */
@@ -196,4 +236,12 @@ public class HMac
          */
         digest.update(inputPad, 0, inputPad.length);
     }
+
+    private static void xorPad(byte[] pad, int len, byte n)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            pad[i] ^= n;
+        }
+    }
 }
@@ -0,0 +1,684 @@
+package org.bouncycastle.crypto.macs;
+
+import org.bouncycastle.BigInteger;
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * UMAC implementation based on RFC 4418, with AES-128 as the block cipher and
+ * 64 or 128 bit tags.
+ * <p>
+ * The tag is UHASH(M) XOR PDF(N): NH over each 1024 byte chunk of the message,
+ * a polynomial hash over the NH outputs when there is more than one chunk, and
+ * an inner product to bring the result down to 32 bits, once per 32 bits of tag.
+ * The pad PDF(N) is AES of the nonce.
+ * <p>
+ * Every message needs a nonce, which must not repeat under the same key. It can be
+ * given to init() as the IV of a ParametersWithIV, and changed between messages with
+ * setNonce(). The nonce is kept after doFinal().
+ */
+public class UMac
+    implements Mac
+{
+    private static final int L1_KEY_LEN = 1024;
+
+    /** how many L1 outputs the 64 bit polynomial hash takes before the 128 bit one does */
+    private static final int POLY64_WORDS = 1 << 14;
+
+    private static final long M32 = 0xFFFFFFFFL;
+    private static final long M36 = 0x0000000FFFFFFFFFL;
+    private static final long P36 = 0x0000000FFFFFFFFBL;            // 2^36 - 5
+    private static final long P64 = 0xFFFFFFFFFFFFFFC5L;            // 2^64 - 59
+    private static final long POLY_KEY_MASK = 0x01FFFFFF01FFFFFFL;
+
+    private static final BigInteger P128 = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.valueOf(159));
+    private static final BigInteger P128_OFFSET = BigInteger.valueOf(159);
+    private static final BigInteger P128_MARKER = P128.subtract(BigInteger.ONE);
+    private static final BigInteger POLY128_MAX = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE.shiftLeft(96));
+
+    private int macSize;
+    private int streams;
+
+    private BlockCipher pdfCipher;
+    private int[] nhKey;
+    private long[] polyKey;
+    private BigInteger[] polyKey128;
+    private long[] ipKey;
+    private int[] ipTrans;
+
+    private long[] nhAccum;
+    private long[] polyAccum;
+    private BigInteger[] polyAccum128;
+    private long[] polyPending;
+    private boolean havePending;
+    private int l2Words;
+
+    private byte[] buf = new byte[32];
+    private int bufOff;
+    private int nhBytes;
+
+    private byte[] nonce = new byte[16];
+    private int nonceLength;
+    private byte[] pdfIn = new byte[16];
+    private byte[] pdfOut = new byte[16];
+    private boolean pdfValid;
+
+    /**
+     * Base constructor.
+     *
+     * @param macSizeInBits the size of the tag, 64 or 128.
+     */
+    public UMac(
+        int macSizeInBits)
+    {
+        if (macSizeInBits != 64 && macSizeInBits != 128)
+        {
+            throw new IllegalArgumentException("UMAC tag size must be 64 or 128 bits");
+        }
+
+        this.macSize = macSizeInBits / 8;
+        this.streams = macSize / 4;
+
+        this.nhAccum = new long[streams];
+        this.polyAccum = new long[streams];
+    }
+
+    public String getAlgorithmName()
+    {
+        return "UMAC" + (macSize * 8);
+    }
+
+    public void init(
+        CipherParameters params)
+    {
+        KeyParameter key;
+
+        if (params instanceof ParametersWithIV)
+        {
+            ParametersWithIV ivParams = (ParametersWithIV)params;
+
+            key = (KeyParameter)ivParams.getParameters();
+            setNonce(ivParams.getIV());
+        }
+        else
+        {
+            key = (KeyParameter)params;
+        }
+
+        BlockCipher kdfCipher = new AESFastEngine();
+        kdfCipher.init(true, key);
+
+        pdfCipher = new AESFastEngine();
+        pdfCipher.init(true, new KeyParameter(kdf(kdfCipher, 0, 16)));
+        pdfValid = false;
+
+        byte[] k = kdf(kdfCipher, 1, L1_KEY_LEN + (streams - 1) * 16);
+        nhKey = new int[k.length / 4];
+        for (int i = 0; i < nhKey.length; i++)
+        {
+            nhKey[i] = (int)bigEndianToLong(k, i * 4, 4);
+        }
+
+        k = kdf(kdfCipher, 2, streams * 24);
+        polyKey = new long[streams];
+        polyKey128 = new BigInteger[streams];
+        for (int i = 0; i < streams; i++)
+        {
+            polyKey[i] = bigEndianToLong(k, i * 24, 8) & POLY_KEY_MASK;
+
+            byte[] k128 = new byte[16];
+            for (int j = 0; j < 16; j++)
+            {
+                // 0x01FFFFFF in each 32 bit word
+                k128[j] = (byte)(k[i * 24 + 8 + j] & ((j & 3) == 0 ? 0x01 : 0xFF));
+            }
+            polyKey128[i] = new BigInteger(1, k128);
+        }
+
+        k = kdf(kdfCipher, 3, streams * 64);
+        ipKey = new long[streams * 8];
+        for (int i = 0; i < ipKey.length; i++)
+        {
+            ipKey[i] = remainderP36(bigEndianToLong(k, i * 8, 8));
+        }
+
+        k = kdf(kdfCipher, 4, streams * 4);
+        ipTrans = new int[streams];
+        for (int i = 0; i < streams; i++)
+        {
+            ipTrans[i] = (int)bigEndianToLong(k, i * 4, 4);
+        }
+
+        reset();
+    }
+
+    /**
+     * Set the nonce for the next message.
+     *
+     * @param nonce between 1 and 16 bytes.
+     */
+    public void setNonce(
+        byte[] nonce)
+    {
+        setNonce(nonce, 0, nonce.length);
+    }
+
+    /**
+     * Set the nonce for the next message from part of an array.
+     */
+    public void setNonce(
+        byte[] nonce,
+        int    off,
+        int    len)
+    {
+        if (len < 1 || len > 16)
+        {
+            throw new IllegalArgumentException("UMAC nonce must be 1 to 16 bytes");
+        }
+
+        System.arraycopy(nonce, off, this.nonce, 0, len);
+        for (int i = len; i < 16; i++)
+        {
+            this.nonce[i] = 0;
+        }
+        nonceLength = len;
+    }
+
+    public int getMacSize()
+    {
+        return macSize;
+    }
+
+    public void update(
+        byte in)
+    {
+        if (nhBytes == L1_KEY_LEN)
+        {
+            endChunk();
+        }
+
+        buf[bufOff++] = in;
+
+        if (bufOff == buf.length)
+        {
+            nh(buf, 0, buf.length);
+            bufOff = 0;
+        }
+    }
+
+    public void update(
+        byte[] in,
+        int inOff,
+        int len)
+    {
+        while (len > 0)
+        {
+            if (nhBytes == L1_KEY_LEN)
+            {
+                endChunk();
+            }
+
+            if (bufOff == 0 && len >= buf.length)
+            {
+                // whole groups straight from the input, up to the end of the chunk
+                int n = Math.min(len, L1_KEY_LEN - nhBytes) & ~31;
+
+                nh(in, inOff, n);
+                inOff += n;
+                len -= n;
+            }
+            else
+            {
+                int n = Math.min(len, buf.length - bufOff);
+
+                System.arraycopy(in, inOff, buf, bufOff, n);
+                bufOff += n;
+                inOff += n;
+                len -= n;
+
+                if (bufOff == buf.length)
+                {
+                    nh(buf, 0, buf.length);
+                    bufOff = 0;
+                }
+            }
+        }
+    }
+
+    public int doFinal(
+        byte[] out,
+        int outOff)
+    {
+        if (nonceLength == 0)
+        {
+            throw new IllegalStateException("UMAC nonce not set");
+        }
+
+        // the last chunk is zero padded to a multiple of 32 bytes, and at least 32
+        int lastBits = (nhBytes + bufOff) * 8;
+        if (bufOff > 0 || nhBytes == 0)
+        {
+            for (int i = bufOff; i < buf.length; i++)
+            {
+                buf[i] = 0;
+            }
+            nh(buf, 0, buf.length);
+        }
+
+        for (int s = 0; s < streams; s++)
+        {
+            nhAccum[s] += lastBits;
+        }
+
+        if (l2Words == 0)
+        {
+            // one chunk: the L1 output goes straight to L3
+            for (int s = 0; s < streams; s++)
+            {
+                intToBigEndian(l3(s, 0, nhAccum[s]), out, outOff + s * 4);
+            }
+        }
+        else
+        {
+            l2(nhAccum);
+
+            if (polyAccum128 == null)
+            {
+                for (int s = 0; s < streams; s++)
+                {
+                    long y = polyAccum[s];
+                    if (unsignedLessThan(y, P64) == false)
+                    {
+                        y -= P64;
+                    }
+                    intToBigEndian(l3(s, 0, y), out, outOff + s * 4);
+                }
+            }
+            else
+            {
+                // the 128 bit words end with a 1 bit, then zeroes
+                long hi, lo;
+                for (int s = 0; s < streams; s++)
+                {
+                    if (havePending)
+                    {
+                        hi = polyPending[s];
+                        lo = 0x8000000000000000L;
+                    }
+                    else
+                    {
+                        hi = 0x8000000000000000L;
+                        lo = 0;
+                    }
+                    polyAccum128[s] = poly128(polyAccum128[s], polyKey128[s], hi, lo);
+
+                    byte[] y = polyAccum128[s].toByteArray();
+                    byte[] y16 = new byte[16];
+                    int n = Math.min(y.length, 16);
+                    System.arraycopy(y, y.length - n, y16, 16 - n, n);
+
+                    intToBigEndian(l3(s, bigEndianToLong(y16, 0, 8), bigEndianToLong(y16, 8, 8)), out, outOff + s * 4);
+                }
+            }
+        }
+
+        pdf(out, outOff);
+
+        reset();
+
+        return macSize;
+    }
+
+    /**
+     * Reset the mac generator. The key and nonce are kept.
+     */
+    public void reset()
+    {
+        for (int s = 0; s < streams; s++)
+        {
+            nhAccum[s] = 0;
+            polyAccum[s] = 1;
+        }
+        polyAccum128 = null;
+        polyPending = null;
+        havePending = false;
+        l2Words = 0;
+        bufOff = 0;
+        nhBytes = 0;
+    }
+
+    /**
+     * NH over whole 32 byte groups of the current chunk. The message is read as
+     * little endian words, the key as big endian ones, and each stream uses the
+     * key 16 bytes further on than the one before.
+     */
+    private void nh(
+        byte[] in,
+        int inOff,
+        int len)
+    {
+        int[] k = nhKey;
+
+        for (int end = inOff + len; inOff < end; inOff += 32)
+        {
+            int m0 = littleEndianToInt(in, inOff);
+            int m1 = littleEndianToInt(in, inOff + 4);
+            int m2 = littleEndianToInt(in, inOff + 8);
+            int m3 = littleEndianToInt(in, inOff + 12);
+            int m4 = littleEndianToInt(in, inOff + 16);
+            int m5 = littleEndianToInt(in, inOff + 20);
+            int m6 = littleEndianToInt(in, inOff + 24);
+            int m7 = littleEndianToInt(in, inOff + 28);
+
+            int o = nhBytes >>> 2;
+            for (int s = 0; s < streams; s++, o += 4)
+            {
+                nhAccum[s] += ((m0 + k[o]) & M32) * ((m4 + k[o + 4]) & M32)
+                    + ((m1 + k[o + 1]) & M32) * ((m5 + k[o + 5]) & M32)
+                    + ((m2 + k[o + 2]) & M32) * ((m6 + k[o + 6]) & M32)
+                    + ((m3 + k[o + 3]) & M32) * ((m7 + k[o + 7]) & M32);
+            }
+
+            nhBytes += 32;
+        }
+    }
+
+    /**
+     * A full chunk with more of the message after it: its L1 output goes to L2.
+     */
+    private void endChunk()
+    {
+        for (int s = 0; s < streams; s++)
+        {
+            nhAccum[s] += L1_KEY_LEN * 8;
+        }
+
+        l2(nhAccum);
+
+        for (int s = 0; s < streams; s++)
+        {
+            nhAccum[s] = 0;
+        }
+        nhBytes = 0;
+    }
+
+    /**
+     * Feed one L1 output per stream to the polynomial hash. After 2^14 bytes of
+     * them the 64 bit hash gives way to the 128 bit one, which starts from the
+     * 64 bit result.
+     */
+    private void l2(
+        long[] m)
+    {
+        if (l2Words < POLY64_WORDS)
+        {
+            for (int s = 0; s < streams; s++)
+            {
+                long k = polyKey[s];
+
+                if ((m[s] >>> 32) == M32)
+                {
+                    polyAccum[s] = poly64(polyAccum[s], k, P64 - 1);
+                    polyAccum[s] = poly64(polyAccum[s], k, m[s] - 59);
+                }
+                else
+                {
+                    polyAccum[s] = poly64(polyAccum[s], k, m[s]);
+                }
+            }
+        }
+        else
+        {
+            if (polyAccum128 == null)
+            {
+                polyAccum128 = new BigInteger[streams];
+                polyPending = new long[streams];
+                for (int s = 0; s < streams; s++)
+                {
+                    long y = polyAccum[s];
+                    if (unsignedLessThan(y, P64) == false)
+                    {
+                        y -= P64;
+                    }
+                    polyAccum128[s] = poly128(BigInteger.ONE, polyKey128[s], 0, y);
+                }
+            }
+
+            if (havePending)
+            {
+                for (int s = 0; s < streams; s++)
+                {
+                    polyAccum128[s] = poly128(polyAccum128[s], polyKey128[s], polyPending[s], m[s]);
+                }
+                havePending = false;
+            }
+            else
+            {
+                for (int s = 0; s < streams; s++)
+                {
+                    polyPending[s] = m[s];
+                }
+                havePending = true;
+            }
+        }
+
+        l2Words++;
+    }
+
+    /**
+     * One step of the polynomial hash mod 2^64 - 59, for keys with the top seven
+     * bits of each half clear. The result is congruent to cur * key + data but may
+     * not be fully reduced.
+     */
+    private static long poly64(
+        long cur,
+        long key,
+        long data)
+    {
+        long keyHi = key >>> 32, keyLo = key & M32;
+        long curHi = cur >>> 32, curLo = cur & M32;
+
+        long x = keyHi * curLo + curHi * keyLo;
+        long res = (keyHi * curHi + (x >>> 32)) * 59 + keyLo * curLo;
+        long t = x << 32;
+
+        // 2^64 = 59 mod p, so a carry out is worth 59
+        res += t;
+        if (unsignedLessThan(res, t))
+        {
+            res += 59;
+        }
+        res += data;
+        if (unsignedLessThan(res, data))
+        {
+            res += 59;
+        }
+
+        return res;
+    }
+
+    private static BigInteger poly128(
+        BigInteger cur,
+        BigInteger key,
+        long hi,
+        long lo)
+    {
+        byte[] b = new byte[16];
+        longToBigEndian(hi, b, 0);
+        longToBigEndian(lo, b, 8);
+        BigInteger m = new BigInteger(1, b);
+
+        if (m.compareTo(POLY128_MAX) >= 0)
+        {
+            cur = key.multiply(cur).add(P128_MARKER).mod(P128);
+            m = m.subtract(P128_OFFSET);
+        }
+
+        return key.multiply(cur).add(m).mod(P128);
+    }
+
+    /**
+     * The inner product of the eight 16 bit pieces of the L2 output with the
+     * stream's keys mod 2^36 - 5, truncated to 32 bits and whitened.
+     */
+    private int l3(
+        int s,
+        long hi,
+        long lo)
+    {
+        long[] k = ipKey;
+        int o = s * 8;
+
+        long t = k[o] * ((hi >>> 48) & 0xFFFF)
+            + k[o + 1] * ((hi >>> 32) & 0xFFFF)
+            + k[o + 2] * ((hi >>> 16) & 0xFFFF)
+            + k[o + 3] * (hi & 0xFFFF)
+            + k[o + 4] * ((lo >>> 48) & 0xFFFF)
+            + k[o + 5] * ((lo >>> 32) & 0xFFFF)
+            + k[o + 6] * ((lo >>> 16) & 0xFFFF)
+            + k[o + 7] * (lo & 0xFFFF);
+
+        long r = (t & M36) + 5 * (t >>> 36);
+        if (r >= P36)
+        {
+            r -= P36;
+        }
+
+        return (int)r ^ ipTrans[s];
+    }
+
+    /**
+     * XOR the pad for the current nonce into the tag. A 64 bit tag takes half an
+     * AES block, picked by the low bit of the nonce, so consecutive nonces share
+     * one encryption.
+     */
+    private void pdf(
+        byte[] out,
+        int outOff)
+    {
+        int index = 0;
+        byte last = nonce[nonceLength - 1];
+
+        if (macSize == 8)
+        {
+            index = last & 1;
+            nonce[nonceLength - 1] &= ~1;
+        }
+
+        boolean same = pdfValid;
+        for (int i = 0; same && i < 16; i++)
+        {
+            same = pdfIn[i] == nonce[i];
+        }
+
+        if (!same)
+        {
+            System.arraycopy(nonce, 0, pdfIn, 0, 16);
+            pdfCipher.processBlock(pdfIn, 0, pdfOut, 0);
+            pdfValid = true;
+        }
+
+        nonce[nonceLength - 1] = last;
+
+        for (int i = 0; i < macSize; i++)
+        {
+            out[outOff + i] ^= pdfOut[index * macSize + i];
+        }
+    }
+
+    /**
+     * The key derivation function: AES under the UMAC key of the index and a
+     * block counter, each as 8 bytes.
+     */
+    private static byte[] kdf(
+        BlockCipher cipher,
+        int index,
+        int numBytes)
+    {
+        byte[] in = new byte[16];
+        byte[] out = new byte[(numBytes + 15) & ~15];
+
+        in[7] = (byte)index;
+        for (int i = 0; i < out.length; i += 16)
+        {
+            in[15] = (byte)(i / 16 + 1);
+            cipher.processBlock(in, 0, out, i);
+        }
+
+        if (out.length == numBytes)
+        {
+            return out;
+        }
+
+        byte[] ret = new byte[numBytes];
+        System.arraycopy(out, 0, ret, 0, numBytes);
+        return ret;
+    }
+
+    private static long remainderP36(
+        long x)
+    {
+        // x is unsigned; 2^63 = 2^27 * 2^36 = 2^27 * 5 mod p
+        long r = 0;
+        if (x < 0)
+        {
+            x &= Long.MAX_VALUE;
+            r = (5L << 27) % P36;
+        }
+        return (x % P36 + r) % P36;
+    }
+
+    private static boolean unsignedLessThan(
+        long a,
+        long b)
+    {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE);
+    }
+
+    private static int littleEndianToInt(
+        byte[] bs,
+        int off)
+    {
+        return (bs[off] & 0xff)
+            | (bs[off + 1] & 0xff) << 8
+            | (bs[off + 2] & 0xff) << 16
+            | bs[off + 3] << 24;
+    }
+
+    private static long bigEndianToLong(
+        byte[] bs,
+        int off,
+        int len)
+    {
+        long n = 0;
+        for (int i = 0; i < len; i++)
+        {
+            n = (n << 8) | (bs[off + i] & 0xff);
+        }
+        return n;
+    }
+
+    private static void intToBigEndian(
+        int n,
+        byte[] bs,
+        int off)
+    {
+        bs[off] = (byte)(n >>> 24);
+        bs[off + 1] = (byte)(n >>> 16);
+        bs[off + 2] = (byte)(n >>> 8);
+        bs[off + 3] = (byte)n;
+    }
+
+    private static void longToBigEndian(
+        long n,
+        byte[] bs,
+        int off)
+    {
+        intToBigEndian((int)(n >>> 32), bs, off);
+        intToBigEndian((int)n, bs, off + 4);
+    }
+}
@@ -129,6 +129,48 @@ public class CBCBlockCipher
         return (encrypting) ? encryptBlock(in, inOff, out, outOff) : decryptBlock(in, inOff, out, outOff);
     }
 
+    /**
+     * Process blockCount consecutive blocks in one call. in and out may be
+     * the same array at the same offset.
+     *
+     * @param in the array containing the input data.
+     * @param inOff offset into the in array the data starts at.
+     * @param out the array the output data will be copied into.
+     * @param outOff the offset into the out array the output will start at.
+     * @param blockCount the number of blocks to process.
+     * @exception DataLengthException if there isn't enough data in in, or
+     * space in out.
+     * @exception IllegalStateException if the cipher isn't initialised.
+     * @return the number of bytes processed and produced.
+     */
+    public int processBlocks(
+        byte[]      in,
+        int         inOff,
+        byte[]      out,
+        int         outOff,
+        int         blockCount)
+        throws DataLengthException, IllegalStateException
+    {
+        int len = blockCount * blockSize;
+
+        if ((inOff + len) > in.length)
+        {
+            throw new DataLengthException("input buffer too short");
+        }
+
+        if ((outOff + len) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        if (blockCount == 0)
+        {
+            return 0;
+        }
+
+        return (encrypting) ? encryptBlocks(in, inOff, out, outOff, blockCount) : decryptBlocks(in, inOff, out, outOff, blockCount);
+    }
+
     /**
      * reset the chaining vector back to the IV and reset the underlying
      * cipher.
@@ -230,4 +272,100 @@ public class CBCBlockCipher
 
         return length;
     }
+
+    /**
+     * CBC encryption of several blocks. Each block depends on the one
+     * before, so this is still one cipher call per block, but the chaining
+     * value is kept in the output rather than copied back into cbcV each time.
+     */
+    private int encryptBlocks(
+        byte[]      in,
+        int         inOff,
+        byte[]      out,
+        int         outOff,
+        int         blockCount)
+    {
+        byte[]  prev = cbcV;
+        int     prevOff = 0;
+
+        for (int b = 0; b < blockCount; b++)
+        {
+            for (int i = 0; i < blockSize; i++)
+            {
+                out[outOff + i] = (byte)(prev[prevOff + i] ^ in[inOff + i]);
+            }
+
+            cipher.processBlock(out, outOff, out, outOff);
+
+            prev = out;
+            prevOff = outOff;
+            inOff += blockSize;
+            outOff += blockSize;
+        }
+
+        System.arraycopy(prev, prevOff, cbcV, 0, blockSize);
+
+        return blockCount * blockSize;
+    }
+
+    /**
+     * CBC decryption of several blocks. Decryption has no chain between the
+     * cipher calls, so the whole run goes to the underlying cipher at once.
+     * When working in place the ciphertext is overwritten, so the XOR pass
+     * runs from the last block back to the first, while the previous block
+     * of ciphertext is still there to be used.
+     */
+    private int decryptBlocks(
+        byte[]      in,
+        int         inOff,
+        byte[]      out,
+        int         outOff,
+        int         blockCount)
+    {
+        int len = blockCount * blockSize;
+        int last = len - blockSize;
+
+        // The last block of ciphertext is the next chaining value
+        System.arraycopy(in, inOff + last, cbcNextV, 0, blockSize);
+
+        if (in == out && inOff == outOff)
+        {
+            for (int b = last; b > 0; b -= blockSize)
+            {
+                cipher.processBlock(out, outOff + b, out, outOff + b);
+
+                for (int i = 0; i < blockSize; i++)
+                {
+                    out[outOff + b + i] ^= out[outOff + b - blockSize + i];
+                }
+            }
+
+            cipher.processBlock(out, outOff, out, outOff);
+        }
+        else
+        {
+            cipher.processBlocks(in, inOff, out, outOff, blockCount);
+
+            for (int b = last; b > 0; b -= blockSize)
+            {
+                for (int i = 0; i < blockSize; i++)
+                {
+                    out[outOff + b + i] ^= in[inOff + b - blockSize + i];
+                }
+            }
+        }
+
+        for (int i = 0; i < blockSize; i++)
+        {
+            out[outOff + i] ^= cbcV[i];
+        }
+
+        byte[]  tmp;
+
+        tmp = cbcV;
+        cbcV = cbcNextV;
+        cbcNextV = tmp;
+
+        return len;
+    }
 }
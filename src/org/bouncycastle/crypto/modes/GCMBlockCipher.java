@@ -0,0 +1,431 @@
+package org.bouncycastle.crypto.modes;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Implements the Galois/Counter mode (GCM) detailed in NIST Special
+ * Publication 800-38D, for a 128 bit block cipher, a 96 bit nonce and a 128
+ * bit tag.
+ * <p>
+ * Each block is encrypted in counter mode and run through GHASH in the same
+ * pass. GHASH multiplies by H a byte at a time using a 4K table made when
+ * the key is set (Shoup's method).
+ * <p>
+ * A message is any additional authenticated data passed to processAADBytes(),
+ * then whole blocks through processBlock() or processBlocks(), then doFinal()
+ * for the tag. Decryption gives back the tag it computed, and it is up to the
+ * caller to compare it with the one received before trusting the plaintext.
+ * After doFinal() the last 8 bytes of the nonce are incremented as a
+ * big-endian counter, which is how SSH (RFC 5647) gets a fresh nonce for each
+ * packet without another init().
+ */
+public class GCMBlockCipher
+    implements BlockCipher
+{
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAC_SIZE = 16;
+
+    /** what multiplying by x^8 does to the byte that falls off the end */
+    private static final long[] REDUCE = new long[256];
+
+    static
+    {
+        for (int b = 0; b < 256; b++)
+        {
+            long hi = 0, lo = b;
+
+            for (int i = 0; i < 8; i++)
+            {
+                boolean carry = (lo & 1) != 0;
+
+                lo = (lo >>> 1) | (hi << 63);
+                hi >>>= 1;
+                if (carry)
+                {
+                    hi ^= 0xE100000000000000L;
+                }
+            }
+
+            REDUCE[b] = hi;
+        }
+    }
+
+    private final BlockCipher cipher;
+
+    private boolean forEncryption;
+    private byte[] nonce = new byte[12];
+
+    /** H times each byte value, as two big-endian halves */
+    private long[] mHi = new long[256];
+    private long[] mLo = new long[256];
+
+    private byte[] counter = new byte[BLOCK_SIZE];
+    private byte[] keyStream = new byte[BLOCK_SIZE];
+    private int counter32;
+
+    private long xHi, xLo;
+    private byte[] aadBuf = new byte[BLOCK_SIZE];
+    private int aadOff;
+    private long aadLength;
+    private long cipherTextLength;
+
+    /**
+     * Basic constructor.
+     *
+     * @param c the block cipher to be used, which must have a 16 byte block.
+     */
+    public GCMBlockCipher(BlockCipher c)
+    {
+        if (c.getBlockSize() != BLOCK_SIZE)
+        {
+            throw new IllegalArgumentException("cipher required with a block size of " + BLOCK_SIZE + ".");
+        }
+
+        this.cipher = c;
+    }
+
+    /**
+     * return the underlying block cipher that we are wrapping.
+     *
+     * @return the underlying block cipher that we are wrapping.
+     */
+    public BlockCipher getUnderlyingCipher()
+    {
+        return cipher;
+    }
+
+    /**
+     * Initialise the cipher and make the GHASH table for the key.
+     *
+     * @param forEncryption if true the cipher is initialised for
+     *  encryption, if false for decryption.
+     * @param params a ParametersWithIV holding the key and a 12 byte nonce.
+     * @exception IllegalArgumentException if the params argument is
+     * inappropriate.
+     */
+    public void init(
+        boolean             forEncryption,
+        CipherParameters    params)
+        throws IllegalArgumentException
+    {
+        if (!(params instanceof ParametersWithIV))
+        {
+            throw new IllegalArgumentException("GCM mode requires ParametersWithIV");
+        }
+
+        ParametersWithIV ivParam = (ParametersWithIV)params;
+        byte[]           iv = ivParam.getIV();
+
+        if (iv.length != nonce.length)
+        {
+            throw new IllegalArgumentException("GCM nonce must be " + nonce.length + " bytes");
+        }
+
+        this.forEncryption = forEncryption;
+        System.arraycopy(iv, 0, nonce, 0, nonce.length);
+
+        cipher.init(true, ivParam.getParameters());
+
+        // H = E(K, 0), then H * x^i for the single bits and XOR for the rest
+        byte[] h = new byte[BLOCK_SIZE];
+        cipher.processBlock(h, 0, h, 0);
+
+        mHi[0x80] = bigEndianToLong(h, 0);
+        mLo[0x80] = bigEndianToLong(h, 8);
+        for (int i = 0x40; i > 0; i >>= 1)
+        {
+            long hi = mHi[i << 1], lo = mLo[i << 1];
+
+            mLo[i] = (lo >>> 1) | (hi << 63);
+            mHi[i] = (hi >>> 1) ^ ((lo & 1) != 0 ? 0xE100000000000000L : 0);
+        }
+        for (int i = 2; i < 256; i <<= 1)
+        {
+            for (int j = 1; j < i; j++)
+            {
+                mHi[i + j] = mHi[i] ^ mHi[j];
+                mLo[i + j] = mLo[i] ^ mLo[j];
+            }
+        }
+
+        reset();
+    }
+
+    public String getAlgorithmName()
+    {
+        return cipher.getAlgorithmName() + "/GCM";
+    }
+
+    public int getBlockSize()
+    {
+        return BLOCK_SIZE;
+    }
+
+    /**
+     * Return the size of the tag doFinal() produces.
+     *
+     * @return the tag size in bytes.
+     */
+    public int getMacSize()
+    {
+        return MAC_SIZE;
+    }
+
+    /**
+     * Add data that is authenticated but not encrypted. All of it has to come
+     * before the first block of the message.
+     */
+    public void processAADBytes(
+        byte[]      in,
+        int         inOff,
+        int         len)
+    {
+        if (cipherTextLength != 0)
+        {
+            throw new IllegalStateException("GCM additional data must come before the message");
+        }
+
+        aadLength += len;
+        while (len > 0)
+        {
+            int n = Math.min(len, BLOCK_SIZE - aadOff);
+
+            System.arraycopy(in, inOff, aadBuf, aadOff, n);
+            aadOff += n;
+            inOff += n;
+            len -= n;
+
+            if (aadOff == BLOCK_SIZE)
+            {
+                ghashBlock(aadBuf, 0);
+                aadOff = 0;
+            }
+        }
+    }
+
+    public int processBlock(
+        byte[]      in,
+        int         inOff,
+        byte[]      out,
+        int         outOff)
+        throws DataLengthException, IllegalStateException
+    {
+        return processBlocks(in, inOff, out, outOff, 1);
+    }
+
+    public int processBlocks(
+        byte[]      in,
+        int         inOff,
+        byte[]      out,
+        int         outOff,
+        int         blockCount)
+        throws DataLengthException, IllegalStateException
+    {
+        int len = blockCount * BLOCK_SIZE;
+
+        if ((inOff + len) > in.length)
+        {
+            throw new DataLengthException("input buffer too short");
+        }
+
+        if ((outOff + len) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        finishAAD();
+
+        for (int i = 0; i < blockCount; i++)
+        {
+            counter[12] = (byte)(counter32 >>> 24);
+            counter[13] = (byte)(counter32 >>> 16);
+            counter[14] = (byte)(counter32 >>> 8);
+            counter[15] = (byte)counter32;
+            counter32++;
+            cipher.processBlock(counter, 0, keyStream, 0);
+
+            // GHASH always sees the ciphertext, so read the input before it is overwritten
+            long inHi = bigEndianToLong(in, inOff);
+            long inLo = bigEndianToLong(in, inOff + 8);
+            long outHi = inHi ^ bigEndianToLong(keyStream, 0);
+            long outLo = inLo ^ bigEndianToLong(keyStream, 8);
+
+            longToBigEndian(outHi, out, outOff);
+            longToBigEndian(outLo, out, outOff + 8);
+
+            if (forEncryption)
+            {
+                xHi ^= outHi;
+                xLo ^= outLo;
+            }
+            else
+            {
+                xHi ^= inHi;
+                xLo ^= inLo;
+            }
+            multiplyH();
+
+            inOff += BLOCK_SIZE;
+            outOff += BLOCK_SIZE;
+        }
+
+        cipherTextLength += len;
+
+        return len;
+    }
+
+    /**
+     * Finish the message, write the tag, and move on to the next nonce.
+     *
+     * @param out the array the tag is written to.
+     * @param outOff where in out the tag starts.
+     * @return the tag size in bytes.
+     */
+    public int doFinal(
+        byte[]      out,
+        int         outOff)
+    {
+        if ((outOff + MAC_SIZE) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        finishAAD();
+
+        xHi ^= aadLength << 3;
+        xLo ^= cipherTextLength << 3;
+        multiplyH();
+
+        // the tag is masked with the first counter block, J0 = nonce || 1
+        counter[12] = 0;
+        counter[13] = 0;
+        counter[14] = 0;
+        counter[15] = 1;
+        cipher.processBlock(counter, 0, keyStream, 0);
+
+        longToBigEndian(xHi ^ bigEndianToLong(keyStream, 0), out, outOff);
+        longToBigEndian(xLo ^ bigEndianToLong(keyStream, 8), out, outOff + 8);
+
+        for (int i = nonce.length - 1; i >= 4; i--)
+        {
+            if (++nonce[i] != 0)
+            {
+                break;
+            }
+        }
+
+        reset();
+
+        return MAC_SIZE;
+    }
+
+    /**
+     * Discard the current message. The key and the next nonce are kept.
+     */
+    public void reset()
+    {
+        System.arraycopy(nonce, 0, counter, 0, nonce.length);
+        counter32 = 2;
+
+        xHi = 0;
+        xLo = 0;
+        aadOff = 0;
+        aadLength = 0;
+        cipherTextLength = 0;
+
+        cipher.reset();
+    }
+
+    /**
+     * The additional data is zero padded to a whole block before the message.
+     */
+    private void finishAAD()
+    {
+        if (aadOff > 0)
+        {
+            for (int i = aadOff; i < BLOCK_SIZE; i++)
+            {
+                aadBuf[i] = 0;
+            }
+            ghashBlock(aadBuf, 0);
+            aadOff = 0;
+        }
+    }
+
+    private void ghashBlock(
+        byte[]      in,
+        int         inOff)
+    {
+        xHi ^= bigEndianToLong(in, inOff);
+        xLo ^= bigEndianToLong(in, inOff + 8);
+        multiplyH();
+    }
+
+    /**
+     * X = X * H, a byte at a time from the last, multiplying what there is so
+     * far by x^8 before adding in H times the next byte.
+     */
+    private void multiplyH()
+    {
+        long[] mHi = this.mHi, mLo = this.mLo;
+        long hi = xHi, lo = xLo;
+
+        int b = (int)lo & 0xFF;
+        long zHi = mHi[b], zLo = mLo[b];
+
+        for (int shift = 8; shift < 64; shift += 8)
+        {
+            int r = (int)zLo & 0xFF;
+            zLo = (zLo >>> 8) | (zHi << 56);
+            zHi = (zHi >>> 8) ^ REDUCE[r];
+
+            b = (int)(lo >>> shift) & 0xFF;
+            zHi ^= mHi[b];
+            zLo ^= mLo[b];
+        }
+
+        for (int shift = 0; shift < 64; shift += 8)
+        {
+            int r = (int)zLo & 0xFF;
+            zLo = (zLo >>> 8) | (zHi << 56);
+            zHi = (zHi >>> 8) ^ REDUCE[r];
+
+            b = (int)(hi >>> shift) & 0xFF;
+            zHi ^= mHi[b];
+            zLo ^= mLo[b];
+        }
+
+        xHi = zHi;
+        xLo = zLo;
+    }
+
+    private static long bigEndianToLong(
+        byte[]      bs,
+        int         off)
+    {
+        int hi = bs[off] << 24 | (bs[off + 1] & 0xff) << 16 | (bs[off + 2] & 0xff) << 8 | (bs[off + 3] & 0xff);
+        int lo = bs[off + 4] << 24 | (bs[off + 5] & 0xff) << 16 | (bs[off + 6] & 0xff) << 8 | (bs[off + 7] & 0xff);
+
+        return ((long)hi << 32) | (lo & 0xffffffffL);
+    }
+
+    private static void longToBigEndian(
+        long        n,
+        byte[]      bs,
+        int         off)
+    {
+        int hi = (int)(n >>> 32), lo = (int)n;
+
+        bs[off] = (byte)(hi >>> 24);
+        bs[off + 1] = (byte)(hi >>> 16);
+        bs[off + 2] = (byte)(hi >>> 8);
+        bs[off + 3] = (byte)hi;
+        bs[off + 4] = (byte)(lo >>> 24);
+        bs[off + 5] = (byte)(lo >>> 16);
+        bs[off + 6] = (byte)(lo >>> 8);
+        bs[off + 7] = (byte)lo;
+    }
+}